@@ -0,0 +1,166 @@
+package client;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Moves disk writes off the receive thread. write() copies the chunk into a pooled slot of
+ * a single producer/single consumer ring and returns at once; a writer thread drains the
+ * ring, merges adjacent chunks and writes them to the wrapped sink. When the ring is full
+ * the chunk is refused instead of waiting, the session then treats it as lost.
+ */
+public class AsyncChunkSink implements ChunkSink {
+	public static final int DEFAULT_SLOTS=1024;
+	public static final int DEFAULT_SLOT_SIZE=1024;
+	public static final int COALESCE_BUFFER_SIZE=256*1024;
+
+	private ChunkSink target=null;
+	private Slot[] slots=null;
+	private int mask;
+	//tail is only advanced by the producer, head only by the writer thread
+	private AtomicLong head=new AtomicLong();
+	private AtomicLong tail=new AtomicLong();
+	private volatile boolean closed=false;
+	private volatile boolean writerParked=false;
+	private volatile IOException failure=null;
+	private byte[] coalesceBuffer=new byte[COALESCE_BUFFER_SIZE];
+	private Thread writer=null;
+
+	private static class Slot{
+		private byte[] buf;
+		private long start_byte;
+		private int length;
+
+		Slot(int size){
+			buf=new byte[size];
+		}
+	}
+
+	public AsyncChunkSink(ChunkSink target){
+		this(target, DEFAULT_SLOTS, DEFAULT_SLOT_SIZE);
+	}
+
+	//slots is rounded up to a power of two
+	public AsyncChunkSink(ChunkSink target, int slots, int slotSize){
+		this.target=target;
+		int capacity=Integer.highestOneBit(Math.max(2, slots)-1)<<1;
+		this.slots=new Slot[capacity];
+		this.mask=capacity-1;
+		for(int i=0;i<capacity;i++){
+			this.slots[i]=new Slot(slotSize);
+		}
+		writer=new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "chunk-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public boolean write(long start_byte, byte[] buf, int offset, int length) throws IOException {
+		if (failure!=null){
+			throw failure;
+		}
+		long t=tail.get();
+		if (t-head.get()>mask){
+			return false;
+		}
+		Slot slot=slots[(int)(t&mask)];
+		if (slot.buf.length<length){
+			slot.buf=new byte[length];
+		}
+		System.arraycopy(buf, offset, slot.buf, 0, length);
+		slot.start_byte=start_byte;
+		slot.length=length;
+		//publishes the slot contents to the writer thread
+		tail.lazySet(t+1);
+		if (writerParked){
+			LockSupport.unpark(writer);
+		}
+		return true;
+	}
+
+	private void writeLoop(){
+		while(true){
+			long h=head.get();
+			if (h==tail.get()){
+				if (closed){
+					return;
+				}
+				writerParked=true;
+				//re-check after announcing the park so a write in between is not missed
+				if (h==tail.get() && !closed){
+					LockSupport.parkNanos(1000000);
+				}
+				writerParked=false;
+				continue;
+			}
+			try{
+				drain(h);
+			} catch(IOException ex){
+				loggerManager.getInstance(this.getClass()).error(ex.toString());
+				failure=ex;
+				//keep consuming so the producer is not stuck on a full ring
+				head.lazySet(tail.get());
+			}
+		}
+	}
+
+	//merges the run of adjacent chunks starting at h into one write
+	private void drain(long h) throws IOException{
+		long t=tail.get();
+		Slot first=slots[(int)(h&mask)];
+		long start_byte=first.start_byte;
+		int length=0;
+		while(h<t){
+			Slot slot=slots[(int)(h&mask)];
+			if (slot.start_byte!=start_byte+length || length+slot.length>coalesceBuffer.length){
+				if (length==0){
+					//a chunk larger than the merge buffer goes out on its own
+					target.write(slot.start_byte, slot.buf, 0, slot.length);
+					head.lazySet(++h);
+				}
+				break;
+			}
+			System.arraycopy(slot.buf, 0, coalesceBuffer, length, slot.length);
+			length+=slot.length;
+			//the slot is copied out, hand it back to the producer
+			head.lazySet(++h);
+		}
+		if (length>0){
+			target.write(start_byte, coalesceBuffer, 0, length);
+		}
+	}
+
+	//waits until everything accepted so far has been handed to the wrapped sink
+	public void flush() throws IOException {
+		long t=tail.get();
+		while(head.get()<t && failure==null){
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(100000);
+		}
+		if (failure!=null){
+			throw failure;
+		}
+	}
+
+	//waits until everything accepted so far is written, then closes the wrapped sink
+	@Override
+	public void close() throws IOException {
+		closed=true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		target.close();
+		if (failure!=null){
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import model.CatalogEntry;
+import model.CatalogResponseType;
+import model.FileSizeResponseType;
+import model.RequestType;
+
+/*
+ * Non-blocking client of one server. Every call returns a CompletableFuture right away
+ * and any number of them may be in flight: the session's receiver thread completes the
+ * requests and one timer thread, shared by all AsyncClients, runs their resends, so no
+ * thread is held per request or download. Futures complete on the receiver thread;
+ * stages that block should be added with an executor (thenApplyAsync and the like).
+ *   java -classpath "bin:lib/*" client.AsyncClient server=127.0.0.1:5000 downloads=200
+ * starts that many downloads of the catalog's files at once to downloads/async and
+ * reports the time taken and the threads the JVM used.
+ */
+public class AsyncClient {
+
+	//called on the receiver thread after every chunk written, must not block
+	public interface ProgressListener{
+		void onProgress(int file_id, long receivedBytes, long size);
+	}
+
+	private static ScheduledExecutorService timers=null;
+
+	private ClientSession session=null;
+
+	public AsyncClient(String ip, int port) throws IOException{
+		this.session=new ClientSession(ip, port);
+	}
+
+	private static synchronized ScheduledExecutorService timers(){
+		if (timers==null){
+			timers=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread=new Thread(r, "async-client-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return timers;
+	}
+
+	public ClientSession getSession(){
+		return session;
+	}
+
+	private CompletableFuture<PendingRequest> request(int requestType, int file_id, long start, long end, ChunkSink sink){
+		try {
+			return session.awaitAsync(session.submit(requestType, file_id, start, end, sink), timers());
+		} catch (IOException ex) {
+			CompletableFuture<PendingRequest> failed=new CompletableFuture<PendingRequest>();
+			failed.completeExceptionally(ex);
+			return failed;
+		}
+	}
+
+	//whole catalog, the pages after the first are requested together once their count is known
+	public CompletableFuture<List<CatalogEntry>> listFiles(){
+		return request(RequestType.REQUEST_TYPES.GET_CATALOG, 0, 0, 0, null).thenCompose(new Function<PendingRequest, CompletableFuture<List<CatalogEntry>>>() {
+			@Override
+			public CompletableFuture<List<CatalogEntry>> apply(PendingRequest first) {
+				final CatalogResponseType firstPage=new CatalogResponseType(first.getResponse());
+				final List<CompletableFuture<PendingRequest>> pages=new ArrayList<CompletableFuture<PendingRequest>>();
+				for(int page=1;page<firstPage.getPageCount();page++){
+					pages.add(request(RequestType.REQUEST_TYPES.GET_CATALOG, 0, page, 0, null));
+				}
+				return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[pages.size()])).thenApply(new Function<Void, List<CatalogEntry>>() {
+					@Override
+					public List<CatalogEntry> apply(Void ignored) {
+						List<CatalogEntry> entries=new ArrayList<CatalogEntry>(Arrays.asList(firstPage.getEntries()));
+						for(CompletableFuture<PendingRequest> page:pages){
+							entries.addAll(Arrays.asList(new CatalogResponseType(page.join().getResponse()).getEntries()));
+						}
+						for(CatalogEntry entry:entries){
+							session.putFileSize(entry.getFile_id(), entry.getSize());
+						}
+						return entries;
+					}
+				});
+			}
+		});
+	}
+
+	public CompletableFuture<Long> size(final int file_id){
+		return request(RequestType.REQUEST_TYPES.GET_FILE_SIZE, file_id, 0, 0, null).thenApply(new Function<PendingRequest, Long>() {
+			@Override
+			public Long apply(PendingRequest request) {
+				long size=new FileSizeResponseType(request.getResponse()).getFileSize();
+				session.putFileSize(file_id, size);
+				return size;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> download(int file_id, ChunkSink sink){
+		return download(file_id, sink, null);
+	}
+
+	/*
+	 * Whole file into sink, which is written from the receiver thread and not closed.
+	 * The size is asked for first; progress may be null.
+	 */
+	public CompletableFuture<Void> download(final int file_id, final ChunkSink sink, final ProgressListener progress){
+		return size(file_id).thenCompose(new Function<Long, CompletableFuture<Void>>() {
+			@Override
+			public CompletableFuture<Void> apply(final Long size) {
+				if (size==0){
+					return CompletableFuture.completedFuture(null);
+				}
+				ChunkSink target=sink;
+				if (progress!=null){
+					final AtomicLong received=new AtomicLong();
+					target=new ChunkSink() {
+						@Override
+						public boolean write(long start_byte, byte[] buf, int offset, int length) throws IOException {
+							boolean taken=sink.write(start_byte, buf, offset, length);
+							if (taken){
+								progress.onProgress(file_id, received.addAndGet(length), size);
+							}
+							return taken;
+						}
+
+						@Override
+						public void close() throws IOException {
+							sink.close();
+						}
+					};
+				}
+				return request(RequestType.REQUEST_TYPES.GET_FILE_DATA, file_id, 1, size, target).thenApply(new Function<PendingRequest, Void>() {
+					@Override
+					public Void apply(PendingRequest request) {
+						return null;
+					}
+				});
+			}
+		});
+	}
+
+	public void close(){
+		session.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options=new HashMap<String, String>();
+		options.put("downloads", "100");
+		for(String arg:args){
+			int index=arg.indexOf('=');
+			if (index<0){
+				throw new IllegalArgumentException("key=value expected: "+arg);
+			}
+			options.put(arg.substring(0, index), arg.substring(index+1));
+		}
+		if (!options.containsKey("server")){
+			throw new IllegalArgumentException("server=ip:port is mandatory");
+		}
+		String[] adr=options.get("server").split(":");
+		AsyncClient client=new AsyncClient(adr[0], Integer.parseInt(adr[1]));
+		List<CatalogEntry> files=client.listFiles().get();
+		if (files.isEmpty()){
+			throw new IOException("No files on "+options.get("server"));
+		}
+		int downloads=Integer.parseInt(options.get("downloads"));
+		final CountDownLatch latch=new CountDownLatch(downloads);
+		final AtomicInteger failed=new AtomicInteger();
+		final AtomicLong bytes=new AtomicLong();
+		final List<RandomAccessFileSink> sinks=new ArrayList<RandomAccessFileSink>();
+		long startTime=System.nanoTime();
+		for(int i=0;i<downloads;i++){
+			final CatalogEntry entry=files.get(i%files.size());
+			RandomAccessFileSink sink=new RandomAccessFileSink(dummyClient.downloadTarget(dummyClient.DOWNLOADS_FOLDER+"/async", i+"-"+entry.getFile_name()), entry.getSize());
+			sinks.add(sink);
+			client.download(entry.getFile_id(), sink).whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void result, Throwable failure) {
+					if (failure!=null){
+						loggerManager.getInstance(AsyncClient.class).error(entry.getFile_name()+": "+failure.toString());
+						failed.incrementAndGet();
+					}
+					else{
+						bytes.addAndGet(entry.getSize());
+					}
+					latch.countDown();
+				}
+			});
+		}
+		System.out.println(downloads+" downloads started, live threads: "+Thread.activeCount());
+		latch.await();
+		long elapsed=(System.nanoTime()-startTime)/1000000;
+		for(RandomAccessFileSink sink:sinks){
+			sink.close();
+		}
+		System.out.println(String.format("%d downloads, %d failed, %d bytes in %d ms, live threads: %d", downloads, failed.get(), bytes.get(), elapsed, Thread.activeCount()));
+		client.close();
+	}
+}
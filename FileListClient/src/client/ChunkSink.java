@@ -0,0 +1,10 @@
+package client;
+
+import java.io.IOException;
+
+public interface ChunkSink {
+	//start_byte is 1 based like the protocol ranges, false means the chunk was not taken and has to be fetched again
+	boolean write(long start_byte, byte[] buf, int offset, int length) throws IOException;
+
+	void close() throws IOException;
+}
@@ -0,0 +1,60 @@
+package client;
+
+import model.ResponseType;
+
+/*
+ * Data size a session asks for in its GET_FILE_DATA requests. It starts at the largest
+ * size the path carried when it was negotiated. Every interval the share of the data
+ * that had to be asked for again decides: above HIGH_LOSS the size is cut by a quarter,
+ * so a lost datagram takes less with it and fewer fragments are at stake; below
+ * LOW_LOSS it grows back by STEP, never beyond the negotiated size.
+ */
+public class ChunkSizePolicy {
+	public static final double HIGH_LOSS=0.05;
+	public static final double LOW_LOSS=0.01;
+	private static final long INTERVAL_NANOS=200L*1000000;
+	private static final int STEP=128;
+	//intervals with less traffic than this say too little about the loss
+	private static final long MIN_SAMPLE_BYTES=64*1024;
+
+	private int ceiling;
+	private int size;
+	private long lastChange;
+	private long markReceived=0;
+	private long markResent=0;
+
+	public ChunkSizePolicy(int ceiling){
+		this.ceiling=ceiling;
+		this.size=ceiling;
+		this.lastChange=System.nanoTime();
+	}
+
+	//size for the next request, received and resent are the session's byte counters so far
+	public synchronized int next(long received, long resent){
+		long now=System.nanoTime();
+		long receivedDelta=received-markReceived;
+		long resentDelta=resent-markResent;
+		if (now-lastChange<INTERVAL_NANOS || receivedDelta+resentDelta<MIN_SAMPLE_BYTES){
+			return size;
+		}
+		double loss=(double)resentDelta/(receivedDelta+resentDelta);
+		if (loss>HIGH_LOSS){
+			size=Math.max(ResponseType.MIN_NEGOTIATED_DATA_SIZE, size*3/4);
+		}
+		else if (loss<LOW_LOSS){
+			size=Math.min(ceiling, size+STEP);
+		}
+		markReceived=received;
+		markResent=resent;
+		lastChange=now;
+		return size;
+	}
+
+	public synchronized int getSize(){
+		return size;
+	}
+
+	public synchronized int getCeiling(){
+		return ceiling;
+	}
+}
@@ -0,0 +1,764 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import model.CatalogEntry;
+import model.CatalogQuery;
+import model.BusyResponseType;
+import model.ChunkRecipeResponseType;
+import model.ContentChunker;
+import model.CatalogResponseType;
+import model.DataSizeResponseType;
+import model.DirectoryEntry;
+import model.DirectoryResponseType;
+import model.FileDataResponseFlyweight;
+import model.FileDescriptor;
+import model.FileListResponseType;
+import model.FileSizeResponseType;
+import model.HashesResponseType;
+import model.MerkleTree;
+import model.QueryResponseType;
+import model.RangeList;
+import model.RangeSet;
+import model.RequestType;
+import model.ResponseType;
+import model.RetryPolicy;
+
+/*
+ * Long lived connection to one server: a single socket, requests tagged with a request
+ * id and a receiver thread that routes every response to its PendingRequest by the id
+ * trailer the server echoes. Any number of requests can be outstanding at once.
+ */
+public class ClientSession {
+	public static final int RESPONSE_BUFFER_SIZE=ResponseType.MAX_UDP_PAYLOAD;
+	public static final int MAX_RETRIES=RetryPolicy.MAX_RETRIES;
+	public static final int MAX_BUSY_RETRIES=RetryPolicy.MAX_BUSY_RETRIES;
+	//UDP payloads probed by negotiateDataSize, largest first: Ethernet, tunnels, IPv6 minimum, and two fallbacks
+	public static final int[] PROBE_PAYLOAD_SIZES={1472, 1400, 1280, 1024, 576};
+	//RTOs a negotiation waits for its largest probe
+	public static final int PROBE_ROUNDS=3;
+
+	private String ip=null;
+	private int port;
+	private InetAddress address=null;
+	private DatagramSocket socket=null;
+	private LinkEstimator estimator=null;
+	private AtomicInteger requestIds=new AtomicInteger();
+	private ConcurrentHashMap<Integer, PendingRequest> pending=new ConcurrentHashMap<Integer, PendingRequest>();
+	private ConcurrentHashMap<Integer, Long> fileSizes=new ConcurrentHashMap<Integer, Long>();
+	private Thread receiver=null;
+	private volatile boolean closed=false;
+	//null until a data size is negotiated, GET_FILE_DATA then carries the policy's size
+	private volatile ChunkSizePolicy chunkSizes=null;
+	//data bytes asked for again after a request stalled, the loss signal of chunkSizes
+	private AtomicLong resentBytes=new AtomicLong();
+
+	public ClientSession(String ip, int port) throws IOException{
+		this.ip=ip;
+		this.port=port;
+		this.address=InetAddress.getByName(ip);
+		this.socket=new DatagramSocket();
+		this.socket.setReceiveBufferSize(dummyClient.RECEIVE_BUFFER_SIZE);
+		this.estimator=LinkEstimator.get(ip, port);
+		this.receiver=new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receiveLoop();
+			}
+		}, "session-"+ip+":"+port);
+		this.receiver.setDaemon(true);
+		this.receiver.start();
+	}
+
+	public String getIp() {
+		return ip;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public LinkEstimator getEstimator() {
+		return estimator;
+	}
+
+	private int nextRequestId(){
+		int request_id;
+		do{
+			request_id=requestIds.incrementAndGet();
+		} while(request_id==0);
+		return request_id;
+	}
+
+	//sends without waiting, sink receives the payload of GET_FILE_DATA requests
+	public PendingRequest submit(int requestType, int file_id, long start, long end, ChunkSink sink) throws IOException{
+		return submit(requestType, file_id, start, end, sink, new RangeSet());
+	}
+
+	//data ranges already in received are not requested
+	public PendingRequest submit(int requestType, int file_id, long start, long end, ChunkSink sink, RangeSet received) throws IOException{
+		return submit(requestType, file_id, start, end, sink, received, null);
+	}
+
+	//payload goes after the request id, e.g. the pattern and cursor of QUERY_CATALOG
+	public PendingRequest submitWithPayload(int requestType, int file_id, long start, long end, byte[] payload) throws IOException{
+		return submit(requestType, file_id, start, end, null, new RangeSet(), payload);
+	}
+
+	private PendingRequest submit(int requestType, int file_id, long start, long end, ChunkSink sink, RangeSet received, byte[] payload) throws IOException{
+		if (requestType==RequestType.REQUEST_TYPES.GET_FILE_DATA){
+			Long size=fileSizes.get(file_id);
+			if (size!=null && end>size){
+				end=size;
+			}
+			ChunkSizePolicy policy=chunkSizes;
+			if (policy!=null){
+				payload=RequestType.encodeDataSize(policy.next(estimator.getReceivedBytes(), resentBytes.get()));
+			}
+		}
+		PendingRequest request=new PendingRequest(nextRequestId(), requestType, file_id, start, end, sink, received);
+		request.setPayload(payload);
+		pending.put(request.getRequest_id(), request);
+		if (requestType==RequestType.REQUEST_TYPES.GET_FILE_DATA){
+			//reordering and loss of the request's own data, counted until it completes however it ends
+			final LinkEstimator.Range linkRange=estimator.openRange(start, end, received);
+			request.setLinkRange(linkRange);
+			request.getCompletion().thenRun(new Runnable() {
+				@Override
+				public void run() {
+					estimator.onRangeFinished(linkRange);
+				}
+			});
+			List<long[]> missing=received.missing(start, end);
+			if (missing.isEmpty()){
+				request.complete(ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS, null);
+			}
+			for(long[] range:missing){
+				send(request, range[0], range[1]);
+			}
+		}
+		else{
+			send(request, start, end);
+		}
+		return request;
+	}
+
+	/*
+	 * NACK request of a multicast download: unicast repairs tagged with its id are written
+	 * to sink and recorded in received like GET_FILE_DATA answers. It is not sent until
+	 * sendNack and stays registered until release.
+	 */
+	PendingRequest openRepairs(int file_id, long size, ChunkSink sink, RangeSet received){
+		PendingRequest request=new PendingRequest(nextRequestId(), RequestType.REQUEST_TYPES.NACK, file_id, 1, size, sink, received);
+		pending.put(request.getRequest_id(), request);
+		return request;
+	}
+
+	//the first RangeList.MAX_RANGES of missing go out, the rest with a later NACK
+	void sendNack(PendingRequest request, List<long[]> missing) throws IOException{
+		request.setPayload(RangeList.encode(missing));
+		send(request, request.getStart_byte(), request.getEnd_byte());
+	}
+
+	void release(PendingRequest request){
+		pending.remove(request.getRequest_id());
+	}
+
+	/*
+	 * Stops a GET_FILE_DATA whose data is no longer needed, e.g. because another source
+	 * delivered it. The waiter returns as if the request had completed and the server is
+	 * told to stop sending; the CANCEL itself is not answered or resent.
+	 */
+	public void cancel(PendingRequest request) throws IOException{
+		if (pending.remove(request.getRequest_id())==null){
+			return;
+		}
+		request.complete(ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS, null);
+		byte[] sendData=new RequestType(RequestType.REQUEST_TYPES.CANCEL, request.getFile_id(), request.getStart_byte(), request.getEnd_byte(), request.getRequest_id()).toByteArray();
+		socket.send(new DatagramPacket(sendData, sendData.length, address, port));
+	}
+
+	private void send(PendingRequest request, long start, long end) throws IOException{
+		byte[] sendData=new RequestType(request.getRequestType(), request.getFile_id(), start, end, request.getRequest_id(), request.getPayload()).toByteArray();
+		request.onSent(System.nanoTime());
+		socket.send(new DatagramPacket(sendData, sendData.length, address, port));
+	}
+
+	//timedOut tells a resend after an RTO without progress, whose missing ranges were lost, from one after BUSY
+	private void resend(PendingRequest request, boolean timedOut) throws IOException{
+		if (request.getRequestType()==RequestType.REQUEST_TYPES.GET_FILE_DATA){
+			for(long[] range:request.getReceived().missing(request.getStart_byte(), request.getEnd_byte())){
+				resentBytes.addAndGet(range[1]-range[0]+1);
+				if (timedOut){
+					estimator.onLost(request.getLinkRange(), range[0], range[1]);
+				}
+				send(request, range[0], range[1]);
+			}
+		}
+		else{
+			send(request, request.getStart_byte(), request.getEnd_byte());
+		}
+	}
+
+	//blocks until the request completes, resending what is missing after every RTO without progress
+	public PendingRequest await(PendingRequest request) throws IOException{
+		RetryPolicy retry=new RetryPolicy(request.getProgress());
+		try{
+			while(!request.isDone()){
+				request.awaitDone(estimator.getRtoNanos()/1000000);
+				if (request.isDone()){
+					break;
+				}
+				//a catalog page whose inline chunk was lost, getFileData fetches the chunk
+				if (request.releaseHeld()){
+					break;
+				}
+				long busyMillis=request.takeBusyMillis();
+				switch(retry.onTimeout(request.getProgress(), busyMillis, request.getBusyResponses())){
+					case RetryPolicy.GIVE_UP_BUSY:
+						throw new IOException("Server "+ip+":"+port+" busy for request_id:"+request.getRequest_id());
+					case RetryPolicy.GIVE_UP:
+						throw new SocketTimeoutException("No response from "+ip+":"+port+" for request_id:"+request.getRequest_id());
+					case RetryPolicy.BACK_OFF:
+						Thread.sleep(busyMillis);
+						retry.onResent(request.getProgress());
+						resend(request, false);
+						break;
+					case RetryPolicy.RESEND:
+						resend(request, true);
+						break;
+					default:
+						//data still arrives
+				}
+			}
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException(ex.toString());
+		} finally {
+			pending.remove(request.getRequest_id());
+		}
+		if (request.getFailure()!=null){
+			throw new IOException(request.getFailure());
+		}
+		if (request.getResponseType()>=ResponseType.RESPONSE_TYPES.INVALID_REQUEST_TYPE){
+			throw new IOException("Response_type:"+request.getResponseType()+" for request_id:"+request.getRequest_id());
+		}
+		return request;
+	}
+
+	/*
+	 * Finds the largest data size the path carries. A NEGOTIATE_DATA_SIZE for each of
+	 * PROBE_PAYLOAD_SIZES goes out at once and the server pads every answer to the size it
+	 * accepts; the largest answer that arrives wins. Probes larger than the best answer
+	 * are resent for up to PROBE_ROUNDS RTOs, a single loss must not shrink the size. Java
+	 * sockets cannot set don't-fragment, so a path that fragments instead of dropping
+	 * passes the probe; the loss feedback of ChunkSizePolicy then shrinks the size. Returns
+	 * the data size, or 0 when the server does not negotiate and keeps its default.
+	 */
+	public int negotiateDataSize() throws IOException{
+		PendingRequest[] probes=new PendingRequest[PROBE_PAYLOAD_SIZES.length];
+		int best=probes.length;
+		try{
+			for(int round=0;round<PROBE_ROUNDS && best>0;round++){
+				for(int i=0;i<best;i++){
+					if (probes[i]==null){
+						probes[i]=submit(RequestType.REQUEST_TYPES.NEGOTIATE_DATA_SIZE, 0, PROBE_PAYLOAD_SIZES[i]-ResponseType.HEADER_SIZE-ResponseType.REQUEST_ID_SIZE, 0, null);
+					}
+					else{
+						resend(probes[i], true);
+					}
+				}
+				long deadline=System.currentTimeMillis()+estimator.getRtoNanos()/1000000;
+				for(int i=0;i<best;i++){
+					long remaining=deadline-System.currentTimeMillis();
+					if (remaining>0){
+						probes[i].awaitDone(remaining);
+					}
+					//the largest answered probe so far, smaller ones have nothing to add
+					if (probes[i].isDone()){
+						best=i;
+						break;
+					}
+				}
+			}
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException(ex.toString());
+		} finally {
+			for(PendingRequest probe:probes){
+				if (probe!=null){
+					release(probe);
+				}
+			}
+		}
+		if (best==probes.length){
+			throw new SocketTimeoutException("No probe answered by "+ip+":"+port);
+		}
+		if (probes[best].getResponseType()!=ResponseType.RESPONSE_TYPES.NEGOTIATE_DATA_SIZE_SUCCESS){
+			chunkSizes=null;
+			return 0;
+		}
+		DataSizeResponseType response=new DataSizeResponseType(probes[best].getResponse());
+		loggerManager.getInstance(this.getClass()).debug(response.toString());
+		chunkSizes=new ChunkSizePolicy(response.getDataSize());
+		return response.getDataSize();
+	}
+
+	//0 when not negotiated, the server's default then applies
+	public int getDataSize(){
+		ChunkSizePolicy policy=chunkSizes;
+		return policy==null?0:policy.getSize();
+	}
+
+	/*
+	 * await without a waiting thread: the retries and BUSY back-off of await run as tasks
+	 * on timers, and the future completes on the receiver thread, or exceptionally with
+	 * what await would throw. Stages added to it must not block.
+	 */
+	public CompletableFuture<PendingRequest> awaitAsync(PendingRequest request, ScheduledExecutorService timers){
+		final Retransmitter retransmitter=new Retransmitter(request, timers);
+		CompletableFuture<PendingRequest> result=request.getCompletion().thenApply(new Function<PendingRequest, PendingRequest>() {
+			@Override
+			public PendingRequest apply(PendingRequest done) {
+				retransmitter.cancel();
+				pending.remove(done.getRequest_id());
+				if (done.getFailure()!=null){
+					throw new CompletionException(done.getFailure() instanceof IOException?done.getFailure():new IOException(done.getFailure()));
+				}
+				if (done.getResponseType()>=ResponseType.RESPONSE_TYPES.INVALID_REQUEST_TYPE){
+					throw new CompletionException(new IOException("Response_type:"+done.getResponseType()+" for request_id:"+done.getRequest_id()));
+				}
+				return done;
+			}
+		});
+		retransmitter.schedule(estimator.getRtoNanos()/1000000);
+		return result;
+	}
+
+	//the loop of await as a task that reschedules itself until the request is done
+	private class Retransmitter implements Runnable{
+		private PendingRequest request=null;
+		private ScheduledExecutorService timers=null;
+		private RetryPolicy retry=null;
+		//set after a BUSY answer, the resend waits for the server's retry-after
+		private boolean resendDue=false;
+		private volatile ScheduledFuture<?> next=null;
+		private volatile boolean cancelled=false;
+
+		Retransmitter(PendingRequest request, ScheduledExecutorService timers){
+			this.request=request;
+			this.timers=timers;
+			this.retry=new RetryPolicy(request.getProgress());
+		}
+
+		void schedule(long delayMillis){
+			if (!cancelled && !request.isDone()){
+				next=timers.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		void cancel(){
+			cancelled=true;
+			ScheduledFuture<?> scheduled=next;
+			if (scheduled!=null){
+				scheduled.cancel(false);
+			}
+		}
+
+		@Override
+		public void run() {
+			if (cancelled || request.isDone()){
+				return;
+			}
+			try {
+				if (resendDue){
+					resendDue=false;
+					retry.onResent(request.getProgress());
+					resend(request, false);
+				}
+				else if (request.releaseHeld()){
+					return;
+				}
+				else{
+					long busyMillis=request.takeBusyMillis();
+					switch(retry.onTimeout(request.getProgress(), busyMillis, request.getBusyResponses())){
+						case RetryPolicy.GIVE_UP_BUSY:
+							request.fail(new IOException("Server "+ip+":"+port+" busy for request_id:"+request.getRequest_id()));
+							return;
+						case RetryPolicy.GIVE_UP:
+							request.fail(new SocketTimeoutException("No response from "+ip+":"+port+" for request_id:"+request.getRequest_id()));
+							return;
+						case RetryPolicy.BACK_OFF:
+							resendDue=true;
+							schedule(busyMillis);
+							return;
+						case RetryPolicy.RESEND:
+							resend(request, true);
+							break;
+						default:
+							//data still arrives
+					}
+				}
+			} catch (IOException ex) {
+				request.fail(ex);
+				return;
+			}
+			schedule(estimator.getRtoNanos()/1000000);
+		}
+	}
+
+	public FileDescriptor[] getFileList() throws IOException{
+		PendingRequest request=await(submit(RequestType.REQUEST_TYPES.GET_FILE_LIST, 0, 0, 0, null));
+		FileListResponseType response=new FileListResponseType(request.getResponse());
+		loggerManager.getInstance(this.getClass()).debug(response.toString());
+		return response.getFileDescriptors();
+	}
+
+	//lets GET_FILE_DATA requests be trimmed to sizes learned outside this class
+	void putFileSize(int file_id, long size){
+		fileSizes.put(file_id, size);
+	}
+
+	public long getFileSize(int file_id) throws IOException{
+		PendingRequest request=await(submit(RequestType.REQUEST_TYPES.GET_FILE_SIZE, file_id, 0, 0, null));
+		FileSizeResponseType response=new FileSizeResponseType(request.getResponse());
+		loggerManager.getInstance(this.getClass()).debug(response.toString());
+		fileSizes.put(file_id, response.getFileSize());
+		return response.getFileSize();
+	}
+
+	//all size requests go out before the first answer is awaited
+	public long[] getFileSizes(int[] file_ids) throws IOException{
+		PendingRequest[] requests=new PendingRequest[file_ids.length];
+		for(int i=0;i<file_ids.length;i++){
+			requests[i]=submit(RequestType.REQUEST_TYPES.GET_FILE_SIZE, file_ids[i], 0, 0, null);
+		}
+		long[] sizes=new long[file_ids.length];
+		for(int i=0;i<file_ids.length;i++){
+			sizes[i]=new FileSizeResponseType(await(requests[i]).getResponse()).getFileSize();
+			fileSizes.put(file_ids[i], sizes[i]);
+		}
+		return sizes;
+	}
+
+	public void getFileData(int file_id, long start, long end, ChunkSink sink) throws IOException{
+		getFileData(file_id, start, end, sink, new RangeSet());
+	}
+
+	public void getFileData(int file_id, long start, long end, ChunkSink sink, RangeSet received) throws IOException{
+		await(submit(RequestType.REQUEST_TYPES.GET_FILE_DATA, file_id, start, end, sink, received));
+	}
+
+	/*
+	 * Leaf hashes of a file's hash tree. The first page tells the leaf count and page size,
+	 * the remaining pages are pipelined. Fails if the leaves do not add up to the root.
+	 */
+	public MerkleTree getHashes(int file_id) throws IOException{
+		PendingRequest first=await(submit(RequestType.REQUEST_TYPES.GET_HASHES, file_id, 0, Integer.MAX_VALUE, null));
+		HashesResponseType firstPage=new HashesResponseType(first.getResponse());
+		loggerManager.getInstance(this.getClass()).debug(firstPage.toString());
+		byte[][] leaves=new byte[firstPage.getLeafCount()][];
+		System.arraycopy(firstPage.getLeaves(), 0, leaves, 0, firstPage.getLeaves().length);
+		int perPage=firstPage.getLeaves().length;
+		List<PendingRequest> pages=new ArrayList<PendingRequest>();
+		for(int leaf=perPage;leaf<leaves.length;leaf+=perPage){
+			pages.add(submit(RequestType.REQUEST_TYPES.GET_HASHES, file_id, leaf, Math.min(leaves.length, leaf+perPage)-1, null));
+		}
+		for(PendingRequest page:pages){
+			HashesResponseType response=new HashesResponseType(await(page).getResponse());
+			System.arraycopy(response.getLeaves(), 0, leaves, response.getFirstLeaf(), response.getLeaves().length);
+		}
+		MerkleTree tree=new MerkleTree(leaves);
+		if (!Arrays.equals(tree.getRoot(), firstPage.getRoot())){
+			throw new IOException("Hash tree of file_id:"+file_id+" does not match its root");
+		}
+		return tree;
+	}
+
+	//content defined chunks of the server's copy, pipelined like getHashes
+	public ContentChunker.Chunk[] getChunkRecipe(int file_id) throws IOException{
+		PendingRequest first=await(submit(RequestType.REQUEST_TYPES.GET_CHUNKS, file_id, 0, Integer.MAX_VALUE, null));
+		ChunkRecipeResponseType firstPage=new ChunkRecipeResponseType(first.getResponse());
+		loggerManager.getInstance(this.getClass()).debug(firstPage.toString());
+		ContentChunker.Chunk[] chunks=new ContentChunker.Chunk[firstPage.getChunkCount()];
+		System.arraycopy(firstPage.getChunks(), 0, chunks, 0, firstPage.getChunks().length);
+		int perPage=firstPage.getChunks().length;
+		List<PendingRequest> pages=new ArrayList<PendingRequest>();
+		for(int chunk=perPage;chunk<chunks.length;chunk+=perPage){
+			pages.add(submit(RequestType.REQUEST_TYPES.GET_CHUNKS, file_id, chunk, Math.min(chunks.length, chunk+perPage)-1, null));
+		}
+		for(PendingRequest page:pages){
+			ChunkRecipeResponseType response=new ChunkRecipeResponseType(await(page).getResponse());
+			System.arraycopy(response.getChunks(), 0, chunks, response.getFirstChunk(), response.getChunks().length);
+		}
+		return chunks;
+	}
+
+	/*
+	 * Writes every chunk of the server's copy that basis also has to sink and records it in
+	 * received, so only the remaining ranges travel. Returns the number of bytes reused.
+	 */
+	private long copyMatchingChunks(int file_id, File basis, AsyncChunkSink sink, RangeSet received) throws IOException{
+		HashMap<String, ContentChunker.Chunk> local=new HashMap<String, ContentChunker.Chunk>();
+		InputStream in=new BufferedInputStream(new FileInputStream(basis));
+		try {
+			for(ContentChunker.Chunk chunk:ContentChunker.chunk(in)){
+				local.put(chunk.getHashKey(), chunk);
+			}
+		} finally {
+			in.close();
+		}
+		long reused=0;
+		byte[] buf=new byte[ContentChunker.MAX_CHUNK_SIZE];
+		RandomAccessFile raf=new RandomAccessFile(basis, "r");
+		try {
+			for(ContentChunker.Chunk chunk:getChunkRecipe(file_id)){
+				ContentChunker.Chunk match=local.get(chunk.getHashKey());
+				if (match==null || match.getLength()!=chunk.getLength()){
+					continue;
+				}
+				raf.seek(match.getOffset());
+				raf.readFully(buf, 0, match.getLength());
+				//the ring refuses when full, wait for the writer instead of dropping local data
+				while(!sink.write(chunk.getStart_byte(), buf, 0, chunk.getLength())){
+					sink.flush();
+				}
+				reused+=received.add(chunk.getStart_byte(), chunk.getEnd_byte());
+			}
+		} finally {
+			raf.close();
+		}
+		loggerManager.getInstance(this.getClass()).debug("Reused "+reused+" bytes of "+basis.getName()+" for file_id:"+file_id);
+		return reused;
+	}
+
+	public void getVerifiedFileData(int file_id, long size, ChunkSink target) throws IOException{
+		getVerifiedFileData(file_id, size, target, null);
+	}
+
+	/*
+	 * Downloads the whole file through a VerifyingChunkSink. Blocks are checked while the
+	 * transfer runs, the ones that fail are taken out of the received ranges and fetched
+	 * again. With a basis file, chunks it shares with the server's copy are taken from it
+	 * and not fetched; basis must not be the file target writes to. target is closed before
+	 * returning. Returns the number of bytes reused from basis.
+	 */
+	public long getVerifiedFileData(int file_id, long size, ChunkSink target, File basis) throws IOException{
+		AsyncChunkSink sink=null;
+		long reused=0;
+		try{
+			VerifyingChunkSink verifier=new VerifyingChunkSink(target, getHashes(file_id), size);
+			//hashing runs on the sink's writer thread next to the receiver
+			sink=new AsyncChunkSink(verifier);
+			RangeSet received=new RangeSet();
+			if (basis!=null && basis.isFile() && size>0){
+				reused=copyMatchingChunks(file_id, basis, sink, received);
+			}
+			for(int attempt=0;size>0;attempt++){
+				getFileData(file_id, 1, size, sink, received);
+				sink.flush();
+				List<Integer> badBlocks=verifier.takeBadBlocks();
+				if (badBlocks.isEmpty()){
+					break;
+				}
+				if (attempt>=MAX_RETRIES){
+					throw new IOException(badBlocks.size()+" blocks of file_id:"+file_id+" still corrupted after "+attempt+" refetches");
+				}
+				for(int block:badBlocks){
+					received.remove(MerkleTree.blockStart(block), MerkleTree.blockEnd(block, size));
+				}
+			}
+		} finally {
+			if (sink!=null){
+				sink.close();
+			}
+			else{
+				target.close();
+			}
+		}
+		return reused;
+	}
+
+	/*
+	 * Entries whose name starts with pattern, or matches it as a glob when it has '*' or
+	 * '?', in name order. Pages follow each other by the cursor, the name of the last
+	 * entry received, so only the matches travel.
+	 */
+	public List<CatalogEntry> query(String pattern) throws IOException{
+		List<CatalogEntry> entries=new ArrayList<CatalogEntry>();
+		CatalogQuery query=new CatalogQuery(pattern, "");
+		while(true){
+			PendingRequest request=await(submitWithPayload(RequestType.REQUEST_TYPES.QUERY_CATALOG, 0, 0, 0, query.toByteArray()));
+			QueryResponseType response=new QueryResponseType(request.getResponse());
+			loggerManager.getInstance(this.getClass()).debug(response.toString());
+			for(CatalogEntry entry:response.getEntries()){
+				entries.add(entry);
+				fileSizes.put(entry.getFile_id(), entry.getSize());
+			}
+			if (!response.hasMore() || response.getEntries().length==0){
+				return entries;
+			}
+			query=query.next(response.getEntries()[response.getEntries().length-1].getFile_name());
+		}
+	}
+
+	/*
+	 * Children of one directory in name order, 0 is the root. Files carry the file_id to
+	 * download them with, directories the id to list them with; the server indexes a
+	 * subtree the first time it is listed.
+	 */
+	public List<DirectoryEntry> listDirectory(int directory_id) throws IOException{
+		List<DirectoryEntry> entries=new ArrayList<DirectoryEntry>();
+		String after="";
+		while(true){
+			PendingRequest request=await(submitWithPayload(RequestType.REQUEST_TYPES.LIST_DIRECTORY, 0, directory_id, 0, DirectoryEntry.utf8(after)));
+			DirectoryResponseType response=new DirectoryResponseType(request.getResponse());
+			loggerManager.getInstance(this.getClass()).debug(response.toString());
+			for(DirectoryEntry entry:response.getEntries()){
+				entries.add(entry);
+				if (!entry.isDirectory()){
+					fileSizes.put(entry.getId(), entry.getSize());
+				}
+			}
+			if (!response.hasMore() || response.getEntries().length==0){
+				return entries;
+			}
+			after=response.getEntries()[response.getEntries().length-1].getName();
+		}
+	}
+
+	/*
+	 * Whole catalog with sizes, mtimes and hashes. The first page is requested alone, the
+	 * rest are pipelined once the page count is known. With inline_file_id the first chunk
+	 * of that file is written to sink and recorded in inlined, so a following getFileData
+	 * with the same RangeSet skips it. A first page that arrives before the chunk waits for
+	 * it up to an RTO; an empty file has no chunk and always takes that long.
+	 */
+	public CatalogEntry[] getCatalog(int inline_file_id, ChunkSink sink, RangeSet inlined) throws IOException{
+		if (inlined==null){
+			inlined=new RangeSet();
+		}
+		PendingRequest first=await(submit(RequestType.REQUEST_TYPES.GET_CATALOG, inline_file_id, 0, 0, sink, inlined));
+		CatalogResponseType firstPage=new CatalogResponseType(first.getResponse());
+		loggerManager.getInstance(this.getClass()).debug(firstPage.toString());
+		List<CatalogEntry> entries=new ArrayList<CatalogEntry>(Arrays.asList(firstPage.getEntries()));
+		PendingRequest[] pages=new PendingRequest[Math.max(0, firstPage.getPageCount()-1)];
+		for(int i=0;i<pages.length;i++){
+			pages[i]=submit(RequestType.REQUEST_TYPES.GET_CATALOG, 0, i+1, 0, null);
+		}
+		for(PendingRequest page:pages){
+			CatalogResponseType response=new CatalogResponseType(await(page).getResponse());
+			loggerManager.getInstance(this.getClass()).debug(response.toString());
+			entries.addAll(Arrays.asList(response.getEntries()));
+		}
+		for(CatalogEntry entry:entries){
+			fileSizes.put(entry.getFile_id(), entry.getSize());
+		}
+		return entries.toArray(new CatalogEntry[entries.size()]);
+	}
+
+	private void receiveLoop(){
+		byte[] receiveData=new byte[RESPONSE_BUFFER_SIZE];
+		DatagramPacket receivePacket=new DatagramPacket(receiveData, receiveData.length);
+		FileDataResponseFlyweight response=new FileDataResponseFlyweight();
+		while(!closed){
+			receivePacket.setLength(receiveData.length);
+			try{
+				socket.receive(receivePacket);
+			} catch(IOException ex){
+				if (!closed){
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+				continue;
+			}
+			long receiveTime=System.nanoTime();
+			int length=receivePacket.getLength();
+			if (length<ResponseType.HEADER_SIZE+ResponseType.REQUEST_ID_SIZE){
+				continue;
+			}
+			//late answers of finished requests find no waiter and are dropped
+			PendingRequest request=pending.get(ResponseType.readRequestId(receiveData, length));
+			if (request==null){
+				continue;
+			}
+			deliver(request, response.wrap(receiveData, length-ResponseType.REQUEST_ID_SIZE), receiveTime);
+		}
+	}
+
+	private void deliver(PendingRequest request, FileDataResponseFlyweight response, long receiveTime){
+		//repairs answer a NACK only after the server's repair window, no RTT sample
+		if (request.onAnswered() && request.getRequestType()!=RequestType.REQUEST_TYPES.NACK){
+			estimator.onRttSample(receiveTime-request.getSentTime());
+		}
+		if (response.getResponseType()==ResponseType.RESPONSE_TYPES.BUSY){
+			request.onBusy(new BusyResponseType(Arrays.copyOf(response.getBuffer(), response.getLength())).getRetryAfterMillis());
+			return;
+		}
+		if (response.getResponseType()==ResponseType.RESPONSE_TYPES.GET_CATALOG_SUCCESS && request.getFile_id()!=0 && request.getSink()!=null
+				&& request.getReceived().size()==0){
+			//the page may overtake the inline first chunk, it waits for the chunk until the RTO runs out
+			request.hold(response.getResponseType(), Arrays.copyOf(response.getBuffer(), response.getLength()));
+			return;
+		}
+		if (response.getResponseType()!=ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS){
+			request.complete(response.getResponseType(), Arrays.copyOf(response.getBuffer(), response.getLength()));
+			return;
+		}
+		if (!response.isComplete()){
+			return;
+		}
+		RangeSet received=request.getReceived();
+		if (request.getSink()==null){
+			received.add(response.getStart_byte(), response.getEnd_byte());
+		}
+		else if (!received.contains(response.getStart_byte(), response.getEnd_byte())){
+			try{
+				//a refused chunk stays missing and is asked for again like a lost one
+				if (!request.getSink().write(response.getStart_byte(), response.getBuffer(), response.getDataOffset(), response.getDataLength())){
+					return;
+				}
+			} catch(IOException ex){
+				request.fail(ex);
+				return;
+			}
+			received.add(response.getStart_byte(), response.getEnd_byte());
+			estimator.onDataReceived(request.getLinkRange(), response.getStart_byte(), response.getEnd_byte(), false, receiveTime);
+		}
+		else{
+			//counted as a duplicate, not written again
+			estimator.onDataReceived(request.getLinkRange(), response.getStart_byte(), response.getEnd_byte(), true, receiveTime);
+		}
+		request.onData();
+		//the inline chunk of a GET_CATALOG that came after its page
+		request.releaseHeld();
+	}
+
+	public void close(){
+		closed=true;
+		socket.close();
+		for(PendingRequest request:pending.values()){
+			request.fail(new IOException("Session closed"));
+		}
+	}
+}
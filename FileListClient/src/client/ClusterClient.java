@@ -0,0 +1,237 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import model.CatalogEntry;
+import model.HashRing;
+import model.RangeSet;
+import model.RequestType;
+import model.RoutingTableResponseType;
+
+/*
+ * Client of a cluster of servers that split the files by consistent hashing. The ring
+ * comes from any node's routing table; the catalog is the union of every node's, and
+ * sizes and data are fetched straight from a replica that owns the file. Of the
+ * replicas two are drawn at random and the one with fewer requests in flight from this
+ * client is used, ties go to the shorter RTT. File ids are per node, so the id of the
+ * chosen replica's entry is used.
+ *   java -classpath "bin:lib/*" client.ClusterClient server=127.0.0.1:5000 parallel=4
+ * downloads every file of the cluster to downloads/cluster, parallel at a time.
+ */
+public class ClusterClient {
+	private HashRing ring=null;
+	private Map<String, ClientSession> sessions=new HashMap<String, ClientSession>();
+	private ConcurrentHashMap<String, AtomicInteger> inflight=new ConcurrentHashMap<String, AtomicInteger>();
+	//file name to node to that node's entry
+	private volatile Map<String, Map<String, CatalogEntry>> files=new TreeMap<String, Map<String, CatalogEntry>>();
+	private Random random=new Random();
+
+	public ClusterClient(String ip, int port) throws IOException{
+		String seed=ip+":"+port;
+		ClientSession session=session(seed);
+		PendingRequest request=session.await(session.submit(RequestType.REQUEST_TYPES.GET_ROUTING_TABLE, 0, 0, 0, null));
+		RoutingTableResponseType response=new RoutingTableResponseType(request.getResponse());
+		loggerManager.getInstance(this.getClass()).debug(response.toString());
+		ring=response.getRing();
+		if (ring.getNodes().isEmpty()){
+			//not a cluster, the seed serves everything
+			ring=new HashRing(Collections.singletonList(seed), 1, 1);
+		}
+	}
+
+	public HashRing getRing(){
+		return ring;
+	}
+
+	private synchronized ClientSession session(String node) throws IOException{
+		ClientSession session=sessions.get(node);
+		if (session==null){
+			int index=node.lastIndexOf(':');
+			session=new ClientSession(node.substring(0, index), Integer.parseInt(node.substring(index+1)));
+			sessions.put(node, session);
+			inflight.put(node, new AtomicInteger());
+		}
+		return session;
+	}
+
+	//one entry per file, nodes that do not answer are skipped since their replicas hold the same files
+	public List<CatalogEntry> listFiles() throws IOException{
+		Map<String, Map<String, CatalogEntry>> merged=new TreeMap<String, Map<String, CatalogEntry>>();
+		IOException failure=null;
+		for(String node:ring.getNodes()){
+			CatalogEntry[] entries;
+			try {
+				entries=session(node).getCatalog(0, null, null);
+			} catch (IOException ex) {
+				loggerManager.getInstance(this.getClass()).warn("Catalog of "+node+" failed: "+ex.toString());
+				failure=ex;
+				continue;
+			}
+			for(CatalogEntry entry:entries){
+				Map<String, CatalogEntry> replicas=merged.get(entry.getFile_name());
+				if (replicas==null){
+					replicas=new HashMap<String, CatalogEntry>();
+					merged.put(entry.getFile_name(), replicas);
+				}
+				replicas.put(node, entry);
+			}
+		}
+		if (merged.isEmpty() && failure!=null){
+			throw failure;
+		}
+		files=merged;
+		List<CatalogEntry> result=new ArrayList<CatalogEntry>();
+		for(Map.Entry<String, Map<String, CatalogEntry>> file:merged.entrySet()){
+			result.add(file.getValue().values().iterator().next());
+		}
+		return result;
+	}
+
+	//owners of the file that listed it, in ring order, or any node that has it if the ring moved
+	private List<String> replicas(String file_name) throws IOException{
+		Map<String, CatalogEntry> holders=files.get(file_name);
+		if (holders==null){
+			throw new IOException("No node has "+file_name);
+		}
+		List<String> result=new ArrayList<String>();
+		for(String node:ring.owners(file_name)){
+			if (holders.containsKey(node)){
+				result.add(node);
+			}
+		}
+		if (result.isEmpty()){
+			result.addAll(holders.keySet());
+		}
+		return result;
+	}
+
+	//power of two choices over the replicas
+	private String pick(List<String> candidates) throws IOException{
+		if (candidates.size()==1){
+			return candidates.get(0);
+		}
+		int first=random.nextInt(candidates.size());
+		int second=random.nextInt(candidates.size()-1);
+		if (second>=first){
+			second++;
+		}
+		String a=candidates.get(first);
+		String b=candidates.get(second);
+		int loadA=inflight.get(a).get();
+		int loadB=inflight.get(b).get();
+		if (loadA!=loadB){
+			return loadA<loadB?a:b;
+		}
+		return session(a).getEstimator().getSmoothedRttMillis()<=session(b).getEstimator().getSmoothedRttMillis()?a:b;
+	}
+
+	public long getFileSize(String file_name) throws IOException{
+		String node=pick(replicas(file_name));
+		return session(node).getFileSize(files.get(file_name).get(node).getFile_id());
+	}
+
+	/*
+	 * Whole file into sink from one replica. If that replica fails, the remaining ones are
+	 * tried in turn and only the ranges still missing are fetched from them. Returns the
+	 * node that finished the download.
+	 */
+	public String download(String file_name, ChunkSink sink) throws IOException{
+		List<String> candidates=replicas(file_name);
+		RangeSet received=new RangeSet();
+		IOException failure=null;
+		while(!candidates.isEmpty()){
+			String node=pick(candidates);
+			candidates.remove(node);
+			CatalogEntry entry=files.get(file_name).get(node);
+			AtomicInteger load=inflight.get(node);
+			load.incrementAndGet();
+			try {
+				session(node).getFileData(entry.getFile_id(), 1, entry.getSize(), sink, received);
+				return node;
+			} catch (IOException ex) {
+				loggerManager.getInstance(this.getClass()).warn("Download of "+file_name+" from "+node+" failed: "+ex.toString());
+				failure=ex;
+			} finally {
+				load.decrementAndGet();
+			}
+		}
+		throw failure;
+	}
+
+	public synchronized void close(){
+		for(ClientSession session:sessions.values()){
+			session.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options=new HashMap<String, String>();
+		options.put("parallel", "4");
+		for(String arg:args){
+			int index=arg.indexOf('=');
+			if (index<0){
+				throw new IllegalArgumentException("key=value expected: "+arg);
+			}
+			options.put(arg.substring(0, index), arg.substring(index+1));
+		}
+		if (!options.containsKey("server")){
+			throw new IllegalArgumentException("server=ip:port is mandatory");
+		}
+		String[] adr=options.get("server").split(":");
+		final ClusterClient cluster=new ClusterClient(adr[0], Integer.parseInt(adr[1]));
+		System.out.println(cluster.getRing().toString());
+		final List<CatalogEntry> entries=Collections.synchronizedList(new ArrayList<CatalogEntry>(cluster.listFiles()));
+		final Map<String, Integer> served=Collections.synchronizedMap(new TreeMap<String, Integer>());
+		Thread[] threads=new Thread[Integer.parseInt(options.get("parallel"))];
+		for(int i=0;i<threads.length;i++){
+			threads[i]=new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while(true){
+						CatalogEntry entry;
+						synchronized(entries){
+							if (entries.isEmpty()){
+								return;
+							}
+							entry=entries.remove(0);
+						}
+						try {
+							File target=dummyClient.downloadTarget(dummyClient.DOWNLOADS_FOLDER+"/cluster", entry.getFile_name());
+							target.getParentFile().mkdirs();
+							RandomAccessFileSink sink=new RandomAccessFileSink(target, entry.getSize());
+							String node;
+							try {
+								node=cluster.download(entry.getFile_name(), sink);
+							} finally {
+								sink.close();
+							}
+							synchronized(served){
+								Integer count=served.get(node);
+								served.put(node, count==null?1:count+1);
+							}
+							System.out.println(entry.getFile_name()+" "+entry.getSize()+" bytes from "+node+" of "+cluster.getRing().owners(entry.getFile_name()));
+						} catch (IOException ex) {
+							loggerManager.getInstance(this.getClass()).error(entry.getFile_name()+": "+ex.toString());
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread thread:threads){
+			thread.join();
+		}
+		System.out.println("downloads per node: "+served);
+		cluster.close();
+	}
+}
@@ -0,0 +1,149 @@
+package client;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import model.RequestType;
+
+/*
+ * Probes one server with a GET_FILE_SIZE every PROBE_INTERVAL_MILLIS. A probe that is not
+ * answered within the session's RTO is a miss; FAILURE_THRESHOLD misses in a row make
+ * the server unhealthy and RECOVERY_THRESHOLD answers in a row healthy again. Any answer
+ * counts, errors and BUSY included, since they prove the server is reachable. A server
+ * is unhealthy until its first probe is answered. Whenever it turns healthy the session's
+ * data size is negotiated again, the path may have changed while it was unreachable.
+ */
+public class HealthMonitor extends Thread {
+	public static final long PROBE_INTERVAL_MILLIS=250;
+	public static final long MIN_DEADLINE_MILLIS=200;
+	public static final int FAILURE_THRESHOLD=3;
+	public static final int RECOVERY_THRESHOLD=2;
+
+	public interface Listener{
+		void onHealthChanged(HealthMonitor monitor, boolean healthy);
+	}
+
+	private ClientSession session=null;
+	private int probe_file_id;
+	private CopyOnWriteArrayList<Listener> listeners=new CopyOnWriteArrayList<Listener>();
+	private volatile boolean closed=false;
+
+	private boolean healthy=false;
+	private int misses=0;
+	private int answers=0;
+	private long changedAt=System.currentTimeMillis();
+	private long probes=0;
+	private long missedProbes=0;
+
+	public HealthMonitor(ClientSession session, int probe_file_id){
+		this.session=session;
+		this.probe_file_id=probe_file_id;
+		setName("health-"+session.getIp()+":"+session.getPort());
+		setDaemon(true);
+	}
+
+	public ClientSession getSession(){
+		return session;
+	}
+
+	public void addListener(Listener listener){
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener){
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(!closed){
+				boolean answered;
+				try {
+					answered=probe();
+				} catch (IOException ex) {
+					if (closed){
+						return;
+					}
+					loggerManager.getInstance(this.getClass()).warn(ex.toString());
+					answered=false;
+				}
+				onProbe(answered);
+				Thread.sleep(PROBE_INTERVAL_MILLIS);
+			}
+		} catch (InterruptedException ex) {
+			//closed
+		}
+	}
+
+	private boolean probe() throws IOException, InterruptedException{
+		PendingRequest request=session.submit(RequestType.REQUEST_TYPES.GET_FILE_SIZE, probe_file_id, 0, 0, null);
+		try {
+			request.awaitDone(Math.max(MIN_DEADLINE_MILLIS, session.getEstimator().getRtoNanos()/1000000));
+		} finally {
+			//a late answer is dropped, the next probe asks again
+			session.release(request);
+		}
+		return (request.isDone() && request.getFailure()==null) || request.getBusyResponses()>0;
+	}
+
+	private void onProbe(boolean answered){
+		boolean changed=false;
+		synchronized(this){
+			probes++;
+			if (answered){
+				misses=0;
+				answers++;
+				//the very first answer is enough, there is no failure to recover from yet
+				if (!healthy && (answers>=RECOVERY_THRESHOLD || probes==1)){
+					healthy=true;
+					changed=true;
+				}
+			}
+			else{
+				missedProbes++;
+				answers=0;
+				misses++;
+				if (healthy && misses>=FAILURE_THRESHOLD){
+					healthy=false;
+					changed=true;
+				}
+			}
+			if (changed){
+				changedAt=System.currentTimeMillis();
+			}
+		}
+		if (changed){
+			loggerManager.getInstance(this.getClass()).info(session.getIp()+":"+session.getPort()+(answered?" healthy":" unhealthy"));
+			if (answered){
+				try {
+					session.negotiateDataSize();
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).warn(ex.toString());
+				}
+			}
+			for(Listener listener:listeners){
+				listener.onHealthChanged(this, answered);
+			}
+		}
+	}
+
+	public synchronized boolean isHealthy(){
+		return healthy;
+	}
+
+	//how long the current state has lasted
+	public synchronized long getStateMillis(){
+		return System.currentTimeMillis()-changedAt;
+	}
+
+	public void close(){
+		closed=true;
+		interrupt();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return session.getIp()+":"+session.getPort()+" healthy:"+healthy+" probes:"+probes+" missed:"+missedProbes;
+	}
+}
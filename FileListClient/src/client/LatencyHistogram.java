@@ -0,0 +1,131 @@
+package client;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/*
+ * Log-linear histogram with HdrHistogram's bucket layout (2 significant digits) and
+ * its percentile distribution text format, so the output can be fed to the usual
+ * HdrHistogram plotters.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS=8;
+	private static final int SUB_BUCKET_COUNT=1<<SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF=SUB_BUCKET_COUNT/2;
+	private static final int MAX_SHIFT=40;
+
+	private long[] counts=new long[SUB_BUCKET_COUNT+MAX_SHIFT*SUB_BUCKET_HALF];
+	private long totalCount=0;
+	private long maxValue=0;
+	private long minValue=Long.MAX_VALUE;
+	private double sum=0;
+	private double sumOfSquares=0;
+
+	private static int shiftOf(long value){
+		if (value<SUB_BUCKET_COUNT){
+			return 0;
+		}
+		return (63-Long.numberOfLeadingZeros(value))-(SUB_BUCKET_BITS-1);
+	}
+
+	private static int indexOf(long value){
+		int shift=shiftOf(value);
+		if (shift==0){
+			return (int)value;
+		}
+		return SUB_BUCKET_COUNT+(shift-1)*SUB_BUCKET_HALF+(int)((value>>shift)-SUB_BUCKET_HALF);
+	}
+
+	private static long highestEquivalentValue(int index){
+		if (index<SUB_BUCKET_COUNT){
+			return index;
+		}
+		int shift=(index-SUB_BUCKET_COUNT)/SUB_BUCKET_HALF+1;
+		long subBucket=(index-SUB_BUCKET_COUNT)%SUB_BUCKET_HALF+SUB_BUCKET_HALF;
+		return ((subBucket+1)<<shift)-1;
+	}
+
+	public synchronized void recordValue(long value){
+		if (value<0){
+			value=0;
+		}
+		int index=Math.min(indexOf(value), counts.length-1);
+		counts[index]++;
+		totalCount++;
+		maxValue=Math.max(maxValue, value);
+		minValue=Math.min(minValue, value);
+		sum+=value;
+		sumOfSquares+=(double)value*value;
+	}
+
+	public synchronized void add(LatencyHistogram other){
+		for(int i=0;i<counts.length;i++){
+			counts[i]+=other.counts[i];
+		}
+		totalCount+=other.totalCount;
+		maxValue=Math.max(maxValue, other.maxValue);
+		minValue=Math.min(minValue, other.minValue);
+		sum+=other.sum;
+		sumOfSquares+=other.sumOfSquares;
+	}
+
+	public synchronized long getTotalCount(){
+		return totalCount;
+	}
+
+	public synchronized long getMaxValue(){
+		return maxValue;
+	}
+
+	public synchronized double getMean(){
+		return totalCount==0?0:sum/totalCount;
+	}
+
+	public synchronized long getValueAtPercentile(double percentile){
+		if (totalCount==0){
+			return 0;
+		}
+		long countAtPercentile=Math.max(1, (long)Math.ceil(percentile/100.0*totalCount));
+		long cumulative=0;
+		for(int i=0;i<counts.length;i++){
+			cumulative+=counts[i];
+			if (cumulative>=countAtPercentile){
+				return Math.min(highestEquivalentValue(i), maxValue);
+			}
+		}
+		return maxValue;
+	}
+
+	private long countAtOrBelow(long value){
+		long cumulative=0;
+		int last=Math.min(indexOf(value), counts.length-1);
+		for(int i=0;i<=last;i++){
+			cumulative+=counts[i];
+		}
+		return cumulative;
+	}
+
+	public synchronized void outputPercentileDistribution(PrintStream out, int percentileTicksPerHalfDistance, double outputValueUnitScalingRatio){
+		out.format(Locale.ROOT, "%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+		if (totalCount>0){
+			double percentile=0;
+			while(true){
+				long value=getValueAtPercentile(percentile);
+				long cumulative=countAtOrBelow(value);
+				double fraction=(double)cumulative/totalCount;
+				if (cumulative>=totalCount){
+					out.format(Locale.ROOT, "%12.3f %1.12f %10d%n", value/outputValueUnitScalingRatio, 1.0, totalCount);
+					break;
+				}
+				out.format(Locale.ROOT, "%12.3f %1.12f %10d %14.2f%n", value/outputValueUnitScalingRatio, fraction, cumulative, 1/(1-fraction));
+				long halfDistance=(long)Math.pow(2, (long)(Math.log(100/(100-percentile))/Math.log(2))+1);
+				percentile+=100.0/(percentileTicksPerHalfDistance*halfDistance);
+			}
+		}
+		double mean=getMean();
+		double deviation=totalCount==0?0:Math.sqrt(Math.max(0, sumOfSquares/totalCount-mean*mean));
+		out.format(Locale.ROOT, "#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean/outputValueUnitScalingRatio, deviation/outputValueUnitScalingRatio);
+		out.format(Locale.ROOT, "#[Max     = %12.3f, Total count    = %12d]%n", maxValue/outputValueUnitScalingRatio, totalCount);
+		out.format(Locale.ROOT, "#[Buckets = %12d, SubBuckets     = %12d]%n", MAX_SHIFT+1, SUB_BUCKET_COUNT);
+	}
+}
@@ -0,0 +1,268 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import model.RangeSet;
+import model.RttEstimator;
+
+/*
+ * Live view of one server path built from request round trips and the incoming
+ * FileDataResponseType stream. One estimator per ip:port, shared through get().
+ * Reordering and loss are tracked per request, each GET_FILE_DATA opens its own Range so
+ * concurrent requests on the path do not mix. Data that skips ahead leaves a gap in its
+ * range; a gap filled before it is asked for again was reordered, bytes still missing
+ * when they are asked for again were lost, the tail of a range included. Every datagram
+ * counts as received, copies of data the request already had also as duplicates.
+ */
+public class LinkEstimator {
+	private static final ConcurrentHashMap<String, LinkEstimator> estimators=new ConcurrentHashMap<String, LinkEstimator>();
+
+	private static final long MIN_RATE_INTERVAL_NANOS=50L*1000*1000;
+
+	private String server=null;
+
+	private RttEstimator rtt=new RttEstimator();
+	private long rttSamples=0;
+
+	private double deliveryRate=0;
+	private double maxDeliveryRate=0;
+	private long rateMarkTime=-1;
+	private long rateMarkBytes=0;
+	private long lastReceiveTime=-1;
+
+	private List<Range> openRanges=new ArrayList<Range>();
+	private long finishedSpan=0;
+	private long finishedLost=0;
+
+	private long duplicateDatagrams=0;
+	private long reorderedDatagrams=0;
+	private long lastReorderDistance=0;
+	private long maxReorderDistance=0;
+
+	private long receivedDatagrams=0;
+	private long receivedBytes=0;
+
+	//reorder and loss state of one requested range, from openRange until onRangeFinished
+	public static class Range{
+		private long start;
+		private long end;
+		//what the request has, data arrived for it is already in when it is reported
+		private RangeSet received=null;
+		private long highest;
+		//highest byte of the range known to be received or lost
+		private long extent;
+		private RangeSet skipped=new RangeSet();
+		private RangeSet lost=new RangeSet();
+
+		Range(long start, long end, RangeSet received){
+			this.start=start;
+			this.end=end;
+			this.received=received;
+			this.highest=start-1;
+			this.extent=start-1;
+		}
+
+		//a range cut short by a cancel ends at its extent
+		private long span(){
+			return extent>=start?extent-start+1:0;
+		}
+
+		//gaps never filled count as lost
+		private long missing(){
+			return extent>=start?lost.size()+skipped.size():0;
+		}
+	}
+
+	public LinkEstimator(String server){
+		this.server=server;
+	}
+
+	public static LinkEstimator get(String ip, int port){
+		String key=ip+":"+port;
+		LinkEstimator estimator=estimators.get(key);
+		if (estimator==null){
+			estimators.putIfAbsent(key, new LinkEstimator(key));
+			estimator=estimators.get(key);
+		}
+		return estimator;
+	}
+
+	public static List<LinkEstimator> getAll(){
+		return new ArrayList<LinkEstimator>(estimators.values());
+	}
+
+	public synchronized void onRttSample(long rttNanos){
+		rtt.onSample(rttNanos);
+		rttSamples++;
+	}
+
+	//received is the request's RangeSet, bytes it already has when the range opens are not expected
+	public synchronized Range openRange(long start, long end, RangeSet received){
+		Range range=new Range(start, end, received);
+		openRanges.add(range);
+		return range;
+	}
+
+	/*
+	 * A datagram of range, null for data outside any requested range like multicast
+	 * repairs. duplicate tells a copy of data the request already had.
+	 */
+	public synchronized void onDataReceived(Range range, long start, long end, boolean duplicate, long nowNanos){
+		long length=end-start+1;
+		receivedDatagrams++;
+		receivedBytes+=length;
+		if (duplicate){
+			duplicateDatagrams++;
+		}
+		else if (range!=null){
+			if (end<=range.highest){
+				//a gap filled before it was asked for again: arrived after data that was sent later,
+				//distance counted in datagrams of this size
+				if (range.skipped.remove(start, end)>0){
+					reorderedDatagrams++;
+					lastReorderDistance=(range.highest-end+length-1)/length;
+					maxReorderDistance=Math.max(maxReorderDistance, lastReorderDistance);
+				}
+			}
+			else{
+				//only what the request still lacks, parts it had before or got from another request are no gap
+				for(long[] gap:range.received.missing(Math.max(range.start, range.highest+1), start-1)){
+					range.skipped.add(gap[0], gap[1]);
+				}
+				range.highest=end;
+			}
+			range.extent=Math.max(range.extent, end);
+		}
+
+		lastReceiveTime=nowNanos;
+		if (rateMarkTime<0){
+			rateMarkTime=nowNanos;
+			rateMarkBytes=receivedBytes;
+			return;
+		}
+		if (nowNanos-rateMarkTime>=MIN_RATE_INTERVAL_NANOS){
+			sampleDeliveryRate(nowNanos);
+		}
+	}
+
+	private void sampleDeliveryRate(long nowNanos){
+		long elapsed=nowNanos-rateMarkTime;
+		if (elapsed<=0 || receivedBytes==rateMarkBytes){
+			return;
+		}
+		double sample=(receivedBytes-rateMarkBytes)*1e9/elapsed;
+		deliveryRate=deliveryRate==0?sample:0.75*deliveryRate+0.25*sample;
+		maxDeliveryRate=Math.max(maxDeliveryRate, sample);
+		rateMarkTime=nowNanos;
+		rateMarkBytes=receivedBytes;
+	}
+
+	//part of the range still missing when it is asked for again after a timeout
+	public synchronized void onLost(Range range, long start, long end){
+		start=Math.max(start, range.start);
+		end=Math.min(end, range.end);
+		if (end<start){
+			return;
+		}
+		range.skipped.remove(start, end);
+		range.lost.add(start, end);
+		range.extent=Math.max(range.extent, end);
+	}
+
+	public synchronized void onRangeFinished(Range range){
+		if (!openRanges.remove(range)){
+			return;
+		}
+		finishedSpan+=range.span();
+		finishedLost+=range.missing();
+		if (openRanges.isEmpty()){
+			if (rateMarkTime>=0){
+				sampleDeliveryRate(lastReceiveTime);
+			}
+			//the next burst starts after an idle gap which must not count as delivery time
+			rateMarkTime=-1;
+		}
+	}
+
+	public synchronized String getServer(){
+		return server;
+	}
+
+	public synchronized double getSmoothedRttMillis(){
+		return rtt.getSmoothedRttNanos()<0?-1:rtt.getSmoothedRttNanos()/1e6;
+	}
+
+	public synchronized double getRttVarianceMillis(){
+		return rtt.getRttVarianceNanos()/1e6;
+	}
+
+	public synchronized long getRtoNanos(){
+		return rtt.getRtoNanos();
+	}
+
+	//bytes per second
+	public synchronized double getDeliveryRate(){
+		return deliveryRate;
+	}
+
+	public synchronized double getMaxDeliveryRate(){
+		return maxDeliveryRate;
+	}
+
+	//share of the requested bytes that were lost or are still missing below the highest received byte
+	public synchronized double getLossRate(){
+		long span=finishedSpan;
+		long missing=finishedLost;
+		for(Range range:openRanges){
+			span+=range.span();
+			missing+=range.missing();
+		}
+		return span==0?0:(double)missing/span;
+	}
+
+	public synchronized long getLastReorderDistance(){
+		return lastReorderDistance;
+	}
+
+	public synchronized long getMaxReorderDistance(){
+		return maxReorderDistance;
+	}
+
+	public synchronized long getDuplicateDatagrams(){
+		return duplicateDatagrams;
+	}
+
+	public synchronized long getReorderedDatagrams(){
+		return reorderedDatagrams;
+	}
+
+	public synchronized long getReceivedBytes(){
+		return receivedBytes;
+	}
+
+	public static String csvHeader(){
+		return "timestamp,server,srtt_ms,rttvar_ms,rto_ms,delivery_kbit,max_delivery_kbit,loss,reorder_last,reorder_max,reordered,duplicates,datagrams,bytes";
+	}
+
+	public synchronized String toCsv(long timestamp){
+		return timestamp+","+server+","+String.format(Locale.ROOT, "%.3f,%.3f,%.3f,%.1f,%.1f,%.5f",
+				getSmoothedRttMillis(), getRttVarianceMillis(), getRtoNanos()/1e6, deliveryRate*8/1000, maxDeliveryRate*8/1000, getLossRate())
+				+","+lastReorderDistance+","+maxReorderDistance+","+reorderedDatagrams+","+duplicateDatagrams+","+receivedDatagrams+","+receivedBytes;
+	}
+
+	public synchronized String toJson(long timestamp){
+		return "{\"timestamp\":"+timestamp+",\"server\":\""+server+"\""
+				+String.format(Locale.ROOT, ",\"srtt_ms\":%.3f,\"rttvar_ms\":%.3f,\"rto_ms\":%.3f,\"delivery_kbit\":%.1f,\"max_delivery_kbit\":%.1f,\"loss\":%.5f",
+						getSmoothedRttMillis(), getRttVarianceMillis(), getRtoNanos()/1e6, deliveryRate*8/1000, maxDeliveryRate*8/1000, getLossRate())
+				+",\"reorder_last\":"+lastReorderDistance+",\"reorder_max\":"+maxReorderDistance+",\"reordered\":"+reorderedDatagrams+",\"duplicates\":"+duplicateDatagrams
+				+",\"datagrams\":"+receivedDatagrams+",\"bytes\":"+receivedBytes+"}";
+	}
+
+	@Override
+	public String toString() {
+		return toCsv(System.currentTimeMillis());
+	}
+}
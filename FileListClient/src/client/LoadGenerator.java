@@ -0,0 +1,342 @@
+package client;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import model.FileDataResponseType;
+import model.FileDescriptor;
+import model.FileListResponseType;
+import model.FileSizeResponseType;
+import model.RequestType;
+import model.ResponseType;
+import model.StatsResponseType;
+
+/*
+ * Headless load generator: N client threads issue a weighted mix of GET_FILE_LIST,
+ * GET_FILE_SIZE and GET_FILE_DATA against one server for a fixed duration.
+ *   java -classpath "bin:lib/*" client.LoadGenerator server=127.0.0.1:5000 clients=32 duration=30 mix=1:1:8 range=100000
+ * mix is list:size:data, range limits GET_FILE_DATA to a random window of that many
+ * bytes (0 requests whole files), timeout is the per datagram wait in ms. Requests are
+ * tagged with a request id and only answers carrying it count, late answers of earlier
+ * requests are skipped. A GET_FILE_DATA is answered once its last byte arrived, one that
+ * stops after some data counts as partial and stays out of the time to complete. The server's requests/sec is read from its GET_STATS counters
+ * before and after the run.
+ */
+public class LoadGenerator {
+	private InetAddress address=null;
+	private int port;
+	private int clients;
+	private long durationMillis;
+	private int[] mix=null;
+	private long maxRange;
+	private int timeout;
+
+	private FileDescriptor[] files=null;
+	private long[] fileSizes=null;
+
+	private LatencyHistogram timeToFirstByte=new LatencyHistogram();
+	private LatencyHistogram timeToComplete=new LatencyHistogram();
+	private AtomicLong sentRequests=new AtomicLong();
+	private AtomicLong answeredRequests=new AtomicLong();
+	private AtomicLong failedRequests=new AtomicLong();
+	private AtomicLong busyResponses=new AtomicLong();
+	private AtomicLong timedOutRequests=new AtomicLong();
+	private AtomicLong partialRequests=new AtomicLong();
+	private AtomicLong receivedDatagrams=new AtomicLong();
+	private AtomicLong lateDatagrams=new AtomicLong();
+	private AtomicLong receivedBytes=new AtomicLong();
+	private AtomicLong expectedBytes=new AtomicLong();
+
+	public LoadGenerator(InetAddress address, int port, int clients, long durationMillis, int[] mix, long maxRange, int timeout){
+		this.address=address;
+		this.port=port;
+		this.clients=clients;
+		this.durationMillis=durationMillis;
+		this.mix=mix;
+		this.maxRange=maxRange;
+		this.timeout=timeout;
+	}
+
+	private class Worker extends Thread{
+		private Random random=null;
+		private long deadline;
+		private int request_id=0;
+		private byte[] receiveData=new byte[ResponseType.MAX_UDP_PAYLOAD];
+
+		Worker(int index, long deadline){
+			this.random=new Random(index);
+			this.deadline=deadline;
+			setName("load-"+index);
+		}
+
+		@Override
+		public void run() {
+			DatagramSocket dsocket=null;
+			try {
+				dsocket=new DatagramSocket();
+				int total=mix[0]+mix[1]+mix[2];
+				while(System.currentTimeMillis()<deadline){
+					int pick=random.nextInt(total);
+					if (pick<mix[0]){
+						control(dsocket, RequestType.REQUEST_TYPES.GET_FILE_LIST, 0);
+					}
+					else if (pick<mix[0]+mix[1]){
+						int file=random.nextInt(files.length);
+						control(dsocket, RequestType.REQUEST_TYPES.GET_FILE_SIZE, files[file].getFile_id());
+					}
+					else{
+						data(dsocket, random.nextInt(files.length));
+					}
+				}
+			} catch (IOException ex) {
+				loggerManager.getInstance(this.getClass()).error(ex.toString());
+			} finally {
+				if (dsocket!=null){
+					dsocket.close();
+				}
+			}
+		}
+
+		//a new request id per request, 0 is left out since it means untagged
+		private void send(DatagramSocket dsocket, int requestType, int file_id, long start, long end) throws IOException{
+			request_id=request_id==Integer.MAX_VALUE?1:request_id+1;
+			byte[] sendData=new RequestType(requestType, file_id, start, end, request_id).toByteArray();
+			dsocket.send(new DatagramPacket(sendData, sendData.length, address, port));
+			sentRequests.incrementAndGet();
+		}
+
+		//next answer of the last request sent, null when none arrives within timeout ms
+		private DatagramPacket receive(DatagramSocket dsocket) throws IOException{
+			long receiveDeadline=System.currentTimeMillis()+timeout;
+			while(true){
+				long remaining=receiveDeadline-System.currentTimeMillis();
+				if (remaining<=0){
+					return null;
+				}
+				dsocket.setSoTimeout((int)remaining);
+				DatagramPacket receivePacket=new DatagramPacket(receiveData, receiveData.length);
+				try{
+					dsocket.receive(receivePacket);
+				} catch(SocketTimeoutException ex){
+					return null;
+				}
+				receivedDatagrams.incrementAndGet();
+				if (receivePacket.getLength()>=ResponseType.HEADER_SIZE+ResponseType.REQUEST_ID_SIZE
+						&& ResponseType.readRequestId(receiveData, receivePacket.getLength())==request_id){
+					return receivePacket;
+				}
+				//answer of an earlier request that timed out
+				lateDatagrams.incrementAndGet();
+			}
+		}
+
+		private void control(DatagramSocket dsocket, int requestType, int file_id) throws IOException{
+			long startTime=System.nanoTime();
+			send(dsocket, requestType, file_id, 0, 0);
+			if (receive(dsocket)==null){
+				timedOutRequests.incrementAndGet();
+				return;
+			}
+			long elapsed=(System.nanoTime()-startTime)/1000;
+			answeredRequests.incrementAndGet();
+			int responseType=receiveData[0] & 0xFF;
+			if (responseType==ResponseType.RESPONSE_TYPES.BUSY){
+				//refused, not failed
+				busyResponses.incrementAndGet();
+			}
+			else if (responseType>=ResponseType.RESPONSE_TYPES.INVALID_REQUEST_TYPE){
+				failedRequests.incrementAndGet();
+			}
+			timeToFirstByte.recordValue(elapsed);
+			timeToComplete.recordValue(elapsed);
+		}
+
+		private void data(DatagramSocket dsocket, int file) throws IOException{
+			long size=fileSizes[file];
+			if (size<=0){
+				return;
+			}
+			long start=1;
+			long end=size;
+			if (maxRange>0 && maxRange<size){
+				start=1+(long)(random.nextDouble()*(size-maxRange));
+				end=start+maxRange-1;
+			}
+			expectedBytes.addAndGet(end-start+1);
+			long startTime=System.nanoTime();
+			send(dsocket, RequestType.REQUEST_TYPES.GET_FILE_DATA, files[file].getFile_id(), start, end);
+			long maxReceivedByte=-1;
+			long bytes=0;
+			boolean first=true;
+			while(maxReceivedByte<end){
+				DatagramPacket receivePacket=receive(dsocket);
+				if (receivePacket==null){
+					if (first){
+						timedOutRequests.incrementAndGet();
+					}
+					break;
+				}
+				FileDataResponseType response=new FileDataResponseType(receivePacket.getData());
+				if (response.getResponseType()==ResponseType.RESPONSE_TYPES.BUSY){
+					//refused, not lost and not failed
+					busyResponses.incrementAndGet();
+					expectedBytes.addAndGet(-(end-start+1));
+					break;
+				}
+				if (response.getResponseType()!=ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS){
+					if (first){
+						failedRequests.incrementAndGet();
+					}
+					break;
+				}
+				if (first){
+					timeToFirstByte.recordValue((System.nanoTime()-startTime)/1000);
+					first=false;
+				}
+				bytes+=response.getEnd_byte()-response.getStart_byte()+1;
+				if (response.getEnd_byte()>maxReceivedByte){
+					maxReceivedByte=response.getEnd_byte();
+				}
+			}
+			receivedBytes.addAndGet(bytes);
+			if (maxReceivedByte>=end){
+				answeredRequests.incrementAndGet();
+				timeToComplete.recordValue((System.nanoTime()-startTime)/1000);
+			}
+			else if (!first){
+				//timed out or failed after some data, the rest is counted as loss
+				partialRequests.incrementAndGet();
+			}
+		}
+	}
+
+	private void loadCatalog() throws IOException{
+		DatagramSocket dsocket=new DatagramSocket();
+		try{
+			dsocket.setSoTimeout(timeout);
+			byte[] receiveData=new byte[ResponseType.MAX_UDP_PAYLOAD];
+			byte[] sendData=new RequestType(RequestType.REQUEST_TYPES.GET_FILE_LIST, 0, 0, 0, null).toByteArray();
+			dsocket.send(new DatagramPacket(sendData, sendData.length, address, port));
+			DatagramPacket receivePacket=new DatagramPacket(receiveData, receiveData.length);
+			dsocket.receive(receivePacket);
+			files=new FileListResponseType(receivePacket.getData()).getFileDescriptors();
+			fileSizes=new long[files.length];
+			for(int i=0;i<files.length;i++){
+				sendData=new RequestType(RequestType.REQUEST_TYPES.GET_FILE_SIZE, files[i].getFile_id(), 0, 0, null).toByteArray();
+				dsocket.send(new DatagramPacket(sendData, sendData.length, address, port));
+				receivePacket=new DatagramPacket(receiveData, receiveData.length);
+				dsocket.receive(receivePacket);
+				fileSizes[i]=new FileSizeResponseType(receivePacket.getData()).getFileSize();
+			}
+		} finally {
+			dsocket.close();
+		}
+		if (files.length==0){
+			throw new IOException("Server has no files");
+		}
+	}
+
+	//the server's counters, null if it does not answer GET_STATS
+	private StatsResponseType stats() throws IOException{
+		DatagramSocket dsocket=new DatagramSocket();
+		try{
+			dsocket.setSoTimeout(timeout);
+			byte[] receiveData=new byte[ResponseType.MAX_UDP_PAYLOAD];
+			byte[] sendData=new RequestType(RequestType.REQUEST_TYPES.GET_STATS, 0, 0, 0, null).toByteArray();
+			dsocket.send(new DatagramPacket(sendData, sendData.length, address, port));
+			DatagramPacket receivePacket=new DatagramPacket(receiveData, receiveData.length);
+			dsocket.receive(receivePacket);
+			StatsResponseType stats=new StatsResponseType(receivePacket.getData());
+			return stats.getResponseType()==ResponseType.RESPONSE_TYPES.GET_STATS_SUCCESS?stats:null;
+		} catch (SocketTimeoutException ex) {
+			return null;
+		} finally {
+			dsocket.close();
+		}
+	}
+
+	public void run() throws IOException, InterruptedException{
+		loadCatalog();
+		StatsResponseType before=stats();
+		long startTime=System.currentTimeMillis();
+		Worker[] workers=new Worker[clients];
+		for(int i=0;i<clients;i++){
+			workers[i]=new Worker(i, startTime+durationMillis);
+			workers[i].start();
+		}
+		for(Worker worker:workers){
+			worker.join();
+		}
+		long elapsedMillis=System.currentTimeMillis()-startTime;
+		report(elapsedMillis, before, stats());
+	}
+
+	private void report(long elapsedMillis, StatsResponseType before, StatsResponseType after){
+		double seconds=elapsedMillis/1000.0;
+		long expected=expectedBytes.get();
+		long received=receivedBytes.get();
+		System.out.println("clients: "+clients+" duration: "+elapsedMillis+" ms");
+		System.out.println("requests sent: "+sentRequests.get()+" answered: "+answeredRequests.get()
+				+" failed: "+failedRequests.get()+" busy: "+busyResponses.get()+" timed out: "+timedOutRequests.get()+" partial: "+partialRequests.get());
+		if (before!=null && after!=null){
+			//the server also counts the other clients it serves meanwhile
+			long serverRequests=after.getReceivedRequests()-before.getReceivedRequests();
+			System.out.println(String.format(Locale.ROOT, "server requests/sec: %.1f rejected busy: %d dropped: %d", serverRequests/seconds,
+					after.getRejectedRequests()-before.getRejectedRequests(), after.getDroppedRequests()-before.getDroppedRequests()));
+		}
+		else{
+			System.out.println("server requests/sec: n/a, the server does not answer GET_STATS");
+		}
+		System.out.println(String.format(Locale.ROOT, "client sent/sec: %.1f answered/sec: %.1f", sentRequests.get()/seconds, answeredRequests.get()/seconds));
+		System.out.println(String.format(Locale.ROOT, "goodput: %.3f Mbit/s datagrams: %d late: %d loss: %.2f%%", received*8/seconds/1e6,
+				receivedDatagrams.get(), lateDatagrams.get(), expected==0?0:100.0*Math.max(0, expected-received)/expected));
+		System.out.println(String.format(Locale.ROOT, "time to first byte ms p50: %.3f p99: %.3f p999: %.3f",
+				timeToFirstByte.getValueAtPercentile(50)/1000.0, timeToFirstByte.getValueAtPercentile(99)/1000.0, timeToFirstByte.getValueAtPercentile(99.9)/1000.0));
+		System.out.println(String.format(Locale.ROOT, "time to complete ms p50: %.3f p99: %.3f p999: %.3f",
+				timeToComplete.getValueAtPercentile(50)/1000.0, timeToComplete.getValueAtPercentile(99)/1000.0, timeToComplete.getValueAtPercentile(99.9)/1000.0));
+		System.out.println("\ntime to first byte (ms)");
+		timeToFirstByte.outputPercentileDistribution(System.out, 5, 1000.0);
+		System.out.println("\ntime to complete (ms)");
+		timeToComplete.outputPercentileDistribution(System.out, 5, 1000.0);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options=new HashMap<String, String>();
+		options.put("clients", "8");
+		options.put("duration", "10");
+		options.put("mix", "1:1:8");
+		options.put("range", "0");
+		options.put("timeout", "2000");
+		for(String arg:args){
+			int index=arg.indexOf('=');
+			if (index<0){
+				throw new IllegalArgumentException("key=value expected: "+arg);
+			}
+			options.put(arg.substring(0, index), arg.substring(index+1));
+		}
+		if (!options.containsKey("server")){
+			throw new IllegalArgumentException("server=ip:port is mandatory");
+		}
+		String[] adr=options.get("server").split(":");
+		String[] mixParts=options.get("mix").split(":");
+		if (mixParts.length!=3){
+			throw new IllegalArgumentException("mix=list:size:data expected");
+		}
+		int[] mix=new int[3];
+		for(int i=0;i<3;i++){
+			mix[i]=Integer.parseInt(mixParts[i]);
+		}
+		LoadGenerator generator=new LoadGenerator(InetAddress.getByName(adr[0]), Integer.parseInt(adr[1]),
+				Integer.parseInt(options.get("clients")), Long.parseLong(options.get("duration"))*1000L, mix,
+				Long.parseLong(options.get("range")), Integer.parseInt(options.get("timeout")));
+		generator.run();
+	}
+}
@@ -0,0 +1,482 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import model.CatalogEntry;
+import model.MerkleTree;
+import model.RangeSet;
+import model.RequestType;
+
+/*
+ * Downloads one file from several servers that hold the same copy. The file is split in
+ * pieces that every source pulls from a shared queue, PIPELINE at a time, so faster
+ * sources take more of them. With endgame on, a source that finds the queue empty while
+ * few pieces are still outstanding requests one of them again, the missing part only;
+ * whichever copy completes the piece first wins and the other requests of the piece are
+ * cancelled. This keeps one slow or stalled source from setting the completion time.
+ * With health monitors, a source that turns unhealthy takes no new pieces and its
+ * unfinished ones go back to the queue for the others; it picks up work again once it
+ * recovers. The download fails only after every source has been unhealthy for
+ * DOWN_TIMEOUT_MILLIS.
+ *   java -classpath "bin:lib/*" client.MultiSourceDownloader servers=127.0.0.1:5000,127.0.0.1:5001 file=test1 runs=20 endgame=both
+ * endgame is 0, 1 or both, the last runs the download with each and prints both histograms.
+ */
+public class MultiSourceDownloader implements HealthMonitor.Listener {
+	public static final int PIECE_SIZE=64*1024;
+	public static final int PIPELINE=4;
+	//endgame starts once the queue is empty and at most this many pieces are outstanding
+	public static final int ENDGAME_PIECES=8;
+	public static final long DOWN_TIMEOUT_MILLIS=30000;
+
+	private ClientSession[] sessions=null;
+	private int[] file_ids=null;
+	private long size;
+	private boolean endgame;
+	//null when every source is taken as healthy
+	private HealthMonitor[] monitors=null;
+
+	private LinkedList<Piece> queue=new LinkedList<Piece>();
+	private List<Piece> outstanding=new ArrayList<Piece>();
+	private int pieces;
+	private int completed=0;
+	private boolean[] failed=null;
+	private IOException failure=null;
+
+	private AtomicLong[] receivedBytes=null;
+	private long duplicatedPieces=0;
+	private long cancelledRequests=0;
+	private long movedPieces=0;
+
+	private static class Piece{
+		private long start_byte;
+		private long end_byte;
+		//shared by every request of the piece, a duplicate only asks for what is still missing
+		private RangeSet received=new RangeSet();
+		private List<Integer> requesters=new ArrayList<Integer>();
+		private Map<Integer, PendingRequest> requests=new HashMap<Integer, PendingRequest>();
+		private boolean done=false;
+
+		Piece(long start_byte, long end_byte){
+			this.start_byte=start_byte;
+			this.end_byte=end_byte;
+		}
+	}
+
+	//file_ids[i] is the file's id on sessions[i]
+	public MultiSourceDownloader(ClientSession[] sessions, int[] file_ids, long size, boolean endgame){
+		this(sessions, file_ids, size, endgame, null);
+	}
+
+	//monitors[i] watches sessions[i]
+	public MultiSourceDownloader(ClientSession[] sessions, int[] file_ids, long size, boolean endgame, HealthMonitor[] monitors){
+		this.sessions=sessions;
+		this.monitors=monitors;
+		this.file_ids=file_ids;
+		this.size=size;
+		this.endgame=endgame;
+		this.failed=new boolean[sessions.length];
+		this.receivedBytes=new AtomicLong[sessions.length];
+		for(int i=0;i<sessions.length;i++){
+			receivedBytes[i]=new AtomicLong();
+		}
+		for(long start=1;start<=size;start+=PIECE_SIZE){
+			queue.add(new Piece(start, Math.min(start+PIECE_SIZE-1, size)));
+		}
+		this.pieces=queue.size();
+	}
+
+	//blocks until every piece is in sink or every source failed, an AsyncChunkSink keeps disk writes off the receivers
+	public void download(final ChunkSink sink) throws IOException{
+		//the receiver threads of all sessions write to it, one at a time like AsyncChunkSink's single producer
+		final ChunkSink shared=new ChunkSink() {
+			@Override
+			public synchronized boolean write(long start_byte, byte[] buf, int offset, int length) throws IOException {
+				return sink.write(start_byte, buf, offset, length);
+			}
+
+			@Override
+			public void close() throws IOException {
+				sink.close();
+			}
+		};
+		if (monitors!=null){
+			for(HealthMonitor monitor:monitors){
+				monitor.addListener(this);
+			}
+		}
+		List<Thread> workers=new ArrayList<Thread>();
+		for(int source=0;source<sessions.length;source++){
+			for(int i=0;i<PIPELINE;i++){
+				Thread worker=new Worker(source, shared);
+				worker.start();
+				workers.add(worker);
+			}
+		}
+		try {
+			for(Thread worker:workers){
+				worker.join();
+			}
+		} catch (InterruptedException ex) {
+			throw new IOException(ex.toString());
+		} finally {
+			if (monitors!=null){
+				for(HealthMonitor monitor:monitors){
+					monitor.removeListener(this);
+				}
+			}
+		}
+		synchronized(this){
+			if (completed<pieces){
+				throw failure!=null?failure:new IOException("Download incomplete");
+			}
+		}
+	}
+
+	/*
+	 * Downloads through a VerifyingChunkSink over tree; blocks that fail their hash are
+	 * queued again as pieces and fetched from whichever source is free. target is closed
+	 * before returning.
+	 */
+	public void downloadVerified(ChunkSink target, MerkleTree tree) throws IOException{
+		VerifyingChunkSink verifier=new VerifyingChunkSink(target, tree, size);
+		//hashing and disk writes run on the sink's writer thread, the receivers only copy chunks into its ring
+		AsyncChunkSink sink=new AsyncChunkSink(verifier);
+		try{
+			for(int attempt=0;;attempt++){
+				download(sink);
+				sink.flush();
+				List<Integer> badBlocks=verifier.takeBadBlocks();
+				if (badBlocks.isEmpty()){
+					return;
+				}
+				if (attempt>=ClientSession.MAX_RETRIES){
+					throw new IOException(badBlocks.size()+" blocks still corrupted after "+attempt+" refetches");
+				}
+				synchronized(this){
+					for(int block:badBlocks){
+						queue.add(new Piece(MerkleTree.blockStart(block), MerkleTree.blockEnd(block, size)));
+						pieces++;
+					}
+				}
+			}
+		} finally {
+			sink.close();
+		}
+	}
+
+	private class Worker extends Thread{
+		private int source;
+		private ChunkSink sink=null;
+
+		Worker(final int source, final ChunkSink shared){
+			this.source=source;
+			//counts what each source actually contributed
+			this.sink=new ChunkSink() {
+				@Override
+				public boolean write(long start_byte, byte[] buf, int offset, int length) throws IOException {
+					boolean taken=shared.write(start_byte, buf, offset, length);
+					if (taken){
+						receivedBytes[source].addAndGet(length);
+					}
+					return taken;
+				}
+
+				@Override
+				public void close() throws IOException {
+				}
+			};
+			setName("source-"+source);
+		}
+
+		@Override
+		public void run() {
+			ClientSession session=sessions[source];
+			Piece piece=null;
+			while((piece=next(source))!=null){
+				try {
+					PendingRequest request=session.submit(RequestType.REQUEST_TYPES.GET_FILE_DATA, file_ids[source], piece.start_byte, piece.end_byte, sink, piece.received);
+					attach(piece, request);
+					session.await(request);
+				} catch (SocketTimeoutException ex) {
+					//the monitor decides whether the source is gone
+					if (monitors==null){
+						onFailure(piece, ex);
+						return;
+					}
+					onTimeout(piece);
+					continue;
+				} catch (IOException ex) {
+					onFailure(piece, ex);
+					return;
+				}
+				onFinished(piece);
+			}
+		}
+
+		private void attach(Piece piece, PendingRequest request) throws IOException{
+			synchronized(MultiSourceDownloader.this){
+				if (!piece.done){
+					piece.requests.put(source, request);
+					return;
+				}
+			}
+			//the piece completed between next and submit
+			sessions[source].cancel(request);
+		}
+
+		private void onFinished(Piece piece){
+			List<PendingRequest> losers=new ArrayList<PendingRequest>();
+			List<Integer> loserSources=new ArrayList<Integer>();
+			synchronized(MultiSourceDownloader.this){
+				piece.requesters.remove(Integer.valueOf(source));
+				piece.requests.remove(source);
+				if (piece.done || !piece.received.contains(piece.start_byte, piece.end_byte)){
+					return;
+				}
+				piece.done=true;
+				outstanding.remove(piece);
+				completed++;
+				for(Map.Entry<Integer, PendingRequest> other:piece.requests.entrySet()){
+					loserSources.add(other.getKey());
+					losers.add(other.getValue());
+				}
+				cancelledRequests+=losers.size();
+				MultiSourceDownloader.this.notifyAll();
+			}
+			for(int i=0;i<losers.size();i++){
+				try {
+					sessions[loserSources.get(i)].cancel(losers.get(i));
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).warn(ex.toString());
+				}
+			}
+		}
+
+		private void onTimeout(Piece piece){
+			synchronized(MultiSourceDownloader.this){
+				release(piece, source);
+				MultiSourceDownloader.this.notifyAll();
+			}
+		}
+
+		//the source is dropped; its piece goes back to the queue unless another source still works on it
+		private void onFailure(Piece piece, IOException ex){
+			loggerManager.getInstance(this.getClass()).warn("Source "+sessions[source].getIp()+":"+sessions[source].getPort()+" failed: "+ex.toString());
+			synchronized(MultiSourceDownloader.this){
+				failed[source]=true;
+				release(piece, source);
+				boolean allFailed=true;
+				for(boolean f:failed){
+					allFailed&=f;
+				}
+				if (allFailed){
+					failure=ex;
+				}
+				MultiSourceDownloader.this.notifyAll();
+			}
+		}
+	}
+
+	//takes source off the piece, which goes back to the queue unless another source still works on it
+	private void release(Piece piece, int source){
+		piece.requesters.remove(Integer.valueOf(source));
+		piece.requests.remove(source);
+		if (!piece.done && piece.requesters.isEmpty() && outstanding.remove(piece)){
+			queue.addFirst(piece);
+		}
+	}
+
+	private boolean isHealthy(int source){
+		return monitors==null || monitors[source].isHealthy();
+	}
+
+	//the pieces of a source that turned unhealthy move to the others, its requests are cancelled
+	@Override
+	public void onHealthChanged(HealthMonitor monitor, boolean healthy) {
+		int source=-1;
+		List<PendingRequest> stopped=new ArrayList<PendingRequest>();
+		synchronized(this){
+			for(int i=0;i<monitors.length;i++){
+				if (monitors[i]==monitor){
+					source=i;
+				}
+			}
+			if (source<0){
+				return;
+			}
+			if (!healthy){
+				for(Piece piece:new ArrayList<Piece>(outstanding)){
+					PendingRequest request=piece.requests.get(source);
+					if (request!=null){
+						stopped.add(request);
+						movedPieces++;
+						release(piece, source);
+					}
+				}
+			}
+			notifyAll();
+		}
+		for(PendingRequest request:stopped){
+			try {
+				sessions[source].cancel(request);
+			} catch (IOException ex) {
+				loggerManager.getInstance(this.getClass()).warn(ex.toString());
+			}
+		}
+	}
+
+	//fails the download once no source has been healthy for DOWN_TIMEOUT_MILLIS
+	private void checkDown(){
+		if (monitors==null){
+			return;
+		}
+		for(int i=0;i<monitors.length;i++){
+			if (!failed[i] && (monitors[i].isHealthy() || monitors[i].getStateMillis()<DOWN_TIMEOUT_MILLIS)){
+				return;
+			}
+		}
+		failure=new IOException("No healthy source for "+DOWN_TIMEOUT_MILLIS+" ms");
+		notifyAll();
+	}
+
+	//next piece for source, null once the download is over for it
+	private synchronized Piece next(int source){
+		try {
+			while(true){
+				if (failed[source] || failure!=null || completed==pieces){
+					return null;
+				}
+				if (!isHealthy(source)){
+					checkDown();
+					wait(HealthMonitor.PROBE_INTERVAL_MILLIS);
+					continue;
+				}
+				Piece piece=queue.poll();
+				if (piece!=null){
+					piece.requesters.add(source);
+					outstanding.add(piece);
+					return piece;
+				}
+				if (endgame && outstanding.size()<=ENDGAME_PIECES){
+					//the outstanding piece with the fewest sources that this one is not working on yet
+					Piece best=null;
+					for(Piece candidate:outstanding){
+						if (!candidate.requesters.contains(source) && (best==null || candidate.requesters.size()<best.requesters.size())){
+							best=candidate;
+						}
+					}
+					if (best!=null){
+						best.requesters.add(source);
+						duplicatedPieces++;
+						return best;
+					}
+				}
+				wait();
+			}
+		} catch (InterruptedException ex) {
+			return null;
+		}
+	}
+
+	public synchronized long getDuplicatedPieces(){
+		return duplicatedPieces;
+	}
+
+	public synchronized long getCancelledRequests(){
+		return cancelledRequests;
+	}
+
+	public synchronized long getMovedPieces(){
+		return movedPieces;
+	}
+
+	public long getReceivedBytes(int source){
+		return receivedBytes[source].get();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options=new HashMap<String, String>();
+		options.put("runs", "10");
+		options.put("endgame", "both");
+		for(String arg:args){
+			int index=arg.indexOf('=');
+			if (index<0){
+				throw new IllegalArgumentException("key=value expected: "+arg);
+			}
+			options.put(arg.substring(0, index), arg.substring(index+1));
+		}
+		if (!options.containsKey("servers")){
+			throw new IllegalArgumentException("servers=ip:port,ip:port is mandatory");
+		}
+		String[] servers=options.get("servers").split(",");
+		ClientSession[] sessions=new ClientSession[servers.length];
+		for(int i=0;i<servers.length;i++){
+			String[] adr=servers[i].split(":");
+			sessions[i]=new ClientSession(adr[0], Integer.parseInt(adr[1]));
+		}
+		//file ids are per server, the file is matched by name
+		String fileName=options.get("file");
+		int[] file_ids=new int[sessions.length];
+		long size=-1;
+		for(int i=0;i<sessions.length;i++){
+			CatalogEntry found=null;
+			for(CatalogEntry entry:sessions[i].getCatalog(0, null, null)){
+				if (fileName==null){
+					fileName=entry.getFile_name();
+				}
+				if (entry.getFile_name().equals(fileName)){
+					found=entry;
+				}
+			}
+			if (found==null || (size>=0 && found.getSize()!=size)){
+				throw new IOException(servers[i]+" does not have the same "+fileName);
+			}
+			file_ids[i]=found.getFile_id();
+			size=found.getSize();
+		}
+		String mode=options.get("endgame");
+		boolean[] modes=mode.equals("both")?new boolean[]{false, true}:new boolean[]{mode.equals("1")};
+		int runs=Integer.parseInt(options.get("runs"));
+		File target=dummyClient.downloadTarget(dummyClient.DOWNLOADS_FOLDER, fileName);
+		for(boolean endgame:modes){
+			LatencyHistogram timeToComplete=new LatencyHistogram();
+			long duplicated=0;
+			long cancelled=0;
+			long[] bySource=new long[sessions.length];
+			for(int run=0;run<runs;run++){
+				MultiSourceDownloader downloader=new MultiSourceDownloader(sessions, file_ids, size, endgame);
+				AsyncChunkSink sink=new AsyncChunkSink(new RandomAccessFileSink(target, size));
+				long startTime=System.nanoTime();
+				try {
+					downloader.download(sink);
+				} finally {
+					sink.close();
+				}
+				timeToComplete.recordValue((System.nanoTime()-startTime)/1000);
+				duplicated+=downloader.getDuplicatedPieces();
+				cancelled+=downloader.getCancelledRequests();
+				for(int i=0;i<sessions.length;i++){
+					bySource[i]+=downloader.getReceivedBytes(i);
+				}
+			}
+			System.out.println(String.format(Locale.ROOT, "endgame:%s runs:%d size:%d p50:%.1fms p99:%.1fms max:%.1fms duplicated_pieces:%d cancelled_requests:%d",
+					endgame, runs, size, timeToComplete.getValueAtPercentile(50)/1000.0, timeToComplete.getValueAtPercentile(99)/1000.0, timeToComplete.getMaxValue()/1000.0, duplicated, cancelled));
+			for(int i=0;i<sessions.length;i++){
+				System.out.println("  "+servers[i]+" bytes:"+bySource[i]);
+			}
+			timeToComplete.outputPercentileDistribution(System.out, 5, 1000.0);
+		}
+		for(ClientSession session:sessions){
+			session.close();
+		}
+	}
+}
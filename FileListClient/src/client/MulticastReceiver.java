@@ -0,0 +1,218 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import model.FileDataResponseFlyweight;
+import model.MulticastSessionResponseType;
+import model.RangeSet;
+import model.RequestType;
+import model.ResponseType;
+
+/*
+ * Downloads a file from the server's multicast session. Datagrams of the group go to
+ * the sink next to unicast repairs, which arrive on the ClientSession tagged with the id
+ * of this receiver's NACK. While the pass runs the gaps below the highest byte seen are
+ * NACKed, once the group is quiet everything still missing is; what multicast cannot
+ * deliver is fetched with GET_FILE_DATA at the end.
+ *   java -classpath "bin:lib/*" client.MulticastReceiver server=127.0.0.1:5000 file=1 interface=lo receivers=4
+ * receivers starts that many receivers in this process, each writing to downloads/multicast-<n>.
+ */
+public class MulticastReceiver {
+	//no group data for this long before the first datagram means multicast does not reach us
+	public static final long FIRST_DATA_MILLIS=2000;
+	//no group data for this long after the first datagram means the pass is over
+	public static final long IDLE_MILLIS=300;
+	//NACK rounds in a row without any new byte before falling back to unicast
+	public static final int MAX_NACK_ROUNDS=30;
+
+	private ClientSession session=null;
+	private NetworkInterface networkInterface=null;
+	private volatile long groupBytes=0;
+	private long repairBytes=0;
+
+	//networkInterface is where the group is joined, null for the system default
+	public MulticastReceiver(ClientSession session, NetworkInterface networkInterface){
+		this.session=session;
+		this.networkInterface=networkInterface;
+	}
+
+	//returns the file size, sink gets every byte of the file exactly once
+	public long download(final int file_id, ChunkSink sink) throws IOException{
+		PendingRequest join=session.await(session.submit(RequestType.REQUEST_TYPES.JOIN_MULTICAST, file_id, 0, 0, null));
+		MulticastSessionResponseType response=new MulticastSessionResponseType(join.getResponse());
+		loggerManager.getInstance(this.getClass()).debug(response.toString());
+		final long size=response.getFileSize();
+		final InetSocketAddress group=response.getGroup();
+		final RangeSet received=new RangeSet();
+		//group datagrams and unicast repairs are written from two threads
+		final ChunkSink shared=synchronizedSink(sink);
+		final AtomicLong highest=new AtomicLong(0);
+		final AtomicLong lastData=new AtomicLong(0);
+
+		final MulticastSocket socket=new MulticastSocket(group.getPort());
+		socket.setReceiveBufferSize(dummyClient.RECEIVE_BUFFER_SIZE);
+		socket.joinGroup(group, networkInterface);
+		Thread groupReceiver=new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] receiveData=new byte[ClientSession.RESPONSE_BUFFER_SIZE];
+				DatagramPacket receivePacket=new DatagramPacket(receiveData, receiveData.length);
+				FileDataResponseFlyweight data=new FileDataResponseFlyweight();
+				while(!socket.isClosed()){
+					receivePacket.setLength(receiveData.length);
+					try {
+						socket.receive(receivePacket);
+					} catch (IOException ex) {
+						if (!socket.isClosed()){
+							loggerManager.getInstance(this.getClass()).error(ex.toString());
+						}
+						continue;
+					}
+					data.wrap(receiveData, receivePacket.getLength());
+					if (!data.isComplete() || data.getResponseType()!=ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS
+							|| data.getFile_id()!=(file_id & 0xFF) || data.getEnd_byte()>size){
+						continue;
+					}
+					lastData.set(System.currentTimeMillis());
+					highest.set(Math.max(highest.get(), data.getEnd_byte()));
+					try {
+						if (!received.contains(data.getStart_byte(), data.getEnd_byte())
+								&& shared.write(data.getStart_byte(), data.getBuffer(), data.getDataOffset(), data.getDataLength())){
+							groupBytes+=received.add(data.getStart_byte(), data.getEnd_byte());
+						}
+					} catch (IOException ex) {
+						loggerManager.getInstance(this.getClass()).error(ex.toString());
+					}
+				}
+			}
+		}, "multicast-"+group);
+		groupReceiver.setDaemon(true);
+		groupReceiver.start();
+
+		PendingRequest repairs=session.openRepairs(file_id, size, shared, received);
+		long joined=System.currentTimeMillis();
+		try {
+			int rounds=0;
+			long before=received.size();
+			while(received.size()<size && !repairs.isDone() && rounds<MAX_NACK_ROUNDS){
+				//repairs are asked for again at most once per RTO
+				Thread.sleep(Math.max(IDLE_MILLIS/3, session.getEstimator().getRtoNanos()/1000000));
+				long now=System.currentTimeMillis();
+				List<long[]> missing;
+				if (lastData.get()==0){
+					missing=now-joined>=FIRST_DATA_MILLIS?received.missing(1, size):null;
+				}
+				else{
+					missing=now-lastData.get()>=IDLE_MILLIS?received.missing(1, size):received.missing(1, highest.get());
+				}
+				if (missing!=null && !missing.isEmpty()){
+					session.sendNack(repairs, missing);
+				}
+				if (received.size()==before && now-lastData.get()>=IDLE_MILLIS){
+					rounds++;
+				}
+				else{
+					rounds=0;
+				}
+				before=received.size();
+			}
+		} catch (InterruptedException ex) {
+			throw new IOException(ex.toString());
+		} finally {
+			session.release(repairs);
+			socket.close();
+		}
+		repairBytes=received.size()-groupBytes;
+		if (received.size()<size){
+			//the session ended or multicast does not get through
+			loggerManager.getInstance(this.getClass()).warn("Multicast of file_id:"+file_id+" incomplete, fetching "+(size-received.size())+" bytes by unicast");
+			session.getFileData(file_id, 1, size, shared, received);
+		}
+		return size;
+	}
+
+	private static ChunkSink synchronizedSink(final ChunkSink sink){
+		return new ChunkSink() {
+			@Override
+			public synchronized boolean write(long start_byte, byte[] buf, int offset, int length) throws IOException {
+				return sink.write(start_byte, buf, offset, length);
+			}
+
+			@Override
+			public synchronized void close() throws IOException {
+				sink.close();
+			}
+		};
+	}
+
+	public long getGroupBytes(){
+		return groupBytes;
+	}
+
+	//bytes that came as unicast repairs, those of the GET_FILE_DATA fallback included
+	public long getRepairBytes(){
+		return repairBytes;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options=new HashMap<String, String>();
+		options.put("receivers", "1");
+		for(String arg:args){
+			int index=arg.indexOf('=');
+			if (index<0){
+				throw new IllegalArgumentException("key=value expected: "+arg);
+			}
+			options.put(arg.substring(0, index), arg.substring(index+1));
+		}
+		if (!options.containsKey("server") || !options.containsKey("file")){
+			throw new IllegalArgumentException("server=ip:port and file=file_id are mandatory");
+		}
+		final String[] adr=options.get("server").split(":");
+		final int file_id=Integer.parseInt(options.get("file"));
+		final NetworkInterface networkInterface=options.containsKey("interface")?NetworkInterface.getByName(options.get("interface")):null;
+		if (options.containsKey("interface") && networkInterface==null){
+			throw new SocketException("No interface "+options.get("interface"));
+		}
+		int receivers=Integer.parseInt(options.get("receivers"));
+		Thread[] threads=new Thread[receivers];
+		for(int i=0;i<receivers;i++){
+			final File target=new File(dummyClient.DOWNLOADS_FOLDER+"/multicast-"+i, String.valueOf(file_id));
+			threads[i]=new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ClientSession session=null;
+					try {
+						session=new ClientSession(adr[0], Integer.parseInt(adr[1]));
+						long size=session.getFileSize(file_id);
+						target.getParentFile().mkdirs();
+						MulticastReceiver receiver=new MulticastReceiver(session, networkInterface);
+						long startTime=System.currentTimeMillis();
+						receiver.download(file_id, new RandomAccessFileSink(target, size));
+						System.out.println(target.getPath()+": "+size+" bytes in "+(System.currentTimeMillis()-startTime)+" ms, multicast:"
+								+receiver.getGroupBytes()+" repairs:"+receiver.getRepairBytes());
+					} catch (IOException ex) {
+						loggerManager.getInstance(this.getClass()).error(ex.toString());
+					} finally {
+						if (session!=null){
+							session.close();
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread thread:threads){
+			thread.join();
+		}
+	}
+}
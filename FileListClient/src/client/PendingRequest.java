@@ -0,0 +1,219 @@
+package client;
+
+import java.util.concurrent.CompletableFuture;
+
+import model.RangeSet;
+import model.ResponseType;
+
+//one outstanding request of a ClientSession, completed by the session's receiver thread
+public class PendingRequest {
+	private int request_id;
+	private int requestType;
+	private int file_id;
+	private long start_byte;
+	private long end_byte;
+	private ChunkSink sink=null;
+	private RangeSet received=null;
+	private byte[] payload=null;
+	//set for GET_FILE_DATA before it goes out
+	private LinkEstimator.Range linkRange=null;
+
+	private long sentTime=0;
+	private int sends=0;
+	private boolean answered=false;
+	private long progress=0;
+	private long busyMillis=0;
+	private int busyResponses=0;
+
+	private boolean done=false;
+	private int responseType=-1;
+	private byte[] response=null;
+	private Exception failure=null;
+	//a GET_CATALOG page that waits for the inline first chunk, see hold
+	private int heldResponseType=-1;
+	private byte[] heldResponse=null;
+	//completes with the request once it is done, whatever the outcome
+	private CompletableFuture<PendingRequest> completion=new CompletableFuture<PendingRequest>();
+
+	public PendingRequest(int request_id, int requestType, int file_id, long start_byte, long end_byte, ChunkSink sink, RangeSet received){
+		this.request_id=request_id;
+		this.requestType=requestType;
+		this.file_id=file_id;
+		this.start_byte=start_byte;
+		this.end_byte=end_byte;
+		this.sink=sink;
+		this.received=received;
+	}
+
+	//sent after the request id, set before the request goes out
+	void setPayload(byte[] payload){
+		this.payload=payload;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	void setLinkRange(LinkEstimator.Range linkRange){
+		this.linkRange=linkRange;
+	}
+
+	LinkEstimator.Range getLinkRange(){
+		return linkRange;
+	}
+
+	synchronized void onSent(long nowNanos){
+		sentTime=nowNanos;
+		sends++;
+	}
+
+	//true for the first answer of a request that was sent once, the only case that gives a clean RTT sample
+	synchronized boolean onAnswered(){
+		boolean clean=!answered && sends==1;
+		answered=true;
+		return clean;
+	}
+
+	void onData(){
+		boolean complete;
+		synchronized(this){
+			progress++;
+			complete=received.contains(start_byte, end_byte);
+		}
+		if (complete){
+			complete(ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS, null);
+		}
+	}
+
+	void complete(int responseType, byte[] response){
+		synchronized(this){
+			if (done){
+				return;
+			}
+			this.responseType=responseType;
+			this.response=response;
+			this.done=true;
+			progress++;
+			notifyAll();
+		}
+		//dependent stages run outside the lock
+		completion.complete(this);
+	}
+
+	/*
+	 * Keeps an answer back instead of completing with it, until data arrives for the
+	 * request or its RTO runs out; then releaseHeld completes with it.
+	 */
+	synchronized void hold(int responseType, byte[] response){
+		heldResponseType=responseType;
+		heldResponse=response;
+	}
+
+	//false when no answer is held
+	boolean releaseHeld(){
+		int responseType;
+		byte[] response;
+		synchronized(this){
+			if (heldResponse==null){
+				return false;
+			}
+			responseType=heldResponseType;
+			response=heldResponse;
+			heldResponse=null;
+		}
+		complete(responseType, response);
+		return true;
+	}
+
+	//BUSY answer: the waiter backs off for retryAfterMillis and resends
+	synchronized void onBusy(long retryAfterMillis){
+		busyMillis=Math.max(1, retryAfterMillis);
+		busyResponses++;
+		notifyAll();
+	}
+
+	synchronized long takeBusyMillis(){
+		long result=busyMillis;
+		busyMillis=0;
+		return result;
+	}
+
+	public synchronized int getBusyResponses(){
+		return busyResponses;
+	}
+
+	void fail(Exception failure){
+		synchronized(this){
+			if (done){
+				return;
+			}
+			this.failure=failure;
+		}
+		complete(-1, null);
+	}
+
+	public synchronized void awaitDone(long timeoutMillis) throws InterruptedException{
+		long deadline=System.currentTimeMillis()+timeoutMillis;
+		long remaining=timeoutMillis;
+		while(!done && busyMillis==0 && remaining>0){
+			wait(remaining);
+			remaining=deadline-System.currentTimeMillis();
+		}
+	}
+
+	public int getRequest_id() {
+		return request_id;
+	}
+
+	public int getRequestType() {
+		return requestType;
+	}
+
+	public int getFile_id() {
+		return file_id;
+	}
+
+	public long getStart_byte() {
+		return start_byte;
+	}
+
+	public long getEnd_byte() {
+		return end_byte;
+	}
+
+	public ChunkSink getSink() {
+		return sink;
+	}
+
+	public RangeSet getReceived() {
+		return received;
+	}
+
+	public synchronized long getSentTime() {
+		return sentTime;
+	}
+
+	public synchronized long getProgress() {
+		return progress;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized int getResponseType() {
+		return responseType;
+	}
+
+	public synchronized byte[] getResponse() {
+		return response;
+	}
+
+	public synchronized Exception getFailure() {
+		return failure;
+	}
+
+	public CompletableFuture<PendingRequest> getCompletion() {
+		return completion;
+	}
+}
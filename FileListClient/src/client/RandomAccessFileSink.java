@@ -0,0 +1,35 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class RandomAccessFileSink implements ChunkSink {
+	private RandomAccessFile raf=null;
+	private long position=-1;
+
+	public RandomAccessFileSink(File file, long size) throws IOException{
+		File parent=file.getParentFile();
+		if (parent!=null){
+			parent.mkdirs();
+		}
+		raf=new RandomAccessFile(file, "rw");
+		raf.setLength(size);
+	}
+
+	@Override
+	public boolean write(long start_byte, byte[] buf, int offset, int length) throws IOException {
+		//chunks mostly arrive in order, skip the seek when they do
+		if (position!=start_byte-1){
+			raf.seek(start_byte-1);
+		}
+		raf.write(buf, offset, length);
+		position=start_byte-1+length;
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+}
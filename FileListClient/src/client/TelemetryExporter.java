@@ -0,0 +1,86 @@
+package client;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Appends a line per LinkEstimator every period, CSV or JSON lines when the file
+ * name ends with .json.
+ */
+public class TelemetryExporter {
+	private String fileName=null;
+	private boolean json;
+	private long periodMillis;
+	private ScheduledExecutorService executor=null;
+
+	public TelemetryExporter(String fileName, long periodMillis){
+		this.fileName=fileName;
+		this.periodMillis=periodMillis;
+		this.json=fileName.endsWith(".json");
+	}
+
+	public synchronized void start(){
+		if (executor!=null){
+			return;
+		}
+		executor=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread=new Thread(r, "telemetry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (!json && !new File(fileName).exists()){
+			write(LinkEstimator.csvHeader());
+		}
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				export();
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop(){
+		if (executor!=null){
+			executor.shutdown();
+			executor=null;
+			export();
+		}
+	}
+
+	public void export(){
+		long timestamp=System.currentTimeMillis();
+		StringBuffer lines=new StringBuffer();
+		for(LinkEstimator estimator:LinkEstimator.getAll()){
+			if (lines.length()>0){
+				lines.append("\n");
+			}
+			lines.append(json?estimator.toJson(timestamp):estimator.toCsv(timestamp));
+		}
+		if (lines.length()>0){
+			write(lines.toString());
+		}
+	}
+
+	private synchronized void write(String lines){
+		PrintWriter writer=null;
+		try {
+			writer=new PrintWriter(new FileWriter(fileName, true));
+			writer.println(lines);
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+		} finally {
+			if (writer!=null){
+				writer.close();
+			}
+		}
+	}
+}
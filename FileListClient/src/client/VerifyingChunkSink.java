@@ -0,0 +1,89 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import model.MerkleTree;
+import model.RangeSet;
+
+/*
+ * Collects chunks per hash tree block and checks each block against its leaf hash as
+ * soon as the block is complete. Verified blocks go on to the wrapped sink in one write,
+ * corrupted ones are dropped and reported by takeBadBlocks so only they are fetched again.
+ */
+public class VerifyingChunkSink implements ChunkSink {
+	private ChunkSink target=null;
+	private MerkleTree tree=null;
+	private long size;
+	private HashMap<Integer, PartialBlock> partial=new HashMap<Integer, PartialBlock>();
+	private BitSet verified=new BitSet();
+	private List<Integer> badBlocks=new ArrayList<Integer>();
+
+	private static class PartialBlock{
+		private byte[] buf;
+		private RangeSet covered=new RangeSet();
+
+		PartialBlock(int length){
+			buf=new byte[length];
+		}
+	}
+
+	public VerifyingChunkSink(ChunkSink target, MerkleTree tree, long size){
+		this.target=target;
+		this.tree=tree;
+		this.size=size;
+	}
+
+	@Override
+	public synchronized boolean write(long start_byte, byte[] buf, int offset, int length) throws IOException {
+		long end_byte=start_byte+length-1;
+		int lastBlock=(int)((end_byte-1)/MerkleTree.BLOCK_SIZE);
+		for(int block=(int)((start_byte-1)/MerkleTree.BLOCK_SIZE);block<=lastBlock;block++){
+			if (verified.get(block)){
+				continue;
+			}
+			long blockStart=MerkleTree.blockStart(block);
+			long blockEnd=MerkleTree.blockEnd(block, size);
+			PartialBlock partialBlock=partial.get(block);
+			if (partialBlock==null){
+				partialBlock=new PartialBlock((int)(blockEnd-blockStart+1));
+				partial.put(block, partialBlock);
+			}
+			long from=Math.max(start_byte, blockStart);
+			long to=Math.min(end_byte, blockEnd);
+			System.arraycopy(buf, offset+(int)(from-start_byte), partialBlock.buf, (int)(from-blockStart), (int)(to-from+1));
+			partialBlock.covered.add(from, to);
+			if (partialBlock.covered.contains(blockStart, blockEnd)){
+				partial.remove(block);
+				if (tree.verify(block, partialBlock.buf, 0, partialBlock.buf.length)){
+					target.write(blockStart, partialBlock.buf, 0, partialBlock.buf.length);
+					verified.set(block);
+				}
+				else{
+					loggerManager.getInstance(this.getClass()).warn("Block "+block+" ("+blockStart+"-"+blockEnd+") does not match its hash");
+					badBlocks.add(block);
+				}
+			}
+		}
+		return true;
+	}
+
+	//blocks that failed verification since the last call
+	public synchronized List<Integer> takeBadBlocks(){
+		List<Integer> result=badBlocks;
+		badBlocks=new ArrayList<Integer>();
+		return result;
+	}
+
+	public synchronized int getVerifiedBlocks(){
+		return verified.cardinality();
+	}
+
+	@Override
+	public void close() throws IOException {
+		target.close();
+	}
+}
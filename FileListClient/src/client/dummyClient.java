@@ -1,80 +1,47 @@
 package client;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.util.Scanner;
 
-import model.FileDataResponseType;
-import model.FileListResponseType;
-import model.FileSizeResponseType;
+import model.CatalogEntry;
 import model.RequestType;
 import model.ResponseType;
-import model.ResponseType.RESPONSE_TYPES;
 import client.loggerManager;
 
 public class dummyClient {
 
-    private void sendInvalidRequest(String ip, int port) throws IOException {
-        DatagramSocket dsocket = null;
-        try {
-            InetAddress IPAddress = InetAddress.getByName(ip);
-            RequestType req = new RequestType(4, 0, 0, 0, null);
-            byte[] sendData = req.toByteArray();
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, IPAddress, port);
-            dsocket = new DatagramSocket();
-            dsocket.send(sendPacket);
-            byte[] receiveData = new byte[ResponseType.MAX_RESPONSE_SIZE];
-            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            dsocket.receive(receivePacket);
-            ResponseType response = new ResponseType(receivePacket.getData());
-            loggerManager.getInstance(this.getClass()).debug(response.toString());
-        } finally {
-            if (dsocket != null) {
-                dsocket.close();
-            }
-        }
-    }
+    public static final String DOWNLOADS_FOLDER = "downloads";
+    // absorbs the server's bursts, the kernel caps it at net.core.rmem_max
+    public static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
 
-
-    private void getFileList(String ip, int port) throws IOException {
-        DatagramSocket dsocket = null;
-        try {
-            InetAddress IPAddress = InetAddress.getByName(ip);
-            RequestType req = new RequestType(RequestType.REQUEST_TYPES.GET_FILE_LIST, 0, 0, 0, null);
-            byte[] sendData = req.toByteArray();
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, IPAddress, port);
-            dsocket = new DatagramSocket();
-            dsocket.send(sendPacket);
-            byte[] receiveData = new byte[ResponseType.MAX_RESPONSE_SIZE];
-            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            dsocket.receive(receivePacket);
-            FileListResponseType response = new FileListResponseType(receivePacket.getData());
-            loggerManager.getInstance(this.getClass()).debug(response.toString());
-        } finally {
-            if (dsocket != null) {
-                dsocket.close();
-            }
+    // file names come from the server, one like "../x" must not lead out of folder
+    public static File downloadTarget(String folder, String fileName) throws IOException {
+        File base = new File(folder).getCanonicalFile();
+        File target = new File(base, fileName).getCanonicalFile();
+        if (!target.getPath().startsWith(base.getPath() + File.separator)) {
+            throw new IOException("File name outside " + folder + ": " + fileName);
         }
+        return target;
     }
 
-
-    private long getFileSize(String ip, int port, int file_id) throws IOException {
+    private void sendInvalidRequest(String ip, int port) throws IOException {
         DatagramSocket dsocket = null;
         try {
             InetAddress IPAddress = InetAddress.getByName(ip);
-            RequestType req = new RequestType(RequestType.REQUEST_TYPES.GET_FILE_SIZE, file_id, 0, 0, null);
+            RequestType req = new RequestType(0, 0, 0, 0, null);
             byte[] sendData = req.toByteArray();
             DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, IPAddress, port);
             dsocket = new DatagramSocket();
             dsocket.send(sendPacket);
-            byte[] receiveData = new byte[ResponseType.MAX_RESPONSE_SIZE];
+            byte[] receiveData = new byte[ResponseType.MAX_UDP_PAYLOAD];
             DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
             dsocket.receive(receivePacket);
-            FileSizeResponseType response = new FileSizeResponseType(receivePacket.getData());
+            ResponseType response = new ResponseType(receivePacket.getData());
             loggerManager.getInstance(this.getClass()).debug(response.toString());
-            return response.getFileSize();
         } finally {
             if (dsocket != null) {
                 dsocket.close();
@@ -82,35 +49,6 @@ public class dummyClient {
         }
     }
 
-    private void getFileData(String ip, int port, int file_id, long start, long end) throws IOException {
-        DatagramSocket dsocket = null;
-        try {
-            InetAddress IPAddress = InetAddress.getByName(ip);
-            RequestType req = new RequestType(RequestType.REQUEST_TYPES.GET_FILE_DATA, file_id, start, end, null);
-            byte[] sendData = req.toByteArray();
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, IPAddress, port);
-            dsocket = new DatagramSocket();
-            dsocket.send(sendPacket);
-            byte[] receiveData = new byte[ResponseType.MAX_RESPONSE_SIZE];
-            long maxReceivedByte = -1;
-            while (maxReceivedByte < end) {
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                dsocket.receive(receivePacket);
-                FileDataResponseType response = new FileDataResponseType(receivePacket.getData());
-                loggerManager.getInstance(this.getClass()).debug(response.toString());
-                if (response.getResponseType() != RESPONSE_TYPES.GET_FILE_DATA_SUCCESS) {
-                    break;
-                }
-                if (response.getEnd_byte() > maxReceivedByte) {
-                    maxReceivedByte = response.getEnd_byte();
-                }
-            }
-        } finally {
-            if (dsocket != null) {
-                dsocket.close();
-            }
-        }
-    }
 
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
@@ -125,31 +63,91 @@ public class dummyClient {
         int port2 = Integer.parseInt(adr2[1]);
 
 
-        dummyClient inst = new dummyClient();
+        // optional third argument: file that receives per server telemetry every second (.json for JSON lines, CSV otherwise)
+        TelemetryExporter exporter = null;
+        if (args.length > 2) {
+            exporter = new TelemetryExporter(args[2], 1000);
+            exporter.start();
+        }
+
+        // one socket per server for the whole run, requests are tagged and may overlap
+        ClientSession session = new ClientSession(ip1, port1);
+        ClientSession[] sessions = {session, new ClientSession(ip2, port2)};
+        // largest datagrams the path carries, the server's default size if it does not negotiate
+        System.out.println("Data size: " + session.negotiateDataSize());
+        // both servers serve the same files under the same ids, probes tell which of them can be used
+        HealthMonitor[] monitors = null;
 
         Scanner scanner = new Scanner(System.in);
         
         while (true) {
-            inst.getFileList(ip1, port1);
+            // names, sizes and hashes in one round trip, no separate GET_FILE_SIZE needed
+            CatalogEntry[] files = session.getCatalog(0, null, null);
             System.out.println("Enter the file id to download or -1 to exit");
             int fileId = scanner.nextInt();
             if (fileId == -1) {
                 break;
             }
             System.out.println("You have chosen file number " + fileId + ". Getting the size info...");
-            long size = inst.getFileSize(ip1, port1, fileId);
+            CatalogEntry chosen = null;
+            for (CatalogEntry file : files) {
+                if (file.getFile_id() == fileId) {
+                    chosen = file;
+                }
+            }
+            long size = chosen != null ? chosen.getSize() : session.getFileSize(fileId);
             System.out.println("The file size is " + size + " bytes. Starting download...");
             long startTime = System.currentTimeMillis();
 
 
-            inst.getFileData(ip1, port1, fileId, 1, size);
+            String fileName = chosen != null ? chosen.getFile_name() : String.valueOf(fileId);
+            // blocks are checked against the file's hash tree as they arrive, corrupted ones are fetched again
+            File target = downloadTarget(DOWNLOADS_FOLDER, fileName);
+            // files of subdirectories are named by their relative path
+            target.getParentFile().mkdirs();
+            if (target.isFile()) {
+                // an older copy is there, only chunks it does not share with the server's copy are downloaded
+                File part = downloadTarget(DOWNLOADS_FOLDER, fileName + ".part");
+                long reused = session.getVerifiedFileData(fileId, size, new RandomAccessFileSink(part, size), target);
+                if (!target.delete() || !part.renameTo(target)) {
+                    throw new IOException("Could not replace " + target.getPath());
+                }
+                System.out.println("Reused " + reused + " of " + size + " bytes from the existing copy");
+            } else {
+                if (monitors == null) {
+                    monitors = new HealthMonitor[sessions.length];
+                    for (int i = 0; i < sessions.length; i++) {
+                        monitors[i] = new HealthMonitor(sessions[i], fileId);
+                        monitors[i].start();
+                    }
+                }
+                // ranges of a server that stops answering move to the other one and come back when it recovers
+                MultiSourceDownloader downloader = new MultiSourceDownloader(sessions, new int[]{fileId, fileId}, size, true, monitors);
+                // closes the file once everything is verified and written
+                downloader.downloadVerified(new RandomAccessFileSink(target, size), session.getHashes(fileId));
+                System.out.println("Bytes per server: " + downloader.getReceivedBytes(0) + " " + downloader.getReceivedBytes(1) + ", pieces moved: " + downloader.getMovedPieces());
+            }
 
             // calculate the time taken to download the file
             long endTime = System.currentTimeMillis();
             long timeTaken = endTime - startTime;
             System.out.println("Time taken to download the file is " + timeTaken + " milliseconds");
+            System.out.println(LinkEstimator.csvHeader());
+            System.out.println(LinkEstimator.get(ip1, port1));
+            System.out.println(LinkEstimator.get(ip2, port2));
         }
 
         scanner.close();
+        if (monitors != null) {
+            for (HealthMonitor monitor : monitors) {
+                monitor.close();
+            }
+        }
+        for (ClientSession s : sessions) {
+            s.close();
+        }
+        if (exporter != null) {
+            exporter.stop();
+        }
     }
 }
@@ -0,0 +1,105 @@
+package model;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+public class CatalogEntry {
+	public static final int HASH_SIZE=32;
+	//file_id 1 byte|size 4 bytes|mtime 8 bytes|sha-256 32 bytes|file name|'\0'
+	public static final int FIXED_SIZE=1+4+8+HASH_SIZE+1;
+
+	private int file_id;
+	private String file_name;
+	private long size;
+	private long mtime;
+	private byte[] hash;
+
+	public CatalogEntry(int file_id, String file_name, long size, long mtime, byte[] hash) {
+		this.file_id=file_id;
+		this.file_name=file_name;
+		this.size=size;
+		this.mtime=mtime;
+		this.hash=hash;
+	}
+
+	public int getFile_id() {
+		return file_id;
+	}
+
+	public String getFile_name() {
+		return file_name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getMtime() {
+		return mtime;
+	}
+
+	public byte[] getHash() {
+		return hash;
+	}
+
+	public int encodedSize(){
+		return FIXED_SIZE+file_name.getBytes().length;
+	}
+
+	public byte[] toByte(){
+		byte[] fileName=file_name.getBytes();
+		byte[] rawData=new byte[FIXED_SIZE+fileName.length];
+		rawData[0]=(byte)(file_id & 0xFF);
+		writeLong(rawData, 1, 4, size);
+		writeLong(rawData, 5, 8, mtime);
+		System.arraycopy(hash, 0, rawData, 13, HASH_SIZE);
+		System.arraycopy(fileName, 0, rawData, 13+HASH_SIZE, fileName.length);
+		rawData[rawData.length-1]='\0';
+		return rawData;
+	}
+
+	//parses the entry at offset, the number of bytes used is encodedSize()
+	public static CatalogEntry parse(byte[] data, int offset){
+		if (offset+FIXED_SIZE>data.length){
+			throw new InvalidParameterException("Truncated catalog entry");
+		}
+		int file_id=(int)data[offset] & 0xFF;
+		long size=readLong(data, offset+1, 4);
+		long mtime=readLong(data, offset+5, 8);
+		byte[] hash=Arrays.copyOfRange(data, offset+13, offset+13+HASH_SIZE);
+		int nameStart=offset+13+HASH_SIZE;
+		int nameEnd=nameStart;
+		while(nameEnd<data.length && data[nameEnd]!='\0'){
+			nameEnd++;
+		}
+		return new CatalogEntry(file_id, new String(data, nameStart, nameEnd-nameStart), size, mtime, hash);
+	}
+
+	private static void writeLong(byte[] rawData, int offset, int length, long value){
+		for(int i=offset+length-1;i>=offset;i--){
+			rawData[i]=(byte)(value & 0xFF);
+			value>>=8;
+		}
+	}
+
+	private static long readLong(byte[] rawData, int offset, int length){
+		long value=0;
+		for(int i=offset;i<offset+length;i++){
+			value=(value << 8)|((int)rawData[i] & 0xFF);
+		}
+		return value;
+	}
+
+	public static String toHex(byte[] bytes){
+		StringBuffer sb=new StringBuffer();
+		for(byte b:bytes){
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return file_id+"-"+file_name+" size:"+size+" mtime:"+mtime+" sha256:"+toHex(hash);
+	}
+}
@@ -0,0 +1,96 @@
+package model;
+
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Pattern;
+
+/*
+ * Name filter of a QUERY_CATALOG request and its cursor. A pattern without '*' or '?' is
+ * a prefix, otherwise a glob where '*' matches any run of characters except '/' and '?'
+ * one character except '/'. Matches are returned in name order after the cursor name.
+ */
+public class CatalogQuery {
+	private String pattern;
+	private String after;
+	private Pattern glob=null;
+
+	public CatalogQuery(String pattern, String after){
+		this.pattern=pattern;
+		this.after=after;
+		if (isGlob()){
+			glob=Pattern.compile(toRegex(pattern));
+		}
+	}
+
+	//pattern '\0' after, both UTF-8
+	public static CatalogQuery parse(byte[] payload){
+		try {
+			String text=new String(payload, "UTF-8");
+			int index=text.indexOf('\0');
+			if (index<0){
+				return new CatalogQuery(text, "");
+			}
+			return new CatalogQuery(text.substring(0, index), text.substring(index+1));
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public byte[] toByteArray(){
+		try {
+			return (pattern+"\0"+after).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static String toRegex(String glob){
+		StringBuffer sb=new StringBuffer();
+		for(char c:glob.toCharArray()){
+			if (c=='*'){
+				sb.append("[^/]*");
+			}
+			else if (c=='?'){
+				sb.append("[^/]");
+			}
+			else{
+				sb.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return sb.toString();
+	}
+
+	public boolean isGlob(){
+		return pattern.indexOf('*')>=0 || pattern.indexOf('?')>=0;
+	}
+
+	//every match starts with this, it bounds the part of the name index to look at
+	public String getLiteralPrefix(){
+		if (!isGlob()){
+			return pattern;
+		}
+		int index=0;
+		while(index<pattern.length() && pattern.charAt(index)!='*' && pattern.charAt(index)!='?'){
+			index++;
+		}
+		return pattern.substring(0, index);
+	}
+
+	public boolean matches(String name){
+		if (glob!=null){
+			return glob.matcher(name).matches();
+		}
+		return name.startsWith(pattern);
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	public String getAfter() {
+		return after;
+	}
+
+	public CatalogQuery next(String lastName){
+		return new CatalogQuery(pattern, lastName);
+	}
+}
@@ -0,0 +1,69 @@
+package model;
+
+import java.security.InvalidParameterException;
+
+public class CatalogResponseType extends ResponseType {
+	private CatalogEntry[] entries=null;
+
+	public CatalogResponseType(int page, int pageCount, CatalogEntry[] entries) {
+		super(RESPONSE_TYPES.GET_CATALOG_SUCCESS, entries.length, page, pageCount, encode(entries));
+		this.entries=entries;
+	}
+
+	public CatalogResponseType(byte[] rawData){
+		super(rawData);
+		setEntries();
+	}
+
+	private static byte[] encode(CatalogEntry[] entries){
+		int length=0;
+		for(CatalogEntry entry:entries){
+			length+=entry.encodedSize();
+		}
+		byte[] result=new byte[length];
+		int offset=0;
+		for(CatalogEntry entry:entries){
+			byte[] entryBytes=entry.toByte();
+			System.arraycopy(entryBytes, 0, result, offset, entryBytes.length);
+			offset+=entryBytes.length;
+		}
+		return result;
+	}
+
+	private void setEntries(){
+		entries=new CatalogEntry[this.getFile_id()];
+		byte[] data=this.getData();
+		int offset=0;
+		for(int i=0;i<entries.length;i++){
+			entries[i]=CatalogEntry.parse(data, offset);
+			offset+=entries[i].encodedSize();
+		}
+		if (offset>data.length){
+			throw new InvalidParameterException("Number of entries does not match with the data");
+		}
+	}
+
+	public int getPage(){
+		return (int)getStart_byte();
+	}
+
+	public int getPageCount(){
+		return (int)getEnd_byte();
+	}
+
+	public CatalogEntry[] getEntries(){
+		return entries;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb=new StringBuffer("\nresponse_type:"+this.getResponseType());
+		sb.append("\nentries:"+this.getFile_id());
+		sb.append("\npage:"+this.getPage()+"/"+this.getPageCount());
+		sb.append("\ndata:");
+		for(CatalogEntry entry:entries){
+			sb.append("\n"+entry.toString());
+		}
+		return sb.toString();
+	}
+}
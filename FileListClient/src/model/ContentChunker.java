@@ -0,0 +1,108 @@
+package model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Content defined chunking with a rolling gear hash: a chunk ends where the low bits of
+ * the hash over the last bytes are all zero, so an insert or delete only moves the
+ * boundaries next to it. Server and client must cut the same way, the gear table comes
+ * from a fixed seed.
+ */
+public class ContentChunker {
+	public static final int MIN_CHUNK_SIZE=2*1024;
+	public static final int MAX_CHUNK_SIZE=64*1024;
+	//13 bits, about 8KB between boundaries after MIN_CHUNK_SIZE
+	private static final long BOUNDARY_MASK=(1L<<13)-1;
+	//truncated SHA-256 of the chunk
+	public static final int STRONG_HASH_SIZE=16;
+
+	private static final long[] GEAR=new long[256];
+	static{
+		Random random=new Random(0x5EEDL);
+		for(int i=0;i<GEAR.length;i++){
+			GEAR[i]=random.nextLong();
+		}
+	}
+
+	public static class Chunk{
+		//0 based
+		private long offset;
+		private int length;
+		private byte[] hash;
+
+		public Chunk(long offset, int length, byte[] hash){
+			this.offset=offset;
+			this.length=length;
+			this.hash=hash;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public byte[] getHash() {
+			return hash;
+		}
+
+		//1 based range like the protocol ranges
+		public long getStart_byte() {
+			return offset+1;
+		}
+
+		public long getEnd_byte() {
+			return offset+length;
+		}
+
+		public String getHashKey() {
+			return CatalogEntry.toHex(hash);
+		}
+
+		@Override
+		public String toString() {
+			return offset+"+"+length+" "+getHashKey();
+		}
+	}
+
+	public static List<Chunk> chunk(InputStream in) throws IOException{
+		List<Chunk> chunks=new ArrayList<Chunk>();
+		MessageDigest digest=MerkleTree.newDigest();
+		byte[] chunkBuf=new byte[MAX_CHUNK_SIZE];
+		byte[] readBuf=new byte[64*1024];
+		int chunkLength=0;
+		long chunkOffset=0;
+		long hash=0;
+		int read;
+		while((read=in.read(readBuf))>0){
+			for(int i=0;i<read;i++){
+				byte b=readBuf[i];
+				chunkBuf[chunkLength++]=b;
+				hash=(hash<<1)+GEAR[b & 0xFF];
+				if ((chunkLength>=MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK)==0) || chunkLength==MAX_CHUNK_SIZE){
+					chunks.add(newChunk(digest, chunkOffset, chunkBuf, chunkLength));
+					chunkOffset+=chunkLength;
+					chunkLength=0;
+					hash=0;
+				}
+			}
+		}
+		if (chunkLength>0){
+			chunks.add(newChunk(digest, chunkOffset, chunkBuf, chunkLength));
+		}
+		return chunks;
+	}
+
+	private static Chunk newChunk(MessageDigest digest, long offset, byte[] buf, int length){
+		digest.update(buf, 0, length);
+		return new Chunk(offset, length, Arrays.copyOf(digest.digest(), STRONG_HASH_SIZE));
+	}
+}
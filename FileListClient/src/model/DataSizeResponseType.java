@@ -0,0 +1,32 @@
+package model;
+
+/*
+ * Answer to NEGOTIATE_DATA_SIZE. The padding makes the datagram as large as the data
+ * responses of that size will be, so its arrival shows the path carries them.
+ */
+public class DataSizeResponseType extends ResponseType {
+
+	public DataSizeResponseType(int data_size, int default_data_size) {
+		super(RESPONSE_TYPES.NEGOTIATE_DATA_SIZE_SUCCESS, 0, data_size, default_data_size, new byte[data_size]);
+	}
+
+	public DataSizeResponseType(byte[] rawData){
+		super(rawData);
+	}
+
+	public int getDataSize(){
+		return (int)getStart_byte();
+	}
+
+	public int getDefaultDataSize(){
+		return (int)getEnd_byte();
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb=new StringBuffer("\nresponse_type:"+this.getResponseType());
+		sb.append("\ndata_size:"+getDataSize());
+		sb.append("\ndefault_data_size:"+getDefaultDataSize());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package model;
+
+import java.security.InvalidParameterException;
+
+public class DirectoryResponseType extends ResponseType {
+	private DirectoryEntry[] entries=null;
+
+	public DirectoryResponseType(int directory_id, DirectoryEntry[] entries, boolean more) {
+		super(RESPONSE_TYPES.LIST_DIRECTORY_SUCCESS, entries.length, more?1:0, directory_id, encode(entries));
+		this.entries=entries;
+	}
+
+	public DirectoryResponseType(byte[] rawData){
+		super(rawData);
+		entries=new DirectoryEntry[this.getFile_id()];
+		byte[] data=this.getData();
+		int offset=0;
+		for(int i=0;i<entries.length;i++){
+			entries[i]=DirectoryEntry.parse(data, offset);
+			offset+=entries[i].encodedSize();
+		}
+		if (offset>data.length){
+			throw new InvalidParameterException("Number of entries does not match with the data");
+		}
+	}
+
+	private static byte[] encode(DirectoryEntry[] entries){
+		int length=0;
+		for(DirectoryEntry entry:entries){
+			length+=entry.encodedSize();
+		}
+		byte[] result=new byte[length];
+		int offset=0;
+		for(DirectoryEntry entry:entries){
+			byte[] entryBytes=entry.toByte();
+			System.arraycopy(entryBytes, 0, result, offset, entryBytes.length);
+			offset+=entryBytes.length;
+		}
+		return result;
+	}
+
+	public DirectoryEntry[] getEntries(){
+		return entries;
+	}
+
+	public int getDirectory_id(){
+		return (int)getEnd_byte();
+	}
+
+	//false once the last child was returned
+	public boolean hasMore(){
+		return getStart_byte()!=0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb=new StringBuffer("\nresponse_type:"+this.getResponseType());
+		sb.append("\ndirectory:"+this.getDirectory_id());
+		sb.append("\nentries:"+this.getFile_id());
+		sb.append("\nmore:"+this.hasMore());
+		sb.append("\ndata:");
+		for(DirectoryEntry entry:entries){
+			sb.append("\n"+entry.toString());
+		}
+		return sb.toString();
+	}
+}
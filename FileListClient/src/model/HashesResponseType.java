@@ -0,0 +1,71 @@
+package model;
+
+import java.security.InvalidParameterException;
+
+/*
+ * Page of a file's hash tree: the root followed by the leaf hashes starting at
+ * start_byte. end_byte is the number of leaves of the whole tree, file_id the file.
+ */
+public class HashesResponseType extends ResponseType {
+	private byte[] root=null;
+	private byte[][] leaves=null;
+
+	public HashesResponseType(int file_id, int firstLeaf, int leafCount, byte[] root, byte[][] leaves) {
+		super(RESPONSE_TYPES.GET_HASHES_SUCCESS, file_id, firstLeaf, leafCount, encode(root, leaves));
+		this.root=root;
+		this.leaves=leaves;
+	}
+
+	public HashesResponseType(byte[] rawData){
+		super(rawData);
+		byte[] data=this.getData();
+		if (data.length<MerkleTree.HASH_SIZE || data.length%MerkleTree.HASH_SIZE!=0){
+			throw new InvalidParameterException("Hash data length is not a multiple of the hash size");
+		}
+		root=new byte[MerkleTree.HASH_SIZE];
+		System.arraycopy(data, 0, root, 0, root.length);
+		leaves=new byte[data.length/MerkleTree.HASH_SIZE-1][MerkleTree.HASH_SIZE];
+		for(int i=0;i<leaves.length;i++){
+			System.arraycopy(data, (i+1)*MerkleTree.HASH_SIZE, leaves[i], 0, MerkleTree.HASH_SIZE);
+		}
+	}
+
+	private static byte[] encode(byte[] root, byte[][] leaves){
+		byte[] result=new byte[(leaves.length+1)*MerkleTree.HASH_SIZE];
+		System.arraycopy(root, 0, result, 0, MerkleTree.HASH_SIZE);
+		for(int i=0;i<leaves.length;i++){
+			System.arraycopy(leaves[i], 0, result, (i+1)*MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
+		}
+		return result;
+	}
+
+	//leaf hashes that fit into one response next to the root
+	public static int leavesPerResponse(int maxDataSize){
+		return Math.max(1, maxDataSize/MerkleTree.HASH_SIZE-1);
+	}
+
+	public int getFirstLeaf(){
+		return (int)getStart_byte();
+	}
+
+	public int getLeafCount(){
+		return (int)getEnd_byte();
+	}
+
+	public byte[] getRoot(){
+		return root;
+	}
+
+	public byte[][] getLeaves(){
+		return leaves;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb=new StringBuffer("\nresponse_type:"+this.getResponseType());
+		sb.append("\nfile_id:"+this.getFile_id());
+		sb.append("\nleaves:"+this.getFirstLeaf()+"-"+(this.getFirstLeaf()+leaves.length-1)+"/"+this.getLeafCount());
+		sb.append("\nroot:"+CatalogEntry.toHex(root));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,92 @@
+package model;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * SHA-256 hash tree over fixed BLOCK_SIZE blocks of a file. Leaves are the block hashes,
+ * a parent is the hash of its two children and an odd node at the end of a level moves
+ * up unchanged. An empty file has a single leaf, the hash of no data.
+ */
+public class MerkleTree {
+	public static final int BLOCK_SIZE=16*1024;
+	public static final int HASH_SIZE=CatalogEntry.HASH_SIZE;
+
+	private byte[][] leaves=null;
+	private byte[] root=null;
+
+	public MerkleTree(byte[][] leaves) {
+		this.leaves=leaves;
+		this.root=root(leaves);
+	}
+
+	public static int leafCount(long size){
+		return (int)Math.max(1, (size+BLOCK_SIZE-1)/BLOCK_SIZE);
+	}
+
+	//1 based byte range of a block like the protocol ranges
+	public static long blockStart(int block){
+		return (long)block*BLOCK_SIZE+1;
+	}
+
+	public static long blockEnd(int block, long size){
+		return Math.min(size, (long)(block+1)*BLOCK_SIZE);
+	}
+
+	public static MessageDigest newDigest(){
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			//every Java platform has to provide SHA-256
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public static byte[] hashBlock(byte[] buf, int offset, int length){
+		MessageDigest digest=newDigest();
+		digest.update(buf, offset, length);
+		return digest.digest();
+	}
+
+	public static byte[] root(byte[][] leaves){
+		byte[][] level=leaves;
+		MessageDigest digest=newDigest();
+		while(level.length>1){
+			byte[][] parents=new byte[(level.length+1)/2][];
+			for(int i=0;i<parents.length;i++){
+				if (2*i+1<level.length){
+					digest.update(level[2*i]);
+					digest.update(level[2*i+1]);
+					parents[i]=digest.digest();
+				}
+				else{
+					parents[i]=level[2*i];
+				}
+			}
+			level=parents;
+		}
+		return level[0];
+	}
+
+	public int getLeafCount(){
+		return leaves.length;
+	}
+
+	public byte[] getLeaf(int block){
+		return leaves[block];
+	}
+
+	public byte[] getRoot(){
+		return root;
+	}
+
+	public boolean verify(int block, byte[] buf, int offset, int length){
+		return Arrays.equals(leaves[block], hashBlock(buf, offset, length));
+	}
+
+	@Override
+	public String toString() {
+		return "leaves:"+leaves.length+" root:"+CatalogEntry.toHex(root);
+	}
+}
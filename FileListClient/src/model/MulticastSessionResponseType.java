@@ -0,0 +1,34 @@
+package model;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+public class MulticastSessionResponseType extends ResponseType {
+
+	public MulticastSessionResponseType(int file_id, InetSocketAddress group, long file_size) {
+		super(RESPONSE_TYPES.MULTICAST_SESSION_SUCCESS, file_id, group.getPort(), file_size, group.getAddress().getAddress());
+	}
+
+	public MulticastSessionResponseType(byte[] rawData){
+		super(rawData);
+	}
+
+	public InetSocketAddress getGroup() throws UnknownHostException{
+		return new InetSocketAddress(InetAddress.getByAddress(getData()), (int)getStart_byte());
+	}
+
+	public long getFileSize(){
+		return getEnd_byte();
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb=new StringBuffer("\nresponse_type:"+this.getResponseType());
+		sb.append("\nfile_id:"+this.getFile_id());
+		sb.append("\ngroup:"+Arrays.toString(getData())+":"+getStart_byte());
+		sb.append("\nfile_size:"+getFileSize());
+		return sb.toString();
+	}
+}
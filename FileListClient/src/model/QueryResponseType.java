@@ -0,0 +1,62 @@
+package model;
+
+import java.security.InvalidParameterException;
+
+public class QueryResponseType extends ResponseType {
+	private CatalogEntry[] entries=null;
+
+	public QueryResponseType(CatalogEntry[] entries, boolean more) {
+		super(RESPONSE_TYPES.QUERY_CATALOG_SUCCESS, entries.length, more?1:0, 0, encode(entries));
+		this.entries=entries;
+	}
+
+	public QueryResponseType(byte[] rawData){
+		super(rawData);
+		entries=new CatalogEntry[this.getFile_id()];
+		byte[] data=this.getData();
+		int offset=0;
+		for(int i=0;i<entries.length;i++){
+			entries[i]=CatalogEntry.parse(data, offset);
+			offset+=entries[i].encodedSize();
+		}
+		if (offset>data.length){
+			throw new InvalidParameterException("Number of entries does not match with the data");
+		}
+	}
+
+	private static byte[] encode(CatalogEntry[] entries){
+		int length=0;
+		for(CatalogEntry entry:entries){
+			length+=entry.encodedSize();
+		}
+		byte[] result=new byte[length];
+		int offset=0;
+		for(CatalogEntry entry:entries){
+			byte[] entryBytes=entry.toByte();
+			System.arraycopy(entryBytes, 0, result, offset, entryBytes.length);
+			offset+=entryBytes.length;
+		}
+		return result;
+	}
+
+	public CatalogEntry[] getEntries(){
+		return entries;
+	}
+
+	//false once the last match was returned
+	public boolean hasMore(){
+		return getStart_byte()!=0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb=new StringBuffer("\nresponse_type:"+this.getResponseType());
+		sb.append("\nentries:"+this.getFile_id());
+		sb.append("\nmore:"+this.hasMore());
+		sb.append("\ndata:");
+		for(CatalogEntry entry:entries){
+			sb.append("\n"+entry.toString());
+		}
+		return sb.toString();
+	}
+}
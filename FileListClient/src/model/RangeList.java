@@ -0,0 +1,52 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Byte ranges carried in the data of a NACK, start and end 4 bytes each like the header
+ * fields. MAX_RANGES keeps the request within the smallest MAX_DATA_SIZE in use.
+ */
+public class RangeList {
+	public static final int RANGE_SIZE=8;
+	public static final int MAX_RANGES=64;
+
+	//the first MAX_RANGES of ranges
+	public static byte[] encode(List<long[]> ranges){
+		int count=Math.min(ranges.size(), MAX_RANGES);
+		byte[] rawData=new byte[count*RANGE_SIZE];
+		for(int i=0;i<count;i++){
+			writeInt(rawData, i*RANGE_SIZE, ranges.get(i)[0]);
+			writeInt(rawData, i*RANGE_SIZE+4, ranges.get(i)[1]);
+		}
+		return rawData;
+	}
+
+	//ranges with end before start are left out
+	public static List<long[]> parse(byte[] rawData){
+		List<long[]> ranges=new ArrayList<long[]>();
+		for(int offset=0;offset+RANGE_SIZE<=rawData.length;offset+=RANGE_SIZE){
+			long start=readInt(rawData, offset);
+			long end=readInt(rawData, offset+4);
+			if (end>=start){
+				ranges.add(new long[]{start, end});
+			}
+		}
+		return ranges;
+	}
+
+	private static void writeInt(byte[] rawData, int offset, long value){
+		for(int i=offset+3;i>=offset;i--){
+			rawData[i]=(byte)(value & 0xFF);
+			value>>=8;
+		}
+	}
+
+	private static long readInt(byte[] rawData, int offset){
+		long value=0;
+		for(int i=offset;i<offset+4;i++){
+			value=(value << 8)|((int)rawData[i] & 0xFF);
+		}
+		return value;
+	}
+}
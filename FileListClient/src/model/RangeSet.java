@@ -0,0 +1,97 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+//disjoint inclusive byte ranges, adjacent ranges are merged
+public class RangeSet {
+	private TreeMap<Long, Long> ranges=new TreeMap<Long, Long>();
+	private long size=0;
+
+	//returns the number of bytes that were not in the set yet
+	public synchronized long add(long start, long end){
+		if (end<start){
+			return 0;
+		}
+		long before=size;
+		Map.Entry<Long, Long> floor=ranges.floorEntry(start);
+		if (floor!=null && floor.getValue()>=start-1){
+			start=floor.getKey();
+			end=Math.max(end, floor.getValue());
+			size-=floor.getValue()-floor.getKey()+1;
+			ranges.remove(floor.getKey());
+		}
+		Map.Entry<Long, Long> next=ranges.ceilingEntry(start);
+		while(next!=null && next.getKey()<=end+1){
+			end=Math.max(end, next.getValue());
+			size-=next.getValue()-next.getKey()+1;
+			ranges.remove(next.getKey());
+			next=ranges.ceilingEntry(start);
+		}
+		ranges.put(start, end);
+		size+=end-start+1;
+		return size-before;
+	}
+
+	//returns the number of bytes taken out of the set
+	public synchronized long remove(long start, long end){
+		if (end<start){
+			return 0;
+		}
+		long before=size;
+		Map.Entry<Long, Long> range=ranges.floorEntry(start);
+		if (range==null || range.getValue()<start){
+			range=ranges.ceilingEntry(start);
+		}
+		while(range!=null && range.getKey()<=end){
+			long rangeStart=range.getKey();
+			long rangeEnd=range.getValue();
+			ranges.remove(rangeStart);
+			size-=rangeEnd-rangeStart+1;
+			if (rangeStart<start){
+				ranges.put(rangeStart, start-1);
+				size+=start-rangeStart;
+			}
+			if (rangeEnd>end){
+				ranges.put(end+1, rangeEnd);
+				size+=rangeEnd-end;
+			}
+			range=ranges.ceilingEntry(start);
+		}
+		return before-size;
+	}
+
+	public synchronized boolean contains(long start, long end){
+		Map.Entry<Long, Long> floor=ranges.floorEntry(start);
+		return floor!=null && floor.getValue()>=end;
+	}
+
+	//gaps of [start, end] that are not in the set
+	public synchronized List<long[]> missing(long start, long end){
+		List<long[]> result=new ArrayList<long[]>();
+		long position=start;
+		Map.Entry<Long, Long> floor=ranges.floorEntry(start);
+		if (floor!=null && floor.getValue()>=start){
+			position=floor.getValue()+1;
+		}
+		for(Map.Entry<Long, Long> range:ranges.tailMap(start, false).entrySet()){
+			if (position>end){
+				break;
+			}
+			if (range.getKey()>position){
+				result.add(new long[]{position, Math.min(range.getKey()-1, end)});
+			}
+			position=Math.max(position, range.getValue()+1);
+		}
+		if (position<=end){
+			result.add(new long[]{position, end});
+		}
+		return result;
+	}
+
+	public synchronized long size(){
+		return size;
+	}
+}
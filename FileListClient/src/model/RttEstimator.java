@@ -0,0 +1,47 @@
+package model;
+
+/*
+ * Smoothed round trip time and retransmission timeout of RFC 6298, from samples of
+ * requests that were sent once. Kept apart from the client's sockets and clock so
+ * sim.TransferSimulator times its resends the same way; not thread safe, the owner
+ * synchronizes.
+ */
+public class RttEstimator {
+	private static final double ALPHA=1.0/8;
+	private static final double BETA=1.0/4;
+	//before the first sample
+	public static final long INITIAL_RTO_NANOS=1000L*1000*1000;
+	public static final long MIN_RTO_NANOS=200L*1000*1000;
+	public static final long MAX_RTO_NANOS=60L*1000*1000*1000;
+
+	private double srtt=-1;
+	private double rttvar=0;
+
+	public void onSample(long rttNanos){
+		if (srtt<0){
+			srtt=rttNanos;
+			rttvar=rttNanos/2.0;
+		}
+		else{
+			rttvar=(1-BETA)*rttvar+BETA*Math.abs(srtt-rttNanos);
+			srtt=(1-ALPHA)*srtt+ALPHA*rttNanos;
+		}
+	}
+
+	//-1 before the first sample
+	public double getSmoothedRttNanos(){
+		return srtt;
+	}
+
+	public double getRttVarianceNanos(){
+		return rttvar;
+	}
+
+	public long getRtoNanos(){
+		if (srtt<0){
+			return INITIAL_RTO_NANOS;
+		}
+		long rto=(long)(srtt+Math.max(1e6, 4*rttvar));
+		return Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, rto));
+	}
+}
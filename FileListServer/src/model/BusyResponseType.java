@@ -0,0 +1,36 @@
+package model;
+
+public class BusyResponseType extends ResponseType {
+	
+	long retryAfterMillis=0;
+	
+	public BusyResponseType(long retryAfterMillis) {
+		super(ResponseType.RESPONSE_TYPES.BUSY, 0, 0, 0, null);
+		this.retryAfterMillis=retryAfterMillis;
+		this.data=new byte[4];
+		long tmp=retryAfterMillis;
+		for(int i=3;i>=0;i--){
+			this.data[i]=(byte)(tmp & 0xFF);
+			tmp>>=8;
+		}
+	}
+	
+	public BusyResponseType(byte[] rawData){
+		super(rawData);
+		byte[] data=this.getData();
+		for(int i=0;i<4;i++){
+			retryAfterMillis=(retryAfterMillis << 8)|((int)data[i] & 0xFF);
+		}
+	}
+	
+	public long getRetryAfterMillis(){
+		return retryAfterMillis;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuffer resultBuf=new StringBuffer("\nresponse_type:"+this.getResponseType());
+		resultBuf.append("\nretry_after_ms:"+retryAfterMillis);
+		return resultBuf.toString();
+	}
+}
@@ -0,0 +1,84 @@
+package model;
+
+import java.security.InvalidParameterException;
+
+/*
+ * Page of a file's content defined chunks in file order. start_byte is the index of the
+ * first chunk in the page, end_byte the number of chunks of the whole file.
+ */
+public class ChunkRecipeResponseType extends ResponseType {
+	//offset 4 bytes|length 4 bytes|strong hash
+	public static final int ENTRY_SIZE=4+4+ContentChunker.STRONG_HASH_SIZE;
+
+	private ContentChunker.Chunk[] chunks=null;
+
+	public ChunkRecipeResponseType(int file_id, int firstChunk, int chunkCount, ContentChunker.Chunk[] chunks) {
+		super(RESPONSE_TYPES.GET_CHUNKS_SUCCESS, file_id, firstChunk, chunkCount, encode(chunks));
+		this.chunks=chunks;
+	}
+
+	public ChunkRecipeResponseType(byte[] rawData){
+		super(rawData);
+		byte[] data=this.getData();
+		if (data.length%ENTRY_SIZE!=0){
+			throw new InvalidParameterException("Chunk data length is not a multiple of the entry size");
+		}
+		chunks=new ContentChunker.Chunk[data.length/ENTRY_SIZE];
+		for(int i=0;i<chunks.length;i++){
+			int offset=i*ENTRY_SIZE;
+			byte[] hash=new byte[ContentChunker.STRONG_HASH_SIZE];
+			System.arraycopy(data, offset+8, hash, 0, hash.length);
+			chunks[i]=new ContentChunker.Chunk(readInt(data, offset), (int)readInt(data, offset+4), hash);
+		}
+	}
+
+	private static byte[] encode(ContentChunker.Chunk[] chunks){
+		byte[] result=new byte[chunks.length*ENTRY_SIZE];
+		for(int i=0;i<chunks.length;i++){
+			int offset=i*ENTRY_SIZE;
+			writeInt(result, offset, chunks[i].getOffset());
+			writeInt(result, offset+4, chunks[i].getLength());
+			System.arraycopy(chunks[i].getHash(), 0, result, offset+8, ContentChunker.STRONG_HASH_SIZE);
+		}
+		return result;
+	}
+
+	private static void writeInt(byte[] buf, int offset, long value){
+		for(int i=offset+3;i>=offset;i--){
+			buf[i]=(byte)(value & 0xFF);
+			value>>=8;
+		}
+	}
+
+	private static long readInt(byte[] buf, int offset){
+		long value=0;
+		for(int i=offset;i<offset+4;i++){
+			value=(value << 8)|((int)buf[i] & 0xFF);
+		}
+		return value;
+	}
+
+	public static int chunksPerResponse(int maxDataSize){
+		return Math.max(1, maxDataSize/ENTRY_SIZE);
+	}
+
+	public int getFirstChunk(){
+		return (int)getStart_byte();
+	}
+
+	public int getChunkCount(){
+		return (int)getEnd_byte();
+	}
+
+	public ContentChunker.Chunk[] getChunks(){
+		return chunks;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb=new StringBuffer("\nresponse_type:"+this.getResponseType());
+		sb.append("\nfile_id:"+this.getFile_id());
+		sb.append("\nchunks:"+this.getFirstChunk()+"-"+(this.getFirstChunk()+chunks.length-1)+"/"+this.getChunkCount());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,118 @@
+package model;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidParameterException;
+
+/*
+ * One child of a directory listing. Files carry their catalog file_id, directories the
+ * id to list them with. Names are UTF-8.
+ */
+public class DirectoryEntry {
+	public static final int KIND_FILE=0;
+	public static final int KIND_DIRECTORY=1;
+	//kind 1 byte|id 4 bytes|size 4 bytes|mtime 8 bytes|name|'\0'
+	public static final int FIXED_SIZE=1+4+4+8+1;
+
+	private int kind;
+	private int id;
+	private String name;
+	private long size;
+	private long mtime;
+
+	public DirectoryEntry(int kind, int id, String name, long size, long mtime) {
+		this.kind=kind;
+		this.id=id;
+		this.name=name;
+		this.size=size;
+		this.mtime=mtime;
+	}
+
+	public int getKind() {
+		return kind;
+	}
+
+	public boolean isDirectory() {
+		return kind==KIND_DIRECTORY;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getMtime() {
+		return mtime;
+	}
+
+	public int encodedSize(){
+		return FIXED_SIZE+utf8(name).length;
+	}
+
+	public byte[] toByte(){
+		byte[] entryName=utf8(name);
+		byte[] rawData=new byte[FIXED_SIZE+entryName.length];
+		rawData[0]=(byte)(kind & 0xFF);
+		writeLong(rawData, 1, 4, id);
+		writeLong(rawData, 5, 4, size);
+		writeLong(rawData, 9, 8, mtime);
+		System.arraycopy(entryName, 0, rawData, 17, entryName.length);
+		rawData[rawData.length-1]='\0';
+		return rawData;
+	}
+
+	//parses the entry at offset, the number of bytes used is encodedSize()
+	public static DirectoryEntry parse(byte[] data, int offset){
+		if (offset+FIXED_SIZE>data.length){
+			throw new InvalidParameterException("Truncated directory entry");
+		}
+		int kind=(int)data[offset] & 0xFF;
+		int id=(int)readLong(data, offset+1, 4);
+		long size=readLong(data, offset+5, 4);
+		long mtime=readLong(data, offset+9, 8);
+		int nameStart=offset+17;
+		int nameEnd=nameStart;
+		while(nameEnd<data.length && data[nameEnd]!='\0'){
+			nameEnd++;
+		}
+		try {
+			return new DirectoryEntry(kind, id, new String(data, nameStart, nameEnd-nameStart, "UTF-8"), size, mtime);
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public static byte[] utf8(String text){
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static void writeLong(byte[] rawData, int offset, int length, long value){
+		for(int i=offset+length-1;i>=offset;i--){
+			rawData[i]=(byte)(value & 0xFF);
+			value>>=8;
+		}
+	}
+
+	private static long readLong(byte[] rawData, int offset, int length){
+		long value=0;
+		for(int i=offset;i<offset+length;i++){
+			value=(value << 8)|((int)rawData[i] & 0xFF);
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return (isDirectory()?"dir ":"file ")+id+"-"+name+(isDirectory()?"/":" size:"+size)+" mtime:"+mtime;
+	}
+}
@@ -0,0 +1,75 @@
+package model;
+
+/*
+ * Reads a response header in place from a reused receive buffer. Unlike
+ * FileDataResponseType nothing is copied, the payload stays in the buffer at
+ * getDataOffset() until the next datagram overwrites it.
+ */
+public class FileDataResponseFlyweight {
+	private byte[] buffer=null;
+	private int length=0;
+
+	public FileDataResponseFlyweight wrap(byte[] buffer, int length){
+		this.buffer=buffer;
+		this.length=length;
+		return this;
+	}
+
+	public boolean hasHeader(){
+		return buffer!=null && length>=ResponseType.HEADER_SIZE;
+	}
+
+	//the header announces no more bytes than the datagram carries, checked in long so no range overflows the int length
+	public boolean isComplete(){
+		return hasHeader() && getEnd_byte()>=getStart_byte() && getEnd_byte()-getStart_byte()+1<=length-ResponseType.HEADER_SIZE;
+	}
+
+	public int getResponseType(){
+		return buffer[0] & 0xFF;
+	}
+
+	public int getFile_id(){
+		return buffer[1] & 0xFF;
+	}
+
+	public long getStart_byte(){
+		return readUnsignedInt(2);
+	}
+
+	public long getEnd_byte(){
+		return readUnsignedInt(6);
+	}
+
+	public byte[] getBuffer(){
+		return buffer;
+	}
+
+	public int getLength(){
+		return length;
+	}
+
+	public int getDataOffset(){
+		return ResponseType.HEADER_SIZE;
+	}
+
+	//only meaningful once isComplete holds
+	public int getDataLength(){
+		return (int)(getEnd_byte()-getStart_byte()+1);
+	}
+
+	private long readUnsignedInt(int offset){
+		return ((long)(buffer[offset] & 0xFF) << 24)
+				|((buffer[offset+1] & 0xFF) << 16)
+				|((buffer[offset+2] & 0xFF) << 8)
+				|(buffer[offset+3] & 0xFF);
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer resultBuf=new StringBuffer("\nresponse_type:"+getResponseType());
+		resultBuf.append("\nfile_id:"+getFile_id());
+		resultBuf.append("\nstart_byte:"+getStart_byte());
+		resultBuf.append("\nend_byte:"+getEnd_byte());
+		return resultBuf.toString();
+	}
+}
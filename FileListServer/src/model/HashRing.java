@@ -0,0 +1,94 @@
+package model;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Consistent hash ring over the nodes of a cluster, "host:port" each. Every node is put
+ * on the ring vnodes times, a file belongs to the first replicas distinct nodes found
+ * clockwise from the hash of its name. Servers and clients build the same ring from the
+ * same node list, so only the list has to travel.
+ */
+public class HashRing {
+	private List<String> nodes=null;
+	private int vnodes;
+	private int replicas;
+	private TreeMap<Long, String> ring=new TreeMap<Long, String>();
+
+	public HashRing(List<String> nodes, int vnodes, int replicas) {
+		this.nodes=Collections.unmodifiableList(new ArrayList<String>(nodes));
+		this.vnodes=Math.max(1, vnodes);
+		this.replicas=Math.max(1, replicas);
+		for(String node:nodes){
+			for(int i=0;i<this.vnodes;i++){
+				ring.put(token(node+"#"+i), node);
+			}
+		}
+	}
+
+	//first 8 bytes of the SHA-256 of key in UTF-8, the same on every platform
+	public static long token(String key){
+		MessageDigest digest=MerkleTree.newDigest();
+		byte[] hash;
+		try {
+			hash=digest.digest(key.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+		long value=0;
+		for(int i=0;i<8;i++){
+			value=(value << 8)|((int)hash[i] & 0xFF);
+		}
+		return value;
+	}
+
+	//nodes that hold the file, the primary first; empty for an empty ring
+	public List<String> owners(String file_name){
+		List<String> owners=new ArrayList<String>();
+		if (ring.isEmpty()){
+			return owners;
+		}
+		int wanted=Math.min(replicas, nodes.size());
+		long token=token(file_name);
+		for(Map.Entry<Long, String> entry:ring.tailMap(token).entrySet()){
+			if (owners.size()==wanted){
+				return owners;
+			}
+			if (!owners.contains(entry.getValue())){
+				owners.add(entry.getValue());
+			}
+		}
+		//wrap around
+		for(Map.Entry<Long, String> entry:ring.entrySet()){
+			if (owners.size()==wanted){
+				break;
+			}
+			if (!owners.contains(entry.getValue())){
+				owners.add(entry.getValue());
+			}
+		}
+		return owners;
+	}
+
+	public List<String> getNodes(){
+		return nodes;
+	}
+
+	public int getVnodes(){
+		return vnodes;
+	}
+
+	public int getReplicas(){
+		return replicas;
+	}
+
+	@Override
+	public String toString() {
+		return "nodes:"+nodes+" vnodes:"+vnodes+" replicas:"+replicas;
+	}
+}
@@ -5,10 +5,36 @@ import java.util.Arrays;
 
 public class RequestType {
 	
+	//optional request id carried as the request data, echoed after every response of the request
+	public static final int REQUEST_ID_SIZE=4;
+	
 	public class REQUEST_TYPES{
 		public static final int GET_FILE_LIST=1;
 		public static final int GET_FILE_SIZE=2;
+		//data after the request id: optional data size of the response datagrams (2 bytes), see NEGOTIATE_DATA_SIZE
 		public static final int GET_FILE_DATA=3;
+		//file_id: file whose first chunk is sent along (0 for none), start_byte: page
+		public static final int GET_CATALOG=4;
+		//start_byte-end_byte: 0 based leaf range of the file's hash tree
+		public static final int GET_HASHES=5;
+		//start_byte-end_byte: 0 based range of the file's content defined chunks
+		public static final int GET_CHUNKS=6;
+		//data after the request id: name prefix or glob, '\0', name of the last entry already received
+		public static final int QUERY_CATALOG=7;
+		//start_byte: directory id (0 for the root), data after the request id: name of the last child already received
+		public static final int LIST_DIRECTORY=8;
+		//file_id: file to receive from its multicast session, which is started if none is running
+		public static final int JOIN_MULTICAST=9;
+		//file_id: file of the multicast session, data after the request id: missing ranges, repairs are tagged with the request id
+		public static final int NACK=10;
+		//nodes of the cluster the server belongs to
+		public static final int GET_ROUTING_TABLE=11;
+		//file_id, start_byte-end_byte and request id of a GET_FILE_DATA the client no longer needs, not answered
+		public static final int CANCEL=12;
+		//start_byte: proposed data size, answered with a datagram of the accepted size that probes the path
+		public static final int NEGOTIATE_DATA_SIZE=13;
+		//counters of the server endpoint the request arrives on, for load tests
+		public static final int GET_STATS=14;
 	}
 	
 	//1 byte
@@ -29,9 +55,22 @@ public class RequestType {
 		this.data=data;
 	}
 	
+	public RequestType(int requestType, int file_id, long start_byte, long end_byte, int request_id){
+		this(requestType, file_id, start_byte, end_byte, encodeRequestId(request_id));
+	}
+	
+	//payload travels after the request id
+	public RequestType(int requestType, int file_id, long start_byte, long end_byte, int request_id, byte[] payload){
+		this(requestType, file_id, start_byte, end_byte, appendPayload(encodeRequestId(request_id), payload));
+	}
+	
 	public RequestType(byte[] rawData) {
+		this(rawData, rawData.length);
+	}
+	
+	public RequestType(byte[] rawData, int length) {
 		//request_type:1 byte|file_id:1 byte|start_byte 4 bytes|end_byte 4 bytes
-		if (rawData.length<10){
+		if (length<10){
 			throw new InvalidParameterException("Invalid Header");
 		}
 		requestType=(int)rawData[0] & 0xFF;
@@ -44,7 +83,39 @@ public class RequestType {
 		for(int i=6;i<10;i++){
 			end_byte=(end_byte << 8)|((int)rawData[i] & 0xFF);
 		}
-		data=Arrays.copyOfRange(rawData, 10, rawData.length);
+		data=Arrays.copyOfRange(rawData, 10, length);
+	}
+	
+	//GET_FILE_DATA payload
+	public static byte[] encodeDataSize(int data_size){
+		return new byte[]{(byte)((data_size >> 8) & 0xFF), (byte)(data_size & 0xFF)};
+	}
+	
+	//data size a GET_FILE_DATA asks for, 0 when it does not carry one
+	public int getDataSize(){
+		byte[] payload=getPayload();
+		if (payload==null || payload.length<2){
+			return 0;
+		}
+		return (((int)payload[0] & 0xFF) << 8)|((int)payload[1] & 0xFF);
+	}
+	
+	private static byte[] encodeRequestId(int request_id){
+		byte[] result=new byte[REQUEST_ID_SIZE];
+		for(int i=REQUEST_ID_SIZE-1;i>=0;i--){
+			result[i]=(byte)(request_id & 0xFF);
+			request_id>>=8;
+		}
+		return result;
+	}
+	
+	private static byte[] appendPayload(byte[] requestId, byte[] payload){
+		if (payload==null){
+			return requestId;
+		}
+		byte[] result=Arrays.copyOf(requestId, requestId.length+payload.length);
+		System.arraycopy(payload, 0, result, requestId.length, payload.length);
+		return result;
 	}
 	
 	public byte[] toByteArray(){
@@ -91,6 +162,26 @@ public class RequestType {
 		return data;
 	}
 	
+	//0 when the request is not tagged
+	public int getRequest_id() {
+		if (data==null || data.length<REQUEST_ID_SIZE){
+			return 0;
+		}
+		int request_id=0;
+		for(int i=0;i<REQUEST_ID_SIZE;i++){
+			request_id=(request_id << 8)|((int)data[i] & 0xFF);
+		}
+		return request_id;
+	}
+	
+	//data after the request id, empty for requests without payload
+	public byte[] getPayload() {
+		if (data==null || data.length<=REQUEST_ID_SIZE){
+			return new byte[0];
+		}
+		return Arrays.copyOfRange(data, REQUEST_ID_SIZE, data.length);
+	}
+	
 	@Override
 	public String toString() {
 		StringBuffer resultBuf=new StringBuffer("\nrequest_type:"+requestType);
@@ -6,16 +6,44 @@ import java.util.Arrays;
 public class ResponseType {
 	
 	public static final int HEADER_SIZE=10;
+	//request id trailer appended to responses of tagged requests
+	public static final int REQUEST_ID_SIZE=RequestType.REQUEST_ID_SIZE;
+	//default data size of GET_FILE_DATA responses and page size of the paged responses
 	public static int MAX_DATA_SIZE=1000;
+	//bounds of a negotiated data size, the upper one keeps a tagged response within 1472 bytes of UDP payload (1500 byte MTU)
+	public static final int MIN_NEGOTIATED_DATA_SIZE=256;
+	public static final int MTU_DATA_SIZE=1472-HEADER_SIZE-REQUEST_ID_SIZE;
+	//receive buffers of this size hold any datagram, whatever data size the peer uses
+	public static final int MAX_UDP_PAYLOAD=65507;
 	
 	public class RESPONSE_TYPES{
 		public static final int GET_FILE_LIST_SUCCESS=1;
 		public static final int GET_FILE_SIZE_SUCCESS=2;
 		public static final int GET_FILE_DATA_SUCCESS=3;
+		//file_id: entries in the page, start_byte: page, end_byte: number of pages
+		public static final int GET_CATALOG_SUCCESS=4;
+		//start_byte: first leaf in the page, end_byte: number of leaves, data: root and leaf hashes
+		public static final int GET_HASHES_SUCCESS=5;
+		//start_byte: first chunk in the page, end_byte: number of chunks, data: offset, length and hash per chunk
+		public static final int GET_CHUNKS_SUCCESS=6;
+		//file_id: entries in the page, start_byte: 1 if more matches follow the last entry
+		public static final int QUERY_CATALOG_SUCCESS=7;
+		//file_id: entries in the page, start_byte: 1 if more children follow the last entry, end_byte: directory id
+		public static final int LIST_DIRECTORY_SUCCESS=8;
+		//start_byte: group port, end_byte: file size, data: group address
+		public static final int MULTICAST_SESSION_SUCCESS=9;
+		//file_id: replicas, start_byte: virtual nodes per node, end_byte: number of nodes, data: host:port of each node, '\0' terminated
+		public static final int GET_ROUTING_TABLE_SUCCESS=11;
+		//start_byte: accepted data size, end_byte: server's default data size, data: padding of the accepted size
+		public static final int NEGOTIATE_DATA_SIZE_SUCCESS=13;
+		//data: received, rejected and dropped requests and sent bytes, 8 bytes each
+		public static final int GET_STATS_SUCCESS=14;
 		
 		public static final int INVALID_REQUEST_TYPE=100;
 		public static final int INVALID_FILE_ID=101;
 		public static final int INVALID_START_OR_END_BYTE=102;
+		//server overloaded, data: retry after this many milliseconds (4 bytes)
+		public static final int BUSY=103;
 	}
 	
 	//1 byte
@@ -64,6 +92,36 @@ public class ResponseType {
 			}
 			data=Arrays.copyOfRange(rawData, 10, 10+dataLength);
 		}
+		else if (responseType==RESPONSE_TYPES.BUSY){
+			data=Arrays.copyOfRange(rawData, 10, 14);
+		}
+		else if (responseType==RESPONSE_TYPES.GET_CATALOG_SUCCESS){
+			data=Arrays.copyOfRange(rawData, 10, rawData.length);
+		}
+		else if (responseType==RESPONSE_TYPES.GET_HASHES_SUCCESS){
+			data=Arrays.copyOfRange(rawData, 10, rawData.length);
+		}
+		else if (responseType==RESPONSE_TYPES.GET_CHUNKS_SUCCESS){
+			data=Arrays.copyOfRange(rawData, 10, rawData.length);
+		}
+		else if (responseType==RESPONSE_TYPES.QUERY_CATALOG_SUCCESS){
+			data=Arrays.copyOfRange(rawData, 10, rawData.length);
+		}
+		else if (responseType==RESPONSE_TYPES.LIST_DIRECTORY_SUCCESS){
+			data=Arrays.copyOfRange(rawData, 10, rawData.length);
+		}
+		else if (responseType==RESPONSE_TYPES.MULTICAST_SESSION_SUCCESS){
+			data=Arrays.copyOfRange(rawData, 10, rawData.length);
+		}
+		else if (responseType==RESPONSE_TYPES.GET_ROUTING_TABLE_SUCCESS){
+			data=Arrays.copyOfRange(rawData, 10, rawData.length);
+		}
+		else if (responseType==RESPONSE_TYPES.NEGOTIATE_DATA_SIZE_SUCCESS){
+			data=Arrays.copyOfRange(rawData, 10, rawData.length);
+		}
+		else if (responseType==RESPONSE_TYPES.GET_STATS_SUCCESS){
+			data=Arrays.copyOfRange(rawData, 10, rawData.length);
+		}
 	}
 	
 	public byte[] toByteArray(){
@@ -90,6 +148,23 @@ public class ResponseType {
 		return rawData;
 	}
 	
+	public static byte[] appendRequestId(byte[] rawData, int request_id){
+		byte[] result=Arrays.copyOf(rawData, rawData.length+REQUEST_ID_SIZE);
+		for(int i=result.length-1;i>=rawData.length;i--){
+			result[i]=(byte)(request_id & 0xFF);
+			request_id>>=8;
+		}
+		return result;
+	}
+	
+	public static int readRequestId(byte[] rawData, int length){
+		int request_id=0;
+		for(int i=length-REQUEST_ID_SIZE;i<length;i++){
+			request_id=(request_id << 8)|((int)rawData[i] & 0xFF);
+		}
+		return request_id;
+	}
+	
 	public int getResponseType() {
 		return responseType;
 	}
@@ -0,0 +1,57 @@
+package model;
+
+/*
+ * What a client does with a request that is still open when its RTO runs out: after a
+ * BUSY answer it backs off for the retry-after and resends, while data keeps arriving it
+ * waits another RTO, otherwise the missing ranges count as lost and are resent. It gives
+ * up after MAX_RETRIES resends without progress or more than MAX_BUSY_RETRIES BUSY
+ * answers. One per request; the caller owns the timer, sim.TransferSimulator runs the
+ * same decisions in virtual time.
+ */
+public class RetryPolicy {
+	//resends of a request without any progress before giving up
+	public static final int MAX_RETRIES=8;
+	//BUSY answers accepted for one request before giving up
+	public static final int MAX_BUSY_RETRIES=20;
+
+	public static final int WAIT=0;
+	public static final int RESEND=1;
+	public static final int BACK_OFF=2;
+	public static final int GIVE_UP=3;
+	public static final int GIVE_UP_BUSY=4;
+
+	private long progress;
+	private int retries=0;
+
+	public RetryPolicy(long progress){
+		this.progress=progress;
+	}
+
+	/*
+	 * progress is the request's progress counter, busyMillis the retry-after of a BUSY
+	 * answer since the last call or 0, busyResponses all BUSY answers so far.
+	 */
+	public int onTimeout(long progress, long busyMillis, int busyResponses){
+		if (busyMillis>0){
+			if (busyResponses>MAX_BUSY_RETRIES){
+				return GIVE_UP_BUSY;
+			}
+			retries=0;
+			return BACK_OFF;
+		}
+		if (progress!=this.progress){
+			this.progress=progress;
+			retries=0;
+			return WAIT;
+		}
+		if (++retries>MAX_RETRIES){
+			return GIVE_UP;
+		}
+		return RESEND;
+	}
+
+	//the resend after a back-off, progress counts from here
+	public void onResent(long progress){
+		this.progress=progress;
+	}
+}
@@ -0,0 +1,45 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RoutingTableResponseType extends ResponseType {
+	private HashRing ring=null;
+
+	public RoutingTableResponseType(HashRing ring) {
+		super(RESPONSE_TYPES.GET_ROUTING_TABLE_SUCCESS, ring.getReplicas(), ring.getVnodes(), ring.getNodes().size(), encode(ring.getNodes()));
+		this.ring=ring;
+	}
+
+	public RoutingTableResponseType(byte[] rawData){
+		super(rawData);
+		List<String> nodes=new ArrayList<String>();
+		byte[] data=this.getData();
+		int start=0;
+		for(int i=0;i<data.length;i++){
+			if (data[i]=='\0'){
+				nodes.add(new String(data, start, i-start));
+				start=i+1;
+			}
+		}
+		ring=new HashRing(nodes, (int)getStart_byte(), getFile_id());
+	}
+
+	private static byte[] encode(List<String> nodes){
+		StringBuffer sb=new StringBuffer();
+		for(String node:nodes){
+			sb.append(node).append('\0');
+		}
+		return sb.toString().getBytes();
+	}
+
+	//no nodes when the server is not part of a cluster
+	public HashRing getRing(){
+		return ring;
+	}
+
+	@Override
+	public String toString() {
+		return "\nresponse_type:"+this.getResponseType()+"\nring:"+ring.toString();
+	}
+}
@@ -0,0 +1,64 @@
+package model;
+
+/*
+ * Answer to GET_STATS: counters of the server endpoint since it started, read by load
+ * tests for the rate the server itself took requests in.
+ * data: received requests|requests rejected as BUSY|dropped datagrams|sent bytes, 8 bytes each
+ */
+public class StatsResponseType extends ResponseType {
+	private static final int COUNTERS=4;
+
+	public StatsResponseType(long receivedRequests, long rejectedRequests, long droppedRequests, long sentBytes) {
+		super(RESPONSE_TYPES.GET_STATS_SUCCESS, 0, 0, 0, encode(new long[]{receivedRequests, rejectedRequests, droppedRequests, sentBytes}));
+	}
+
+	public StatsResponseType(byte[] rawData){
+		super(rawData);
+	}
+
+	private static byte[] encode(long[] counters){
+		byte[] data=new byte[COUNTERS*8];
+		for(int i=0;i<counters.length;i++){
+			long tmp=counters[i];
+			for(int j=i*8+7;j>=i*8;j--){
+				data[j]=(byte)(tmp & 0xFF);
+				tmp>>=8;
+			}
+		}
+		return data;
+	}
+
+	private long counter(int index){
+		long value=0;
+		for(int i=index*8;i<index*8+8;i++){
+			value=(value << 8)|((int)data[i] & 0xFF);
+		}
+		return value;
+	}
+
+	public long getReceivedRequests(){
+		return counter(0);
+	}
+
+	public long getRejectedRequests(){
+		return counter(1);
+	}
+
+	public long getDroppedRequests(){
+		return counter(2);
+	}
+
+	public long getSentBytes(){
+		return counter(3);
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb=new StringBuffer("\nresponse_type:"+this.getResponseType());
+		sb.append("\nreceived_requests:"+getReceivedRequests());
+		sb.append("\nrejected_requests:"+getRejectedRequests());
+		sb.append("\ndropped_requests:"+getDroppedRequests());
+		sb.append("\nsent_bytes:"+getSentBytes());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,238 @@
+package relay;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import server.loggerManager;
+
+/*
+ * Two tier chunk cache: the most recently used chunks in memory, the ones pushed out of
+ * memory in files under folder, the least recently used of those deleted. A disk hit
+ * moves the chunk back into memory and chunks on disk survive a restart. Keys name the
+ * file version, so chunks of a file that changed upstream are never hit and age out.
+ * Concurrent misses of the same chunk share one load.
+ */
+public class ChunkCache {
+	private File folder=null;
+	private long memoryCapacity;
+	private long diskCapacity;
+	private LinkedHashMap<String, byte[]> memory=new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long memoryBytes=0;
+	private LinkedHashMap<String, Long> disk=new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long diskBytes=0;
+	private ConcurrentHashMap<String, FutureTask<byte[]>> loading=new ConcurrentHashMap<String, FutureTask<byte[]>>();
+	private long memoryHits=0;
+	private long diskHits=0;
+	private long misses=0;
+
+	//capacities in bytes, a disk capacity of 0 keeps chunks in memory only
+	public ChunkCache(File folder, long memoryCapacity, long diskCapacity){
+		this.folder=folder;
+		this.memoryCapacity=memoryCapacity;
+		this.diskCapacity=diskCapacity;
+		if (diskCapacity>0){
+			folder.mkdirs();
+			File[] files=folder.listFiles();
+			if (files!=null){
+				//oldest first, so the eviction order continues where the last run stopped
+				Arrays.sort(files, new Comparator<File>() {
+					@Override
+					public int compare(File a, File b) {
+						return Long.compare(a.lastModified(), b.lastModified());
+					}
+				});
+				for(File file:files){
+					//a write that was cut short
+					if (file.getName().endsWith(".tmp")){
+						file.delete();
+						continue;
+					}
+					disk.put(file.getName(), file.length());
+					diskBytes+=file.length();
+				}
+				evictDisk();
+			}
+		}
+	}
+
+	//key may only hold characters that are valid in a file name
+	public byte[] get(final String key, final Callable<byte[]> loader) throws IOException{
+		byte[] data=getMemory(key);
+		if (data!=null){
+			return data;
+		}
+		FutureTask<byte[]> task=new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				byte[] data=getDisk(key);
+				if (data==null){
+					synchronized(ChunkCache.this){
+						misses++;
+					}
+					data=loader.call();
+				}
+				putMemory(key, data);
+				return data;
+			}
+		});
+		FutureTask<byte[]> running=loading.putIfAbsent(key, task);
+		if (running==null){
+			running=task;
+			try {
+				task.run();
+			} finally {
+				loading.remove(key, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException){
+				throw (IOException)ex.getCause();
+			}
+			throw new IOException(ex.getCause());
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException(ex.toString());
+		}
+	}
+
+	private synchronized byte[] getMemory(String key){
+		byte[] data=memory.get(key);
+		if (data!=null){
+			memoryHits++;
+		}
+		return data;
+	}
+
+	private byte[] getDisk(String key){
+		synchronized(this){
+			if (disk.get(key)==null){
+				return null;
+			}
+		}
+		File file=new File(folder, key);
+		byte[] data=new byte[(int)file.length()];
+		FileInputStream in=null;
+		try {
+			in=new FileInputStream(file);
+			int offset=0;
+			while(offset<data.length){
+				int count=in.read(data, offset, data.length-offset);
+				if (count<0){
+					throw new IOException("Truncated cache file "+file.getPath());
+				}
+				offset+=count;
+			}
+		} catch (IOException ex) {
+			//deleted by an eviction meanwhile or unreadable, it is loaded again
+			loggerManager.getInstance(this.getClass()).debug(ex.toString());
+			return null;
+		} finally {
+			if (in!=null){
+				try {
+					in.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+			}
+		}
+		synchronized(this){
+			diskHits++;
+		}
+		return data;
+	}
+
+	private void putMemory(String key, byte[] data){
+		List<Map.Entry<String, byte[]>> evicted=new ArrayList<Map.Entry<String, byte[]>>();
+		synchronized(this){
+			byte[] previous=memory.put(key, data);
+			if (previous!=null){
+				memoryBytes-=previous.length;
+			}
+			memoryBytes+=data.length;
+			Iterator<Map.Entry<String, byte[]>> eldest=memory.entrySet().iterator();
+			while(memoryBytes>memoryCapacity && eldest.hasNext()){
+				Map.Entry<String, byte[]> entry=eldest.next();
+				memoryBytes-=entry.getValue().length;
+				evicted.add(entry);
+				eldest.remove();
+			}
+		}
+		//files are written outside the lock, the chunk is only found on disk once it is complete
+		for(Map.Entry<String, byte[]> entry:evicted){
+			spill(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void spill(String key, byte[] data){
+		if (diskCapacity<=0){
+			return;
+		}
+		synchronized(this){
+			if (disk.containsKey(key)){
+				return;
+			}
+		}
+		File file=new File(folder, key);
+		File temp=new File(folder, key+".tmp");
+		FileOutputStream out=null;
+		try {
+			out=new FileOutputStream(temp);
+			out.write(data);
+			out.close();
+			out=null;
+			if (!temp.renameTo(file)){
+				throw new IOException("Could not rename "+temp.getPath());
+			}
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+			temp.delete();
+			return;
+		} finally {
+			if (out!=null){
+				try {
+					out.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+			}
+		}
+		synchronized(this){
+			Long previous=disk.put(key, (long)data.length);
+			if (previous!=null){
+				diskBytes-=previous;
+			}
+			diskBytes+=data.length;
+			evictDisk();
+		}
+	}
+
+	private synchronized void evictDisk(){
+		Iterator<Map.Entry<String, Long>> eldest=disk.entrySet().iterator();
+		while(diskBytes>diskCapacity && eldest.hasNext()){
+			Map.Entry<String, Long> entry=eldest.next();
+			diskBytes-=entry.getValue();
+			new File(folder, entry.getKey()).delete();
+			eldest.remove();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "memory:"+memoryBytes+" disk:"+diskBytes+" memory_hits:"+memoryHits+" disk_hits:"+diskHits+" misses:"+misses;
+	}
+}
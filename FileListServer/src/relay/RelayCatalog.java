@@ -0,0 +1,102 @@
+package relay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import model.CatalogEntry;
+import model.CatalogResponseType;
+import model.FileDescriptor;
+import model.RequestType;
+import model.ResponseType;
+import server.FileCatalog;
+import server.loggerManager;
+
+/*
+ * The upstream catalog as the relay serves it. It is fetched again every refresh and
+ * compared entry by entry: a file whose size, mtime or hash changed gets a new version
+ * key, so its cached chunks are no longer used. Pages are encoded for the relay's own
+ * MAX_DATA_SIZE.
+ */
+public class RelayCatalog {
+	private volatile State state=new State(new ArrayList<CatalogEntry>());
+
+	private static class State {
+		private Map<Integer, CatalogEntry> entries=new TreeMap<Integer, CatalogEntry>();
+		private byte[][] pages;
+		private byte[] fileList;
+
+		State(List<CatalogEntry> entryList){
+			for(CatalogEntry entry:entryList){
+				entries.put(entry.getFile_id(), entry);
+			}
+			pages=FileCatalog.encodePages(new ArrayList<CatalogEntry>(entries.values()));
+			byte[] result=new byte[0];
+			for(CatalogEntry entry:entries.values()){
+				byte[] fileBytes=new FileDescriptor(entry.getFile_id(), entry.getFile_name()).toByte();
+				byte[] combined=new byte[result.length+fileBytes.length];
+				System.arraycopy(result, 0, combined, 0, result.length);
+				System.arraycopy(fileBytes, 0, combined, result.length, fileBytes.length);
+				result=combined;
+			}
+			fileList=new ResponseType(ResponseType.RESPONSE_TYPES.GET_FILE_LIST_SUCCESS, entries.size(), 0, 0, result).toByteArray();
+		}
+	}
+
+	//fetches every page from upstream and swaps the catalog in, returns the number of changed entries
+	public int refresh(Upstream upstream) throws IOException{
+		List<CatalogEntry> entryList=new ArrayList<CatalogEntry>();
+		int pageCount=1;
+		for(int page=0;page<pageCount;page++){
+			byte[] response=upstream.request(RequestType.REQUEST_TYPES.GET_CATALOG, 0, page, 0, null);
+			if ((response[0] & 0xFF)!=ResponseType.RESPONSE_TYPES.GET_CATALOG_SUCCESS){
+				throw new IOException("Response_type:"+(response[0] & 0xFF)+" for catalog page "+page+" from "+upstream.getAddress());
+			}
+			CatalogResponseType catalogPage=new CatalogResponseType(response);
+			pageCount=catalogPage.getPageCount();
+			for(CatalogEntry entry:catalogPage.getEntries()){
+				entryList.add(entry);
+			}
+		}
+		Map<Integer, CatalogEntry> previous=state.entries;
+		int changed=0;
+		int kept=0;
+		for(CatalogEntry entry:entryList){
+			CatalogEntry old=previous.get(entry.getFile_id());
+			if (old==null || !versionKey(old).equals(versionKey(entry))){
+				changed++;
+			}
+			if (old!=null){
+				kept++;
+			}
+		}
+		//entries that are gone upstream
+		changed+=previous.size()-kept;
+		if (changed>0){
+			state=new State(entryList);
+			loggerManager.getInstance(this.getClass()).info("Catalog from "+upstream.getAddress()+", entries:"+entryList.size()+" changed:"+changed);
+		}
+		return changed;
+	}
+
+	//names one version of the file, used as the prefix of its chunk keys
+	public static String versionKey(CatalogEntry entry){
+		return entry.getFile_id()+"-"+entry.getSize()+"-"+entry.getMtime()+"-"+CatalogEntry.toHex(entry.getHash()).substring(0, 16);
+	}
+
+	public CatalogEntry getEntry(int file_id){
+		return state.entries.get(file_id);
+	}
+
+	//null if there is no such page
+	public byte[] getPage(int page){
+		byte[][] pages=state.pages;
+		return page>=0 && page<pages.length?pages[page]:null;
+	}
+
+	public byte[] getFileList(){
+		return state.fileList;
+	}
+}
@@ -0,0 +1,164 @@
+package relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import model.CatalogEntry;
+import model.FileDataResponseType;
+import model.FileSizeResponseType;
+import model.RequestType;
+import model.ResponseType;
+import server.loggerManager;
+
+/*
+ * One client request at the relay. Catalog, file list, sizes and file data are answered
+ * by the relay itself; hashes, chunk recipes, queries and directory listings are passed
+ * to an upstream and its answer is sent back under the client's request id.
+ */
+public class RelayHandler implements Runnable {
+	private RelayNode relay=null;
+	private byte[] data=null;
+	private InetSocketAddress client=null;
+	private RequestType request=null;
+
+	public RelayHandler(RelayNode relay, byte[] data, InetSocketAddress client) {
+		this.relay=relay;
+		this.data=data;
+		this.client=client;
+	}
+
+	@Override
+	public void run() {
+		try {
+			request=new RequestType(data, data.length);
+			handle();
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+		} catch (RuntimeException ex) {
+			//malformed request
+			loggerManager.getInstance(this.getClass()).debug(ex.toString());
+		}
+	}
+
+	private void handle() throws IOException{
+		switch(request.getRequestType()){
+			case RequestType.REQUEST_TYPES.GET_FILE_LIST:
+				sendBytes(relay.getCatalog().getFileList());
+				break;
+			case RequestType.REQUEST_TYPES.GET_FILE_SIZE:
+				getFileSize();
+				break;
+			case RequestType.REQUEST_TYPES.GET_FILE_DATA:
+				getFileData();
+				break;
+			case RequestType.REQUEST_TYPES.GET_CATALOG:
+				getCatalog();
+				break;
+			case RequestType.REQUEST_TYPES.GET_HASHES:
+			case RequestType.REQUEST_TYPES.GET_CHUNKS:
+			case RequestType.REQUEST_TYPES.QUERY_CATALOG:
+			case RequestType.REQUEST_TYPES.LIST_DIRECTORY:
+				passThrough();
+				break;
+			default:
+				sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_REQUEST_TYPE);
+		}
+	}
+
+	private void getFileSize() throws IOException{
+		CatalogEntry entry=relay.getCatalog().getEntry(request.getFile_id());
+		if (entry==null){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+			return;
+		}
+		sendBytes(new FileSizeResponseType(ResponseType.RESPONSE_TYPES.GET_FILE_SIZE_SUCCESS, entry.getFile_id(), 0, 0, entry.getSize()).toByteArray());
+	}
+
+	private void getCatalog() throws IOException{
+		byte[] page=request.getStart_byte()<Integer.MAX_VALUE?relay.getCatalog().getPage((int)request.getStart_byte()):null;
+		if (page==null){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_START_OR_END_BYTE);
+			return;
+		}
+		if (request.getFile_id()!=0){
+			CatalogEntry entry=relay.getCatalog().getEntry(request.getFile_id());
+			if (entry==null){
+				sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+				return;
+			}
+			//first chunk goes ahead of the page like the server sends it
+			if (entry.getSize()>0){
+				sendRange(entry, 1, Math.min(entry.getSize(), ResponseType.MAX_DATA_SIZE));
+			}
+		}
+		sendBytes(page);
+	}
+
+	private void getFileData() throws IOException{
+		CatalogEntry entry=relay.getCatalog().getEntry(request.getFile_id());
+		if (entry==null){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+			return;
+		}
+		if (request.getStart_byte()<1 || request.getEnd_byte()<request.getStart_byte() || request.getStart_byte()>entry.getSize()){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_START_OR_END_BYTE);
+			return;
+		}
+		sendRange(entry, request.getStart_byte(), Math.min(request.getEnd_byte(), entry.getSize()));
+		loggerManager.getInstance(this.getClass()).debug("Relayed fileId:"+entry.getFile_id()+" "+request.getStart_byte()+"-"+request.getEnd_byte()+" "+relay.getCacheStats());
+	}
+
+	//datagrams start at start_byte and every MAX_DATA_SIZE after it, like the server's
+	private void sendRange(CatalogEntry entry, long start_byte, long end_byte) throws IOException{
+		int chunkSize=relay.getChunkSize();
+		FileDataResponseType response=new FileDataResponseType(ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS, entry.getFile_id(), 0, 0, null);
+		long index=-1;
+		byte[] chunk=null;
+		for(long position=start_byte;position<=end_byte;position+=ResponseType.MAX_DATA_SIZE){
+			long last=Math.min(end_byte, position+ResponseType.MAX_DATA_SIZE-1);
+			byte[] payload=new byte[(int)(last-position+1)];
+			//a datagram may span two chunks
+			for(long copied=position;copied<=last;){
+				if ((copied-1)/chunkSize!=index){
+					index=(copied-1)/chunkSize;
+					chunk=relay.getChunk(entry, index);
+				}
+				int offset=(int)(copied-1-index*chunkSize);
+				int count=(int)Math.min(last-copied+1, chunk.length-offset);
+				System.arraycopy(chunk, offset, payload, (int)(copied-position), count);
+				copied+=count;
+			}
+			response.setStartByte(position);
+			response.setEndByte(last);
+			response.setData(payload);
+			sendBytes(response.toByteArray());
+		}
+	}
+
+	private void passThrough() throws IOException{
+		byte[] response;
+		IOException failure=null;
+		for(int i=0;i<relay.getUpstreamCount();i++){
+			Upstream upstream=relay.pickUpstream(i);
+			try {
+				response=upstream.request(request.getRequestType(), request.getFile_id(), request.getStart_byte(), request.getEnd_byte(), request.getPayload());
+				sendBytes(response);
+				return;
+			} catch (IOException ex) {
+				failure=ex;
+			}
+		}
+		loggerManager.getInstance(this.getClass()).warn("No upstream answered "+request.toString()+": "+failure);
+	}
+
+	private void sendErrorData(int responseType) throws IOException{
+		sendBytes(new ResponseType(responseType, 0, 0, 0, null).toByteArray());
+	}
+
+	private void sendBytes(byte[] response) throws IOException{
+		if (request.getRequest_id()!=0){
+			response=ResponseType.appendRequestId(response, request.getRequest_id());
+		}
+		relay.send(response, client);
+	}
+}
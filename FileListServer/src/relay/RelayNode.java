@@ -0,0 +1,183 @@
+package relay;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import model.CatalogEntry;
+import model.ResponseType;
+import server.loggerManager;
+
+/*
+ * Caching relay in front of one or more FileListServers that serve the same files.
+ * Clients use it like a server. File data is served from a memory and disk chunk cache,
+ * only misses are read from an upstream, round robin with failover to the next one;
+ * the catalog is fetched again every catalog_ms and checked against the last one.
+ *   java -classpath "bin:lib/*" relay.RelayNode port=5100 upstream=127.0.0.1:5000,127.0.0.1:5001 memory_mb=64 disk_mb=1024
+ * Other keys: cache (folder of the disk tier), chunk (bytes per cached chunk), catalog_ms,
+ * timeout (upstream resend timeout in ms), handlers, max_data (datagram payload to clients).
+ */
+public class RelayNode {
+	private DatagramSocket socket=null;
+	private List<Upstream> upstreams=new ArrayList<Upstream>();
+	private AtomicInteger nextUpstream=new AtomicInteger();
+	private RelayCatalog catalog=new RelayCatalog();
+	private ChunkCache cache=null;
+	private int chunkSize;
+	private long catalogMillis;
+	private ExecutorService handlers=null;
+
+	public RelayNode(int port, List<InetSocketAddress> upstreamAddresses, ChunkCache cache, int chunkSize, long catalogMillis, long timeoutMillis, int handlerCount) throws IOException{
+		for(InetSocketAddress address:upstreamAddresses){
+			upstreams.add(new Upstream(address, timeoutMillis));
+		}
+		this.cache=cache;
+		this.chunkSize=chunkSize;
+		this.catalogMillis=catalogMillis;
+		this.handlers=Executors.newFixedThreadPool(handlerCount);
+		this.socket=new DatagramSocket(port);
+		this.socket.setReceiveBufferSize(4*1024*1024);
+	}
+
+	public void run() throws InterruptedException{
+		refreshCatalog();
+		Thread refresher=new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true){
+					try {
+						Thread.sleep(catalogMillis);
+					} catch (InterruptedException ex) {
+						return;
+					}
+					refreshCatalog();
+				}
+			}
+		}, "catalog-refresh");
+		refresher.setDaemon(true);
+		refresher.start();
+		loggerManager.getInstance(this.getClass()).info("Relay listening on "+socket.getLocalPort()+" for "+upstreams.size()+" upstream(s)");
+		byte[] receiveData=new byte[ResponseType.MAX_RESPONSE_SIZE()];
+		while(true){
+			DatagramPacket receivePacket=new DatagramPacket(receiveData, receiveData.length);
+			try {
+				socket.receive(receivePacket);
+			} catch (IOException ex) {
+				loggerManager.getInstance(this.getClass()).error(ex.toString());
+				continue;
+			}
+			byte[] data=Arrays.copyOf(receivePacket.getData(), receivePacket.getLength());
+			handlers.execute(new RelayHandler(this, data, new InetSocketAddress(receivePacket.getAddress(), receivePacket.getPort())));
+		}
+	}
+
+	//the first upstream that answers provides the catalog
+	private void refreshCatalog(){
+		for(int i=0;i<upstreams.size();i++){
+			Upstream upstream=pickUpstream(i);
+			try {
+				catalog.refresh(upstream);
+				return;
+			} catch (IOException ex) {
+				loggerManager.getInstance(this.getClass()).warn("Catalog refresh from "+upstream.getAddress()+" failed: "+ex.toString());
+			}
+		}
+	}
+
+	//attempt-th upstream after the round robin position of this call
+	Upstream pickUpstream(int attempt){
+		if (attempt==0){
+			nextUpstream.incrementAndGet();
+		}
+		return upstreams.get(((nextUpstream.get()+attempt) & 0x7FFFFFFF)%upstreams.size());
+	}
+
+	int getUpstreamCount(){
+		return upstreams.size();
+	}
+
+	RelayCatalog getCatalog(){
+		return catalog;
+	}
+
+	int getChunkSize(){
+		return chunkSize;
+	}
+
+	//chunk index of the file's current version, read from an upstream on a miss
+	byte[] getChunk(final CatalogEntry entry, final long index) throws IOException{
+		return cache.get(RelayCatalog.versionKey(entry)+"-"+index, new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				long start_byte=index*chunkSize+1;
+				byte[] buf=new byte[(int)Math.min(chunkSize, entry.getSize()-start_byte+1)];
+				IOException failure=null;
+				for(int i=0;i<upstreams.size();i++){
+					Upstream upstream=pickUpstream(i);
+					try {
+						upstream.read(entry.getFile_id(), start_byte, buf);
+						return buf;
+					} catch (IOException ex) {
+						loggerManager.getInstance(this.getClass()).warn("Chunk "+index+" of file_id:"+entry.getFile_id()+" from "+upstream.getAddress()+" failed: "+ex.toString());
+						failure=ex;
+					}
+				}
+				throw failure;
+			}
+		});
+	}
+
+	void send(byte[] data, InetSocketAddress client) throws IOException{
+		socket.send(new DatagramPacket(data, data.length, client));
+	}
+
+	public String getCacheStats(){
+		return cache.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options=new HashMap<String, String>();
+		options.put("port", "5100");
+		options.put("cache", "cache/relay");
+		options.put("memory_mb", "64");
+		options.put("disk_mb", "1024");
+		options.put("chunk", "65536");
+		options.put("catalog_ms", "5000");
+		options.put("timeout", "300");
+		options.put("handlers", "32");
+		options.put("max_data", "1000");
+		for(String arg:args){
+			int index=arg.indexOf('=');
+			if (index<0){
+				throw new IllegalArgumentException("key=value expected: "+arg);
+			}
+			options.put(arg.substring(0, index), arg.substring(index+1));
+		}
+		if (!options.containsKey("upstream")){
+			throw new IllegalArgumentException("upstream=ip:port[,ip:port...] is mandatory");
+		}
+		List<InetSocketAddress> upstreamAddresses=new ArrayList<InetSocketAddress>();
+		for(String value:options.get("upstream").split(",")){
+			int index=value.trim().lastIndexOf(':');
+			upstreamAddresses.add(new InetSocketAddress(InetAddress.getByName(value.trim().substring(0, index)), Integer.parseInt(value.trim().substring(index+1))));
+		}
+		ResponseType.MAX_DATA_SIZE=Integer.parseInt(options.get("max_data"));
+		ChunkCache cache=new ChunkCache(new File(options.get("cache")), Long.parseLong(options.get("memory_mb"))*1024*1024,
+				Long.parseLong(options.get("disk_mb"))*1024*1024);
+		RelayNode relay=new RelayNode(Integer.parseInt(options.get("port")), upstreamAddresses, cache, Integer.parseInt(options.get("chunk")),
+				Long.parseLong(options.get("catalog_ms")), Long.parseLong(options.get("timeout")), Integer.parseInt(options.get("handlers")));
+		relay.run();
+	}
+}
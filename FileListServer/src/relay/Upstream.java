@@ -0,0 +1,223 @@
+package relay;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import model.BusyResponseType;
+import model.FileDataResponseFlyweight;
+import model.RequestType;
+import model.ResponseType;
+import server.loggerManager;
+
+/*
+ * The relay's connection to one FileListServer: a single socket, requests tagged with a
+ * request id and a receiver thread that routes answers back by the id trailer, the way
+ * the client's sessions do. Lost answers are asked for again after timeoutMillis.
+ */
+public class Upstream {
+	public static final int MAX_RETRIES=6;
+	//BUSY answers accepted for one request before giving up
+	public static final int MAX_BUSY_RETRIES=20;
+	//large enough for any MAX_DATA_SIZE the upstream may use
+	public static final int RECEIVE_BUFFER_SIZE=65536;
+
+	private InetSocketAddress address=null;
+	private DatagramSocket socket=null;
+	private long timeoutMillis;
+	private AtomicInteger requestIds=new AtomicInteger();
+	private ConcurrentHashMap<Integer, Call> calls=new ConcurrentHashMap<Integer, Call>();
+	private volatile boolean closed=false;
+
+	private static class Call {
+		private int request_id;
+		//file data is collected here, control answers are kept as they are
+		private byte[] buf=null;
+		private long start_byte;
+		private BitSet received=null;
+		private int responseType=-1;
+		private byte[] response=null;
+		private long busyMillis=0;
+		private boolean done=false;
+
+		private Call(int request_id) {
+			this.request_id=request_id;
+		}
+
+		synchronized void onResponse(FileDataResponseFlyweight data){
+			if (data.getResponseType()==ResponseType.RESPONSE_TYPES.BUSY){
+				busyMillis=Math.max(1, new BusyResponseType(Arrays.copyOf(data.getBuffer(), data.getLength())).getRetryAfterMillis());
+				notifyAll();
+				return;
+			}
+			if (buf==null || data.getResponseType()!=ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS){
+				responseType=data.getResponseType();
+				response=Arrays.copyOf(data.getBuffer(), data.getLength());
+				done=true;
+				notifyAll();
+				return;
+			}
+			if (!data.isComplete() || data.getStart_byte()<start_byte || data.getEnd_byte()>=start_byte+buf.length){
+				return;
+			}
+			int offset=(int)(data.getStart_byte()-start_byte);
+			System.arraycopy(data.getBuffer(), data.getDataOffset(), buf, offset, data.getDataLength());
+			received.set(offset, offset+data.getDataLength());
+			if (received.nextClearBit(0)>=buf.length){
+				responseType=ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS;
+				done=true;
+				notifyAll();
+			}
+		}
+
+		//true once done, false after timeoutMillis without an answer
+		synchronized boolean await(long timeoutMillis) throws InterruptedException{
+			long deadline=System.currentTimeMillis()+timeoutMillis;
+			while(!done && busyMillis==0){
+				long wait=deadline-System.currentTimeMillis();
+				if (wait<=0){
+					return false;
+				}
+				wait(wait);
+			}
+			return done;
+		}
+
+		synchronized long takeBusyMillis(){
+			long result=busyMillis;
+			busyMillis=0;
+			return result;
+		}
+	}
+
+	public Upstream(InetSocketAddress address, long timeoutMillis) throws IOException{
+		this.address=address;
+		this.timeoutMillis=timeoutMillis;
+		this.socket=new DatagramSocket();
+		this.socket.setReceiveBufferSize(4*1024*1024);
+		Thread receiver=new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receiveLoop();
+			}
+		}, "upstream-"+address);
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	public InetSocketAddress getAddress(){
+		return address;
+	}
+
+	private int nextRequestId(){
+		int request_id;
+		do{
+			request_id=requestIds.incrementAndGet();
+		} while(request_id==0);
+		return request_id;
+	}
+
+	//the answer without the id trailer, error answers included
+	public byte[] request(int requestType, int file_id, long start_byte, long end_byte, byte[] payload) throws IOException{
+		Call call=new Call(nextRequestId());
+		run(call, new RequestType(requestType, file_id, start_byte, end_byte, call.request_id, payload));
+		return call.response;
+	}
+
+	//reads buf.length bytes of the file from start_byte (1 based) into buf
+	public void read(int file_id, long start_byte, byte[] buf) throws IOException{
+		Call call=new Call(nextRequestId());
+		call.buf=buf;
+		call.start_byte=start_byte;
+		call.received=new BitSet(buf.length);
+		run(call, new RequestType(RequestType.REQUEST_TYPES.GET_FILE_DATA, file_id, start_byte, start_byte+buf.length-1, call.request_id, null));
+		if (call.responseType!=ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS){
+			throw new IOException("Response_type:"+call.responseType+" from "+address+" for file_id:"+file_id);
+		}
+	}
+
+	private void run(Call call, RequestType request) throws IOException{
+		calls.put(call.request_id, call);
+		try{
+			send(request.toByteArray());
+			int retries=0;
+			int busyResponses=0;
+			while(!call.await(timeoutMillis)){
+				long busyMillis=call.takeBusyMillis();
+				if (busyMillis>0){
+					if (++busyResponses>MAX_BUSY_RETRIES){
+						throw new IOException("Upstream "+address+" busy for request_id:"+call.request_id);
+					}
+					Thread.sleep(busyMillis);
+				}
+				else if (++retries>MAX_RETRIES){
+					throw new SocketTimeoutException("No response from upstream "+address+" for request_id:"+call.request_id);
+				}
+				resend(call, request);
+			}
+		} catch (InterruptedException ex) {
+			throw new IOException(ex.toString());
+		} finally {
+			calls.remove(call.request_id);
+		}
+	}
+
+	//data requests ask only for what is still missing
+	private void resend(Call call, RequestType request) throws IOException{
+		if (call.buf==null){
+			send(request.toByteArray());
+			return;
+		}
+		synchronized(call){
+			int from=call.received.nextClearBit(0);
+			while(from<call.buf.length){
+				int to=call.received.nextSetBit(from);
+				if (to<0){
+					to=call.buf.length;
+				}
+				send(new RequestType(request.getRequestType(), request.getFile_id(), call.start_byte+from, call.start_byte+to-1, call.request_id, null).toByteArray());
+				from=call.received.nextClearBit(to);
+			}
+		}
+	}
+
+	private void send(byte[] data) throws IOException{
+		socket.send(new DatagramPacket(data, data.length, address));
+	}
+
+	private void receiveLoop(){
+		byte[] receiveData=new byte[RECEIVE_BUFFER_SIZE];
+		DatagramPacket receivePacket=new DatagramPacket(receiveData, receiveData.length);
+		FileDataResponseFlyweight response=new FileDataResponseFlyweight();
+		while(!closed){
+			receivePacket.setLength(receiveData.length);
+			try{
+				socket.receive(receivePacket);
+			} catch(IOException ex){
+				if (!closed){
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+				continue;
+			}
+			int length=receivePacket.getLength();
+			if (length<ResponseType.HEADER_SIZE+ResponseType.REQUEST_ID_SIZE){
+				continue;
+			}
+			Call call=calls.get(ResponseType.readRequestId(receiveData, length));
+			if (call!=null){
+				call.onResponse(response.wrap(receiveData, length-ResponseType.REQUEST_ID_SIZE));
+			}
+		}
+	}
+
+	public void close(){
+		closed=true;
+		socket.close();
+	}
+}
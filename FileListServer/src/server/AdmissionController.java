@@ -0,0 +1,149 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Caps handler threads and concurrent transfers, and refuses new transfers while the
+ * admitted backlog would take longer than maxBacklogMillis to drain at the measured
+ * egress and disk rates. Refused requests get a BUSY response with a retry-after hint.
+ */
+public class AdmissionController {
+	public static final long MIN_RETRY_AFTER_MILLIS=100;
+	public static final long MAX_RETRY_AFTER_MILLIS=30000;
+	private static final long RATE_INTERVAL_NANOS=100L*1000*1000;
+	private static final long DISK_SAMPLE_BYTES=256*1024;
+
+	private int maxHandlers;
+	private int maxTransfers;
+	private long maxBacklogMillis;
+	private List<EgressScheduler> schedulers=new CopyOnWriteArrayList<EgressScheduler>();
+
+	private int handlers=0;
+	private int transfers=0;
+	//bytes of admitted transfers not yet handed to the egress scheduler
+	private long pendingBytes=0;
+
+	//bytes per second, 0 until measured
+	private double egressRate=0;
+	private long egressIntervalStart=-1;
+	private long egressIntervalBytes=0;
+	private boolean egressIdle=false;
+
+	private double diskRate=0;
+	private long diskBytes=0;
+	private long diskNanos=0;
+
+	public AdmissionController(int maxHandlers, int maxTransfers, long maxBacklogMillis){
+		this.maxHandlers=maxHandlers;
+		this.maxTransfers=maxTransfers;
+		this.maxBacklogMillis=maxBacklogMillis;
+	}
+
+	//one per receive shard, their queues add up to the backlog
+	public void addScheduler(EgressScheduler scheduler){
+		schedulers.add(scheduler);
+	}
+
+	public synchronized boolean tryAdmitHandler(){
+		if (handlers>=maxHandlers){
+			return false;
+		}
+		handlers++;
+		return true;
+	}
+
+	public synchronized void onHandlerDone(){
+		handlers--;
+	}
+
+	//0 when admitted, otherwise the suggested retry-after in milliseconds
+	public synchronized long tryAdmitTransfer(long bytes){
+		long backlog=getBacklogBytes();
+		double rate=getDrainRate();
+		if (transfers>=maxTransfers){
+			//one of the running transfers has to finish first
+			return clampRetryAfter(rate>0?(long)(backlog*1000/rate/Math.max(1, transfers)):MIN_RETRY_AFTER_MILLIS);
+		}
+		if (rate>0 && transfers>0){
+			long drainMillis=(long)((backlog+bytes)*1000/rate);
+			if (drainMillis>maxBacklogMillis){
+				return clampRetryAfter(drainMillis-maxBacklogMillis);
+			}
+		}
+		transfers++;
+		pendingBytes+=bytes;
+		return 0;
+	}
+
+	public synchronized void onTransferProgress(long bytes){
+		pendingBytes-=bytes;
+	}
+
+	//remaining: admitted bytes that were never handed to the scheduler
+	public synchronized void onTransferDone(long remaining){
+		transfers--;
+		pendingBytes-=remaining;
+	}
+
+	public synchronized void onDiskRead(long bytes, long nanos){
+		diskBytes+=bytes;
+		diskNanos+=nanos;
+		if (diskBytes>=DISK_SAMPLE_BYTES && diskNanos>0){
+			double sample=diskBytes*1e9/diskNanos;
+			diskRate=diskRate==0?sample:0.75*diskRate+0.25*sample;
+			diskBytes=0;
+			diskNanos=0;
+		}
+	}
+
+	//only intervals in which the scheduler never ran dry measure what the path can take
+	public synchronized void onSent(long bytes, long nowNanos){
+		if (egressIntervalStart<0){
+			egressIntervalStart=nowNanos;
+			egressIntervalBytes=0;
+			egressIdle=false;
+		}
+		egressIntervalBytes+=bytes;
+		long elapsed=nowNanos-egressIntervalStart;
+		if (elapsed>=RATE_INTERVAL_NANOS){
+			if (!egressIdle){
+				double sample=egressIntervalBytes*1e9/elapsed;
+				egressRate=egressRate==0?sample:0.75*egressRate+0.25*sample;
+			}
+			egressIntervalStart=-1;
+		}
+	}
+
+	public synchronized void onEgressIdle(){
+		egressIdle=true;
+	}
+
+	public synchronized long getBacklogBytes(){
+		long queued=0;
+		for(EgressScheduler scheduler:schedulers){
+			queued+=scheduler.getQueuedBulkBytes();
+		}
+		return pendingBytes+queued;
+	}
+
+	public synchronized double getDrainRate(){
+		if (egressRate==0){
+			return diskRate;
+		}
+		if (diskRate==0){
+			return egressRate;
+		}
+		return Math.min(egressRate, diskRate);
+	}
+
+	private long clampRetryAfter(long millis){
+		return Math.max(MIN_RETRY_AFTER_MILLIS, Math.min(MAX_RETRY_AFTER_MILLIS, millis));
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "handlers:"+handlers+" transfers:"+transfers+" backlog:"+getBacklogBytes()
+				+" egress_rate:"+(long)egressRate+" disk_rate:"+(long)diskRate;
+	}
+}
@@ -0,0 +1,160 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/*
+ * Least recently used file blocks shared by every endpoint and transfer. Blocks are
+ * BLOCK_SIZE aligned in the file and keyed by path, size and mtime, so a changed file
+ * never hits stale data. Transfers that miss the same block at once share one disk read,
+ * so clients fetching the same hot range are fed by a single read pipeline.
+ */
+public class BlockCache {
+	public static final int BLOCK_SIZE=64*1024;
+
+	private long capacity;
+	private long cachedBytes=0;
+	private long hits=0;
+	private long misses=0;
+	private long sharedReads=0;
+	private ConcurrentHashMap<String, FutureTask<byte[]>> loading=new ConcurrentHashMap<String, FutureTask<byte[]>>();
+	private LinkedHashMap<String, byte[]> blocks=new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+	//capacity in bytes, 0 turns the cache off
+	public BlockCache(long capacity){
+		this.capacity=capacity;
+	}
+
+	/*
+	 * Copies [position, position+length) of file into buf, the same bytes a positional
+	 * read would give, and returns the number of bytes copied (less at the end of file).
+	 */
+	public int read(File file, FileChannel channel, long position, byte[] buf, int offset, int length) throws IOException{
+		if (capacity<=0){
+			return readFully(channel, position, buf, offset, length);
+		}
+		long size=file.length();
+		String prefix=file.getPath()+":"+size+":"+file.lastModified()+":";
+		int copied=0;
+		while(copied<length && position+copied<size){
+			long block=(position+copied)/BLOCK_SIZE;
+			byte[] data=get(prefix+block);
+			if (data==null){
+				data=load(prefix+block, channel, block*BLOCK_SIZE, (int)Math.min(BLOCK_SIZE, size-block*BLOCK_SIZE));
+			}
+			int from=(int)(position+copied-block*BLOCK_SIZE);
+			if (from>=data.length){
+				break;
+			}
+			int count=Math.min(length-copied, data.length-from);
+			System.arraycopy(data, from, buf, offset+copied, count);
+			copied+=count;
+		}
+		return copied;
+	}
+
+	/*
+	 * Reads the block unless another transfer is already reading it, then waits for that
+	 * read. The shared read runs on the other transfer's channel, which is closed if that
+	 * transfer ends meanwhile; a waiter whose shared read failed reads on its own channel.
+	 */
+	private byte[] load(final String key, final FileChannel channel, final long position, final int length) throws IOException{
+		FutureTask<byte[]> task=new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				//the previous read of the block may have finished since the miss
+				byte[] data=peek(key);
+				if (data==null){
+					data=readBlock(key, channel, position, length);
+				}
+				return data;
+			}
+		});
+		FutureTask<byte[]> running=loading.putIfAbsent(key, task);
+		if (running==null){
+			running=task;
+			try {
+				task.run();
+			} finally {
+				loading.remove(key, task);
+			}
+		}
+		else{
+			synchronized(this){
+				sharedReads++;
+			}
+		}
+		try {
+			return running.get();
+		} catch (ExecutionException ex) {
+			if (running==task){
+				throw new IOException(ex.getCause());
+			}
+			loggerManager.getInstance(this.getClass()).debug("Shared read of "+key+" failed, reading again: "+ex.getCause());
+			return readBlock(key, channel, position, length);
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException(ex.toString());
+		}
+	}
+
+	private byte[] readBlock(String key, FileChannel channel, long position, int length) throws IOException{
+		byte[] data=new byte[length];
+		data=Arrays.copyOf(data, readFully(channel, position, data, 0, length));
+		put(key, data);
+		return data;
+	}
+
+	private static int readFully(FileChannel channel, long position, byte[] buf, int offset, int length) throws IOException{
+		ByteBuffer target=ByteBuffer.wrap(buf, offset, length);
+		while(target.hasRemaining()){
+			if (channel.read(target, position+target.position()-offset)<0){
+				break;
+			}
+		}
+		return target.position()-offset;
+	}
+
+	private synchronized byte[] get(String key){
+		byte[] data=blocks.get(key);
+		if (data!=null){
+			hits++;
+		}
+		else{
+			misses++;
+		}
+		return data;
+	}
+
+	private synchronized byte[] peek(String key){
+		return blocks.get(key);
+	}
+
+	private synchronized void put(String key, byte[] data){
+		byte[] previous=blocks.put(key, data);
+		if (previous!=null){
+			cachedBytes-=previous.length;
+		}
+		cachedBytes+=data.length;
+		Iterator<Map.Entry<String, byte[]>> eldest=blocks.entrySet().iterator();
+		while(cachedBytes>capacity && eldest.hasNext()){
+			cachedBytes-=eldest.next().getValue().length;
+			eldest.remove();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "cached:"+cachedBytes+" blocks:"+blocks.size()+" hits:"+hits+" misses:"+misses+" shared_reads:"+sharedReads;
+	}
+}
@@ -0,0 +1,110 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import model.CatalogEntry;
+
+/*
+ * Catalog entries persisted between runs so a restart can serve the last known catalog
+ * at once and keep file ids stable. The file is memory mapped on read.
+ * "RCAT"|version 4 bytes|count 4 bytes, then per entry:
+ * file_id 4 bytes|size 8 bytes|mtime 8 bytes|sha-256 32 bytes|name length 2 bytes|name (UTF-8)
+ */
+public class CatalogSnapshot {
+	private static final int MAGIC=0x52434154;
+	private static final int VERSION=1;
+
+	//null when there is no usable snapshot
+	public static List<CatalogEntry> read(File file){
+		if (!file.isFile()){
+			return null;
+		}
+		RandomAccessFile raf=null;
+		try {
+			raf=new RandomAccessFile(file, "r");
+			MappedByteBuffer buf=raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (buf.getInt()!=MAGIC || buf.getInt()!=VERSION){
+				loggerManager.getInstance(CatalogSnapshot.class).warn(file.getPath()+" is not a catalog snapshot of this version");
+				return null;
+			}
+			int count=buf.getInt();
+			List<CatalogEntry> entries=new ArrayList<CatalogEntry>(count);
+			for(int i=0;i<count;i++){
+				int file_id=buf.getInt();
+				long size=buf.getLong();
+				long mtime=buf.getLong();
+				byte[] hash=new byte[CatalogEntry.HASH_SIZE];
+				buf.get(hash);
+				byte[] name=new byte[buf.getShort() & 0xFFFF];
+				buf.get(name);
+				entries.add(new CatalogEntry(file_id, new String(name, "UTF-8"), size, mtime, hash));
+			}
+			return entries;
+		} catch (IOException ex) {
+			loggerManager.getInstance(CatalogSnapshot.class).warn(file.getPath()+": "+ex.toString());
+		} catch (RuntimeException ex) {
+			//truncated or corrupted, the catalog is rebuilt from the folder
+			loggerManager.getInstance(CatalogSnapshot.class).warn(file.getPath()+": "+ex.toString());
+		} finally {
+			if (raf!=null){
+				try {
+					raf.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(CatalogSnapshot.class).error(ex.toString());
+				}
+			}
+		}
+		return null;
+	}
+
+	//written next to the final name and renamed, a crash never leaves a half written snapshot
+	public static synchronized void write(File file, Collection<CatalogEntry> entries){
+		File parent=file.getAbsoluteFile().getParentFile();
+		if (parent!=null){
+			parent.mkdirs();
+		}
+		File tmp=new File(file.getPath()+".tmp");
+		DataOutputStream out=null;
+		try {
+			out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for(CatalogEntry entry:entries){
+				byte[] name=entry.getFile_name().getBytes("UTF-8");
+				out.writeInt(entry.getFile_id());
+				out.writeLong(entry.getSize());
+				out.writeLong(entry.getMtime());
+				out.write(entry.getHash());
+				out.writeShort(name.length);
+				out.write(name);
+			}
+			out.close();
+			out=null;
+			file.delete();
+			if (!tmp.renameTo(file)){
+				loggerManager.getInstance(CatalogSnapshot.class).warn("Could not write "+file.getPath());
+			}
+		} catch (IOException ex) {
+			loggerManager.getInstance(CatalogSnapshot.class).warn(file.getPath()+": "+ex.toString());
+		} finally {
+			if (out!=null){
+				try {
+					out.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(CatalogSnapshot.class).error(ex.toString());
+				}
+			}
+		}
+	}
+}
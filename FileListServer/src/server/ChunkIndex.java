@@ -0,0 +1,66 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import model.ContentChunker;
+
+/*
+ * Content defined chunks of served files, computed on first GET_CHUNKS and kept while
+ * the file's size and mtime stay the same. Clients match them against their old copy
+ * and only fetch the byte ranges of chunks they do not have.
+ */
+public class ChunkIndex {
+	private ConcurrentHashMap<Integer, Entry> indexes=new ConcurrentHashMap<Integer, Entry>();
+	private ConcurrentHashMap<Integer, Object> locks=new ConcurrentHashMap<Integer, Object>();
+
+	private static class Entry{
+		private long size;
+		private long mtime;
+		private ContentChunker.Chunk[] chunks;
+
+		Entry(long size, long mtime, ContentChunker.Chunk[] chunks){
+			this.size=size;
+			this.mtime=mtime;
+			this.chunks=chunks;
+		}
+
+		boolean matches(File file){
+			return size==file.length() && mtime==file.lastModified();
+		}
+	}
+
+	public ContentChunker.Chunk[] getChunks(int file_id, File file) throws IOException{
+		Entry entry=indexes.get(file_id);
+		if (entry!=null && entry.matches(file)){
+			return entry.chunks;
+		}
+		locks.putIfAbsent(file_id, new Object());
+		synchronized(locks.get(file_id)){
+			entry=indexes.get(file_id);
+			if (entry==null || !entry.matches(file)){
+				entry=build(file);
+				indexes.put(file_id, entry);
+			}
+			return entry.chunks;
+		}
+	}
+
+	private Entry build(File file) throws IOException{
+		long size=file.length();
+		long mtime=file.lastModified();
+		InputStream in=new BufferedInputStream(new FileInputStream(file));
+		try {
+			List<ContentChunker.Chunk> chunks=ContentChunker.chunk(in);
+			loggerManager.getInstance(this.getClass()).debug("Chunk index of "+file.getName()+" built, chunks:"+chunks.size());
+			return new Entry(size, mtime, chunks.toArray(new ContentChunker.Chunk[chunks.size()]));
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import model.CatalogEntry;
+import model.DirectoryEntry;
+import model.DirectoryResponseType;
+import model.ResponseType;
+
+/*
+ * Serves the files folder one directory at a time. A subtree is only read when a client
+ * lists it: its files join the catalog then, and the sorted listing is kept until the
+ * directory's mtime changes. A directory found gone takes the files below it out of the
+ * catalog. Directory ids are a hash of the relative path, probed on collision, and every
+ * id handed out is appended to a map file so it stays the same across restarts; 0 is
+ * the root. Map file records: id 4 bytes|path (modified UTF-8, as writeUTF).
+ */
+public class DirectoryIndex {
+	public static final int ROOT_ID=0;
+
+	private File folder=null;
+	private FileCatalog catalog=null;
+	private File map=null;
+	private ConcurrentHashMap<Integer, String> paths=new ConcurrentHashMap<Integer, String>();
+	private ConcurrentHashMap<String, Integer> ids=new ConcurrentHashMap<String, Integer>();
+	private ConcurrentHashMap<Integer, Listing> listings=new ConcurrentHashMap<Integer, Listing>();
+
+	private static final Comparator<DirectoryEntry> BY_NAME=new Comparator<DirectoryEntry>() {
+		@Override
+		public int compare(DirectoryEntry o1, DirectoryEntry o2) {
+			return o1.getName().compareTo(o2.getName());
+		}
+	};
+
+	private static class Listing {
+		private final long mtime;
+		private final DirectoryEntry[] children;
+
+		private Listing(long mtime, DirectoryEntry[] children) {
+			this.mtime=mtime;
+			this.children=children;
+		}
+	}
+
+	public DirectoryIndex(String folderName, FileCatalog catalog) {
+		this.folder=new File(folderName);
+		this.catalog=catalog;
+		paths.put(ROOT_ID, "");
+		ids.put("", ROOT_ID);
+	}
+
+	//ids handed out in earlier runs, set before the first listing
+	public synchronized void load(String mapName){
+		this.map=new File(mapName);
+		if (!map.isFile()){
+			return;
+		}
+		DataInputStream in=null;
+		try {
+			in=new DataInputStream(new BufferedInputStream(new FileInputStream(map)));
+			while(true){
+				int id=in.readInt();
+				String path=in.readUTF();
+				if (!paths.containsKey(id) && !ids.containsKey(path)){
+					paths.put(id, path);
+					ids.put(path, id);
+				}
+			}
+		} catch (EOFException ex) {
+			//end of the map, or a record cut short by a crash
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).warn(map.getPath()+": "+ex.toString());
+		} finally {
+			if (in!=null){
+				try {
+					in.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+			}
+		}
+		loggerManager.getInstance(this.getClass()).info("Directory ids loaded from "+map.getPath()+", directories:"+(paths.size()-1));
+	}
+
+	//hash of the relative path, probing on the rare collision
+	private synchronized int idFor(String path){
+		Integer id=ids.get(path);
+		if (id!=null){
+			return id.intValue();
+		}
+		int candidate=path.hashCode() & 0x7FFFFFFF;
+		while(candidate==ROOT_ID || paths.containsKey(candidate)){
+			candidate=(candidate+1) & 0x7FFFFFFF;
+		}
+		paths.put(candidate, path);
+		ids.put(path, candidate);
+		append(candidate, path);
+		return candidate;
+	}
+
+	private void append(int id, String path){
+		if (map==null){
+			return;
+		}
+		File parent=map.getAbsoluteFile().getParentFile();
+		if (parent!=null){
+			parent.mkdirs();
+		}
+		DataOutputStream out=null;
+		try {
+			out=new DataOutputStream(new FileOutputStream(map, true));
+			out.writeInt(id);
+			out.writeUTF(path);
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).warn(map.getPath()+": "+ex.toString());
+		} finally {
+			if (out!=null){
+				try {
+					out.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+			}
+		}
+	}
+
+	//children of the directory sorted by name, null if the id is unknown or the directory is gone
+	public DirectoryEntry[] list(int directory_id){
+		String path=paths.get(directory_id);
+		if (path==null){
+			return null;
+		}
+		File directory=path.isEmpty()?folder:new File(folder, path);
+		if (!directory.isDirectory()){
+			if (!path.isEmpty()){
+				removed(path);
+			}
+			return null;
+		}
+		long mtime=directory.lastModified();
+		Listing listing=listings.get(directory_id);
+		if (listing==null || listing.mtime!=mtime){
+			Listing previous=listing;
+			listing=new Listing(mtime, read(path, directory));
+			listings.put(directory_id, listing);
+			if (previous!=null){
+				//subdirectories no longer listed are gone, with everything below them
+				for(DirectoryEntry child:previous.children){
+					int index=Arrays.binarySearch(listing.children, child, BY_NAME);
+					if (child.isDirectory() && (index<0 || !listing.children[index].isDirectory())){
+						removed(path.isEmpty()?child.getName():path+"/"+child.getName());
+					}
+				}
+			}
+		}
+		return listing.children;
+	}
+
+	private void removed(String path){
+		String prefix=path+"/";
+		for(Integer id:paths.keySet()){
+			String child=paths.get(id);
+			if (child!=null && (child.equals(path) || child.startsWith(prefix))){
+				listings.remove(id);
+			}
+		}
+		catalog.removeTree(path);
+	}
+
+	private DirectoryEntry[] read(String path, File directory){
+		File[] listOfFiles=directory.listFiles();
+		if (listOfFiles==null){
+			listOfFiles=new File[0];
+		}
+		List<DirectoryEntry> children=new ArrayList<DirectoryEntry>();
+		for(File file:listOfFiles){
+			if (file.isDirectory()){
+				String childPath=path.isEmpty()?file.getName():path+"/"+file.getName();
+				children.add(new DirectoryEntry(DirectoryEntry.KIND_DIRECTORY, idFor(childPath), file.getName(), 0, file.lastModified()));
+			}
+		}
+		//files are registered in the catalog so they can be downloaded by id
+		for(CatalogEntry entry:catalog.mergeDirectory(path, listOfFiles, false)){
+			String name=entry.getFile_name().substring(entry.getFile_name().lastIndexOf('/')+1);
+			children.add(new DirectoryEntry(DirectoryEntry.KIND_FILE, entry.getFile_id(), name, entry.getSize(), entry.getMtime()));
+		}
+		DirectoryEntry[] result=children.toArray(new DirectoryEntry[children.size()]);
+		Arrays.sort(result, BY_NAME);
+		loggerManager.getInstance(this.getClass()).debug("Indexed "+directory.getPath()+", children:"+result.length);
+		return result;
+	}
+
+	//children after the cursor name, as many as fit into one response; null if the directory is unknown
+	public DirectoryResponseType page(int directory_id, String after){
+		DirectoryEntry[] children=list(directory_id);
+		if (children==null){
+			return null;
+		}
+		int low=0;
+		int high=children.length;
+		while(low<high){
+			int middle=(low+high)>>>1;
+			if (children[middle].getName().compareTo(after)<=0){
+				low=middle+1;
+			}
+			else{
+				high=middle;
+			}
+		}
+		List<DirectoryEntry> page=new ArrayList<DirectoryEntry>();
+		int pageSize=0;
+		for(int index=after.isEmpty()?0:low;index<children.length;index++){
+			DirectoryEntry entry=children[index];
+			if (!page.isEmpty() && (pageSize+entry.encodedSize()>ResponseType.MAX_DATA_SIZE || page.size()==255)){
+				return new DirectoryResponseType(directory_id, page.toArray(new DirectoryEntry[page.size()]), true);
+			}
+			page.add(entry);
+			pageSize+=entry.encodedSize();
+		}
+		return new DirectoryResponseType(directory_id, page.toArray(new DirectoryEntry[page.size()]), false);
+	}
+}
@@ -0,0 +1,181 @@
+package server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Single sender for the server socket. Control responses (lists, sizes, catalog pages,
+ * errors) go out first from a priority lane, bulk file data is shared between clients
+ * with deficit round robin. Each client gets a quantum of weight times the largest
+ * datagram that can be queued per round, so every turn sends at least one, and a bounded
+ * queue; handlers block while their client's queue is full.
+ */
+public class EgressScheduler extends Thread {
+	private DatagramSocket socket=null;
+	private Endpoint endpoint=null;
+	private int queueLimit;
+	private int quantum;
+	private Map<String, Integer> weights=null;
+
+	private ReentrantLock lock=new ReentrantLock();
+	private Condition notEmpty=lock.newCondition();
+	private Condition notFull=lock.newCondition();
+	private ArrayDeque<DatagramPacket> control=new ArrayDeque<DatagramPacket>();
+	private HashMap<InetSocketAddress, Flow> flows=new HashMap<InetSocketAddress, Flow>();
+	private ArrayDeque<Flow> active=new ArrayDeque<Flow>();
+	private Flow current=null;
+	//read without the lock by the admission controller
+	private AtomicLong queuedBulkBytes=new AtomicLong();
+
+	private static class Flow{
+		private InetSocketAddress client;
+		private ArrayDeque<DatagramPacket> queue=new ArrayDeque<DatagramPacket>();
+		private int weight;
+		private long deficit=0;
+
+		Flow(InetSocketAddress client, int weight){
+			this.client=client;
+			this.weight=weight;
+		}
+	}
+
+	public EgressScheduler(Endpoint endpoint, DatagramSocket socket, int queueLimit, int quantum, Map<String, Integer> weights){
+		super("egress-"+endpoint.getPort());
+		this.endpoint=endpoint;
+		this.socket=socket;
+		this.queueLimit=queueLimit;
+		this.quantum=quantum;
+		this.weights=weights;
+		setDaemon(true);
+	}
+
+	public void sendControl(byte[] data, InetSocketAddress client){
+		lock.lock();
+		try{
+			control.add(new DatagramPacket(data, data.length, client));
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void sendBulk(byte[] data, InetSocketAddress client) throws InterruptedException{
+		lock.lock();
+		try{
+			Flow flow=flows.get(client);
+			while(flow!=null && flow.queue.size()>=queueLimit){
+				notFull.await();
+				flow=flows.get(client);
+			}
+			if (flow==null){
+				Integer weight=weights.get(client.getAddress().getHostAddress());
+				flow=new Flow(client, weight==null?1:Math.max(1, weight));
+				flows.put(client, flow);
+			}
+			if (flow.queue.isEmpty() && flow!=current){
+				active.add(flow);
+			}
+			flow.queue.add(new DatagramPacket(data, data.length, client));
+			queuedBulkBytes.addAndGet(data.length);
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private DatagramPacket next() throws InterruptedException{
+		lock.lock();
+		try{
+			DatagramPacket packet;
+			while((packet=take())==null){
+				endpoint.getAdmissionController().onEgressIdle();
+				notEmpty.await();
+			}
+			return packet;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//next datagram without waiting, null when nothing is queued; sim.TransferSimulator sends them in virtual time
+	public DatagramPacket poll(){
+		lock.lock();
+		try{
+			DatagramPacket packet=take();
+			if (packet==null){
+				endpoint.getAdmissionController().onEgressIdle();
+			}
+			return packet;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//called with the lock held
+	private DatagramPacket take(){
+		while(true){
+			if (!control.isEmpty()){
+				return control.poll();
+			}
+			if (current==null){
+				if (active.isEmpty()){
+					return null;
+				}
+				current=active.poll();
+				current.deficit+=(long)current.weight*quantum;
+			}
+			DatagramPacket head=current.queue.peek();
+			if (head.getLength()>current.deficit){
+				//quantum used up, next client's turn
+				active.add(current);
+				current=null;
+				continue;
+			}
+			current.queue.poll();
+			current.deficit-=head.getLength();
+			queuedBulkBytes.addAndGet(-head.getLength());
+			if (current.queue.isEmpty()){
+				flows.remove(current.client);
+				current.deficit=0;
+				current=null;
+			}
+			notFull.signalAll();
+			return head;
+		}
+	}
+
+	public void onSent(DatagramPacket packet, long nowNanos){
+		endpoint.increaseTotalSentBytes(packet.getLength());
+		endpoint.getAdmissionController().onSent(packet.getLength(), nowNanos);
+	}
+
+	public long getQueuedBulkBytes(){
+		return queuedBulkBytes.get();
+	}
+
+	@Override
+	public void run() {
+		while(true){
+			DatagramPacket packet;
+			try{
+				packet=next();
+			} catch (InterruptedException ex) {
+				return;
+			}
+			try {
+				socket.send(packet);
+				onSent(packet, System.nanoTime());
+			} catch (IOException e) {
+				loggerManager.getInstance(this.getClass()).trace(e.toString());
+			}
+		}
+	}
+}
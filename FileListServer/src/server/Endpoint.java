@@ -0,0 +1,178 @@
+package server;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * One address:port the server listens on. Sockets, receive shards, egress schedulers,
+ * admission control and traffic counters belong to the endpoint; the catalog, hash
+ * trees, chunk index, block cache and read-ahead pool are shared by all endpoints of
+ * the process.
+ */
+public class Endpoint {
+	private FileListServer server=null;
+	private InetAddress address=null;
+	private int port;
+	private AdmissionController admissionController=null;
+	private ReceiveShard[] shards=new ReceiveShard[0];
+	private AtomicLong totalSentBytes=new AtomicLong();
+
+	public Endpoint(FileListServer server, InetAddress address, int port){
+		this.server=server;
+		this.address=address;
+		this.port=port;
+	}
+
+	public void start() throws SocketException{
+		int shardCount=server.getIntProperty("RECEIVE_SHARDS", 1);
+		if (shardCount<=0){
+			shardCount=Runtime.getRuntime().availableProcessors();
+		}
+		createShards(openSockets(shardCount));
+		for(ReceiveShard shard:shards){
+			shard.getEgressScheduler().start();
+			shard.start();
+		}
+		loggerManager.getInstance(this.getClass()).info("Listening on "+toString()+" with "+shards.length+" receive shard(s)");
+	}
+
+	/*
+	 * Admission control and a receive shard with its egress scheduler per socket, none of
+	 * them started. sim.TransferSimulator passes a null socket, feeds the shard and drains
+	 * the scheduler itself.
+	 */
+	public ReceiveShard[] createShards(DatagramSocket[] sockets){
+		admissionController=new AdmissionController(server.getIntProperty("MAX_HANDLERS", 256),
+				server.getIntProperty("MAX_TRANSFERS", 64), server.getIntProperty("MAX_BACKLOG_MS", 5000));
+		shards=new ReceiveShard[sockets.length];
+		for(int i=0;i<sockets.length;i++){
+			EgressScheduler egressScheduler=new EgressScheduler(this, sockets[i], server.getIntProperty("EGRESS_QUEUE_LIMIT", 256), server.getMaxResponseSize(), server.getClientWeights());
+			admissionController.addScheduler(egressScheduler);
+			shards[i]=new ReceiveShard(server, this, i, sockets[i], egressScheduler);
+		}
+		return shards;
+	}
+
+	public void join() throws InterruptedException{
+		for(ReceiveShard shard:shards){
+			shard.join();
+		}
+	}
+
+	/*
+	 * count sockets on the same port with SO_REUSEPORT, the kernel spreads client flows
+	 * over them. The option only exists from Java 9 on and not on every OS, without it
+	 * the endpoint falls back to one socket.
+	 */
+	private DatagramSocket[] openSockets(int count) throws SocketException{
+		SocketOption<Boolean> reusePort=reusePortOption();
+		if (count>1 && reusePort!=null){
+			DatagramSocket[] sockets=new DatagramSocket[count];
+			try {
+				for(int i=0;i<count;i++){
+					DatagramChannel channel=DatagramChannel.open(StandardProtocolFamily.INET);
+					if (!channel.supportedOptions().contains(reusePort)){
+						channel.close();
+						throw new IOException("SO_REUSEPORT is not supported");
+					}
+					channel.setOption(reusePort, Boolean.TRUE);
+					channel.bind(new InetSocketAddress(address, port));
+					sockets[i]=channel.socket();
+				}
+				return sockets;
+			} catch (IOException ex) {
+				loggerManager.getInstance(this.getClass()).warn("RECEIVE_SHARDS="+count+": "+ex.toString()+", using a single socket");
+				for(DatagramSocket socket:sockets){
+					if (socket!=null){
+						socket.close();
+					}
+				}
+			}
+		}
+		else if (count>1){
+			loggerManager.getInstance(this.getClass()).warn("RECEIVE_SHARDS="+count+": SO_REUSEPORT needs Java 9 or later, using a single socket");
+		}
+		return new DatagramSocket[]{new DatagramSocket(port, address)};
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption(){
+		try {
+			return (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (NoSuchFieldException ex) {
+			return null;
+		} catch (IllegalAccessException ex) {
+			return null;
+		}
+	}
+
+	public InetAddress getAddress(){
+		return address;
+	}
+
+	public int getPort(){
+		return port;
+	}
+
+	public AdmissionController getAdmissionController(){
+		return admissionController;
+	}
+
+	public ReceiveShard[] getShards(){
+		return shards;
+	}
+
+	public void increaseTotalSentBytes(long bytes){
+		totalSentBytes.addAndGet(bytes);
+	}
+
+	public void logTotalSentBytes(){
+		loggerManager.getInstance(this.getClass()).debug(toString()+" totalSentBytes: "+totalSentBytes.get());
+	}
+
+	public void resetTotalSentBytes(){
+		loggerManager.getInstance(this.getClass()).debug(toString()+" totalSentBytes: "+totalSentBytes.getAndSet(0));
+	}
+
+	public long getTotalSentBytes(){
+		return totalSentBytes.get();
+	}
+
+	//requests taken in by all shards of the endpoint
+	public long getReceivedRequests(){
+		long received=0;
+		for(ReceiveShard shard:shards){
+			received+=shard.getReceivedRequests();
+		}
+		return received;
+	}
+
+	public long getRejectedRequests(){
+		long rejected=0;
+		for(ReceiveShard shard:shards){
+			rejected+=shard.getRejectedRequests();
+		}
+		return rejected;
+	}
+
+	public long getDroppedRequests(){
+		long dropped=0;
+		for(ReceiveShard shard:shards){
+			dropped+=shard.getDroppedRequests();
+		}
+		return dropped;
+	}
+
+	@Override
+	public String toString() {
+		return address.getHostAddress()+":"+port;
+	}
+}
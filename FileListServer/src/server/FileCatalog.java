@@ -0,0 +1,545 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import model.CatalogEntry;
+import model.CatalogQuery;
+import model.HashRing;
+import model.CatalogResponseType;
+import model.FileDescriptor;
+import model.QueryResponseType;
+import model.ResponseType;
+
+/*
+ * Files served from FILES_FOLDER with their size, mtime and SHA-256. GET_CATALOG pages
+ * are encoded once per catalog version and sent as they are. With a snapshot from the
+ * last run the catalog is served from it right away and checked against the folder in
+ * the background; unchanged files keep their id and hash, so only new or modified
+ * files are hashed. Without a snapshot the files are served at once and hashed in the
+ * background, their hash is all zero until then. Files of subdirectories join the catalog when DirectoryIndex lists
+ * their directory, named by their path relative to the folder; their hash is computed
+ * in the background and is all zero until then. Files are hashed without holding the
+ * catalog's lock, and the snapshot is written by a background thread at most once per
+ * SNAPSHOT_DELAY_MILLIS, so a burst of changes costs one write. Entries are kept per
+ * directory, a merge or a hash update touches only the directories it is about.
+ */
+public class FileCatalog {
+	public static final long SNAPSHOT_DELAY_MILLIS=1000;
+
+	private File folder=null;
+	private File snapshot=null;
+	//in cluster mode only the files this node owns on the ring are served
+	private HashRing ring=null;
+	private String self=null;
+	private ExecutorService hasher=Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread=new Thread(r, "catalog-hash");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private ScheduledExecutorService writer=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread=new Thread(r, "catalog-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private AtomicBoolean snapshotPending=new AtomicBoolean();
+	//changed under the catalog's lock, one entry at a time
+	private ConcurrentHashMap<Integer, CatalogEntry> entries=new ConcurrentHashMap<Integer, CatalogEntry>();
+	private ConcurrentHashMap<Integer, File> files=new ConcurrentHashMap<Integer, File>();
+	//entries of each directory by name, "" is the top level; a directory's map is replaced as a whole
+	private ConcurrentHashMap<String, Map<String, CatalogEntry>> directories=new ConcurrentHashMap<String, Map<String, CatalogEntry>>();
+	private int nextId=1;
+	//counts changes, views of an older version are built again on their next use
+	private volatile long version=0;
+	private volatile Views views=null;
+
+	private static final Comparator<CatalogEntry> BY_ID=new Comparator<CatalogEntry>() {
+		@Override
+		public int compare(CatalogEntry a, CatalogEntry b) {
+			return Integer.compare(a.getFile_id(), b.getFile_id());
+		}
+	};
+
+	//the views served to clients are built on first use, a version changed before that never pays for them
+	private class Views{
+		private long version;
+		//sorted by id
+		private List<CatalogEntry> entryList=null;
+		private FileDescriptor[] file_descriptors=null;
+		private byte[][] pages=null;
+		//name index for QUERY_CATALOG, sorted by name
+		private CatalogEntry[] byName=null;
+
+		Views(long version, List<CatalogEntry> entryList){
+			this.version=version;
+			this.entryList=entryList;
+			Collections.sort(entryList, BY_ID);
+		}
+
+		synchronized FileDescriptor[] descriptors(){
+			if (file_descriptors==null){
+				List<FileDescriptor> descriptors=new ArrayList<FileDescriptor>();
+				for(CatalogEntry entry:entryList){
+					descriptors.add(new FileDescriptor(entry.getFile_id(), entry.getFile_name()));
+				}
+				file_descriptors=descriptors.toArray(new FileDescriptor[descriptors.size()]);
+			}
+			return file_descriptors;
+		}
+
+		synchronized byte[][] pages(){
+			if (pages==null){
+				pages=encodePages(entryList);
+			}
+			return pages;
+		}
+
+		synchronized CatalogEntry[] byName(){
+			if (byName==null){
+				byName=entryList.toArray(new CatalogEntry[entryList.size()]);
+				Arrays.sort(byName, new Comparator<CatalogEntry>() {
+					@Override
+					public int compare(CatalogEntry a, CatalogEntry b) {
+						return a.getFile_name().compareTo(b.getFile_name());
+					}
+				});
+			}
+			return byName;
+		}
+	}
+
+	private Views views(){
+		long current=version;
+		Views result=views;
+		if (result==null || result.version!=current){
+			//a change that lands while copying is also in the next version, which builds again
+			result=new Views(current, new ArrayList<CatalogEntry>(entries.values()));
+			views=result;
+		}
+		return result;
+	}
+
+	//set before load
+	public void setOwnership(HashRing ring, String self){
+		this.ring=ring;
+		this.self=self;
+	}
+
+	public void load(String folderName, String snapshotName){
+		this.folder=new File(folderName);
+		this.snapshot=new File(snapshotName);
+		List<CatalogEntry> snapshotEntries=CatalogSnapshot.read(snapshot);
+		if (snapshotEntries!=null){
+			restore(snapshotEntries);
+			loggerManager.getInstance(this.getClass()).info("Catalog loaded from "+snapshot.getPath()+", entries:"+snapshotEntries.size());
+			Thread reconciler=new Thread(new Runnable() {
+				@Override
+				public void run() {
+					reconcile();
+				}
+			}, "catalog-reconcile");
+			reconciler.setDaemon(true);
+			reconciler.start();
+		}
+		else{
+			//listing the folder is cheap, hashing it is not and must not hold up the first answers
+			reconcile(false);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				CatalogSnapshot.write(snapshot, entries.values());
+			}
+		}, "catalog-snapshot"));
+	}
+
+	private synchronized void restore(List<CatalogEntry> entryList){
+		Map<String, Map<String, CatalogEntry>> restored=new HashMap<String, Map<String, CatalogEntry>>();
+		for(CatalogEntry entry:entryList){
+			put(entry);
+			String parent=parentOf(entry.getFile_name());
+			Map<String, CatalogEntry> listed=restored.get(parent);
+			if (listed==null){
+				listed=new HashMap<String, CatalogEntry>();
+				restored.put(parent, listed);
+			}
+			listed.put(entry.getFile_name(), entry);
+		}
+		directories.putAll(restored);
+		version++;
+	}
+
+	//under the catalog's lock, the caller updates the entry's directory
+	private void put(CatalogEntry entry){
+		files.put(entry.getFile_id(), new File(folder, entry.getFile_name()));
+		entries.put(entry.getFile_id(), entry);
+		nextId=Math.max(nextId, entry.getFile_id()+1);
+	}
+
+	private void remove(CatalogEntry entry){
+		entries.remove(entry.getFile_id());
+		files.remove(entry.getFile_id());
+	}
+
+	//entries of the directory by name, empty if it has none
+	private Map<String, CatalogEntry> directory(String relativeDir){
+		Map<String, CatalogEntry> listed=directories.get(relativeDir);
+		return listed!=null?listed:Collections.<String, CatalogEntry>emptyMap();
+	}
+
+	/*
+	 * Scans the top level of the folder and the subdirectories that have entries from an
+	 * earlier listing; other subdirectories are left to DirectoryIndex. A subdirectory
+	 * that is gone takes its entries out of the catalog.
+	 */
+	public void reconcile(){
+		reconcile(true);
+	}
+
+	//with hashNow the top level is hashed before it is merged, else in the background
+	private void reconcile(boolean hashNow){
+		File[] listOfFiles = folder.listFiles();
+		if (listOfFiles==null){
+			loggerManager.getInstance(this.getClass()).debug("No file found");
+			listOfFiles=new File[0];
+		}
+		mergeDirectory("", listOfFiles, hashNow);
+		Set<String> listed=new TreeSet<String>(directories.keySet());
+		listed.remove("");
+		for(String directory:listed){
+			File[] children=new File(folder, directory).listFiles();
+			mergeDirectory(directory, children==null?new File[0]:children, false);
+		}
+		if (!snapshot.isFile()){
+			snapshotLater();
+		}
+	}
+
+	//changes until the write starts are written with it
+	private void snapshotLater(){
+		if (snapshotPending.compareAndSet(false, true)){
+			writer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					snapshotPending.set(false);
+					CatalogSnapshot.write(snapshot, entries.values());
+				}
+			}, SNAPSHOT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/*
+	 * Makes the regular files among listOfFiles, all from the directory relativeDir, the
+	 * catalog's entries for that directory and returns them. Unchanged files keep their
+	 * entry, modified ones their id, new ones get the next unused id; files gone from the
+	 * directory leave the catalog. A new catalog is swapped in only if something changed.
+	 * With hashNow new and modified files are hashed before the catalog is locked, else
+	 * in the background.
+	 */
+	public List<CatalogEntry> mergeDirectory(String relativeDir, File[] listOfFiles, boolean hashNow){
+		Map<String, CatalogEntry> hashed=hashNow?hashChanged(relativeDir, listOfFiles):new HashMap<String, CatalogEntry>();
+		synchronized(this){
+			return merge(relativeDir, listOfFiles, hashed);
+		}
+	}
+
+	private String nameOf(String relativeDir, File file){
+		return relativeDir.isEmpty()?file.getName():relativeDir+"/"+file.getName();
+	}
+
+	private boolean isServed(String name){
+		return ring==null || ring.owners(name).contains(self);
+	}
+
+	//entries by name for the files of the directory the catalog has no hash of yet, with the size and mtime they were hashed at
+	private Map<String, CatalogEntry> hashChanged(String relativeDir, File[] listOfFiles){
+		Map<String, CatalogEntry> known=directory(relativeDir);
+		Map<String, CatalogEntry> hashed=new HashMap<String, CatalogEntry>();
+		for(File file:listOfFiles){
+			String name=nameOf(relativeDir, file);
+			if (!file.isFile() || !isServed(name)){
+				continue;
+			}
+			CatalogEntry entry=known.get(name);
+			long size=file.length();
+			long mtime=file.lastModified();
+			if (entry==null || entry.getSize()!=size || entry.getMtime()!=mtime || isUnhashed(entry)){
+				hashed.put(name, new CatalogEntry(0, name, size, mtime, hash(file)));
+			}
+		}
+		return hashed;
+	}
+
+	private List<CatalogEntry> merge(String relativeDir, File[] listOfFiles, Map<String, CatalogEntry> hashed){
+		Map<String, CatalogEntry> known=new HashMap<String, CatalogEntry>(directory(relativeDir));
+		Map<String, CatalogEntry> listed=new HashMap<String, CatalogEntry>();
+		List<CatalogEntry> result=new ArrayList<CatalogEntry>();
+		List<CatalogEntry> unhashed=new ArrayList<CatalogEntry>();
+		boolean changed=false;
+		for(File file:listOfFiles){
+			if (file.isFile()){
+				String name=nameOf(relativeDir, file);
+				if (!isServed(name)){
+					continue;
+				}
+				CatalogEntry entry=known.remove(name);
+				CatalogEntry done=hashed.get(name);
+				//a hash is only taken if the file did not change again since it was computed
+				byte[] hash=done!=null && done.getSize()==file.length() && done.getMtime()==file.lastModified()?done.getHash():null;
+				if (entry==null || entry.getSize()!=file.length() || entry.getMtime()!=file.lastModified()){
+					//modified files keep their id, new ones get the next unused id
+					int file_id=entry!=null?entry.getFile_id():nextId++;
+					entry=new CatalogEntry(file_id, name, file.length(), file.lastModified(), hash!=null?hash:new byte[CatalogEntry.HASH_SIZE]);
+					put(entry);
+					changed=true;
+				}
+				else if (hash!=null && isUnhashed(entry)){
+					entry=new CatalogEntry(entry.getFile_id(), name, entry.getSize(), entry.getMtime(), hash);
+					put(entry);
+					changed=true;
+				}
+				if (isUnhashed(entry)){
+					unhashed.add(entry);
+				}
+				listed.put(name, entry);
+				result.add(entry);
+			}
+		}
+		for(CatalogEntry gone:known.values()){
+			remove(gone);
+		}
+		if (changed || !known.isEmpty()){
+			if (listed.isEmpty()){
+				directories.remove(relativeDir);
+			}
+			else{
+				directories.put(relativeDir, listed);
+			}
+			version++;
+			snapshotLater();
+			loggerManager.getInstance(this.getClass()).info("Catalog merged with "+new File(folder, relativeDir).getPath()+", entries:"+entries.size());
+		}
+		if (!unhashed.isEmpty()){
+			hashLater(unhashed);
+		}
+		return result;
+	}
+
+	//entries below relativeDir leave the catalog, the directory is gone
+	public synchronized void removeTree(String relativeDir){
+		String prefix=relativeDir+"/";
+		boolean removed=false;
+		for(String directory:new ArrayList<String>(directories.keySet())){
+			if (directory.equals(relativeDir) || directory.startsWith(prefix)){
+				for(CatalogEntry entry:directories.remove(directory).values()){
+					remove(entry);
+				}
+				removed=true;
+			}
+		}
+		if (removed){
+			version++;
+			snapshotLater();
+			loggerManager.getInstance(this.getClass()).info("Catalog dropped "+new File(folder, relativeDir).getPath()+", entries:"+entries.size());
+		}
+	}
+
+	private static String parentOf(String name){
+		int index=name.lastIndexOf('/');
+		return index<0?"":name.substring(0, index);
+	}
+
+	private static boolean isUnhashed(CatalogEntry entry){
+		for(byte b:entry.getHash()){
+			if (b!=0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//hashes the entries off the request path and swaps them in once, if they did not change meanwhile
+	private void hashLater(final List<CatalogEntry> unhashed){
+		hasher.submit(new Runnable() {
+			@Override
+			public void run() {
+				Map<Integer, CatalogEntry> hashed=new HashMap<Integer, CatalogEntry>();
+				for(CatalogEntry entry:unhashed){
+					File file=new File(folder, entry.getFile_name());
+					if (file.length()==entry.getSize() && file.lastModified()==entry.getMtime()){
+						hashed.put(entry.getFile_id(), new CatalogEntry(entry.getFile_id(), entry.getFile_name(), entry.getSize(), entry.getMtime(), hash(file)));
+					}
+				}
+				synchronized(FileCatalog.this){
+					//copies of the directories the hashes go to, swapped in once complete
+					Map<String, Map<String, CatalogEntry>> updated=new HashMap<String, Map<String, CatalogEntry>>();
+					for(CatalogEntry update:hashed.values()){
+						CatalogEntry entry=entries.get(update.getFile_id());
+						if (entry==null || !update.getFile_name().equals(entry.getFile_name())
+								|| update.getSize()!=entry.getSize() || update.getMtime()!=entry.getMtime()){
+							continue;
+						}
+						String parent=parentOf(entry.getFile_name());
+						Map<String, CatalogEntry> listed=updated.get(parent);
+						if (listed==null){
+							listed=new HashMap<String, CatalogEntry>(directory(parent));
+							updated.put(parent, listed);
+						}
+						listed.put(update.getFile_name(), update);
+						put(update);
+					}
+					if (updated.isEmpty()){
+						return;
+					}
+					directories.putAll(updated);
+					version++;
+				}
+				snapshotLater();
+			}
+		});
+	}
+
+	private byte[] hash(File file){
+		InputStream in=null;
+		try {
+			MessageDigest digest=MessageDigest.getInstance("SHA-256");
+			in=new FileInputStream(file);
+			byte[] buf=new byte[64*1024];
+			int read;
+			while((read=in.read(buf))>0){
+				digest.update(buf, 0, read);
+			}
+			return digest.digest();
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+		} catch (NoSuchAlgorithmException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+		} finally {
+			if (in!=null){
+				try {
+					in.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+			}
+		}
+		return new byte[CatalogEntry.HASH_SIZE];
+	}
+
+	//as many entries per page as fit into MAX_DATA_SIZE, at most 255 since the count travels in file_id
+	public static byte[][] encodePages(List<CatalogEntry> entryList){
+		List<List<CatalogEntry>> pageEntries=new ArrayList<List<CatalogEntry>>();
+		List<CatalogEntry> current=new ArrayList<CatalogEntry>();
+		int currentSize=0;
+		for(CatalogEntry entry:entryList){
+			if (!current.isEmpty() && (currentSize+entry.encodedSize()>ResponseType.MAX_DATA_SIZE || current.size()==255)){
+				pageEntries.add(current);
+				current=new ArrayList<CatalogEntry>();
+				currentSize=0;
+			}
+			current.add(entry);
+			currentSize+=entry.encodedSize();
+		}
+		pageEntries.add(current);
+
+		byte[][] result=new byte[pageEntries.size()][];
+		for(int i=0;i<result.length;i++){
+			List<CatalogEntry> page=pageEntries.get(i);
+			result[i]=new CatalogResponseType(i, result.length, page.toArray(new CatalogEntry[page.size()])).toByteArray();
+		}
+		return result;
+	}
+
+	/*
+	 * Matching entries after the query's cursor name, as many as fit into one response.
+	 * Only the part of the name index that starts with the literal prefix of the pattern
+	 * is looked at.
+	 */
+	public QueryResponseType query(CatalogQuery query){
+		CatalogEntry[] byName=views().byName();
+		String prefix=query.getLiteralPrefix();
+		int index=firstIndex(byName, prefix, false);
+		if (!query.getAfter().isEmpty()){
+			index=Math.max(index, firstIndex(byName, query.getAfter(), true));
+		}
+		List<CatalogEntry> page=new ArrayList<CatalogEntry>();
+		int pageSize=0;
+		for(;index<byName.length && byName[index].getFile_name().startsWith(prefix);index++){
+			CatalogEntry entry=byName[index];
+			if (!query.matches(entry.getFile_name())){
+				continue;
+			}
+			if (!page.isEmpty() && (pageSize+entry.encodedSize()>ResponseType.MAX_DATA_SIZE || page.size()==255)){
+				return new QueryResponseType(page.toArray(new CatalogEntry[page.size()]), true);
+			}
+			page.add(entry);
+			pageSize+=entry.encodedSize();
+		}
+		return new QueryResponseType(page.toArray(new CatalogEntry[page.size()]), false);
+	}
+
+	//first index whose name is >= name, or > name when exclusive
+	private static int firstIndex(CatalogEntry[] byName, String name, boolean exclusive){
+		int low=0;
+		int high=byName.length;
+		while(low<high){
+			int middle=(low+high)>>>1;
+			int cmp=byName[middle].getFile_name().compareTo(name);
+			if (cmp<0 || (exclusive && cmp==0)){
+				low=middle+1;
+			}
+			else{
+				high=middle;
+			}
+		}
+		return low;
+	}
+
+	public FileDescriptor[] getFileDescriptors(){
+		return views().descriptors();
+	}
+
+	public File getFile(int file_id){
+		return files.get(file_id);
+	}
+
+	public CatalogEntry getEntry(int file_id){
+		return entries.get(file_id);
+	}
+
+	public int getPageCount(){
+		return views().pages().length;
+	}
+
+	//null when page is not in the current catalog
+	public byte[] getPage(int page){
+		byte[][] pages=views().pages();
+		return page>=0 && page<pages.length?pages[page]:null;
+	}
+}
@@ -4,57 +4,86 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import model.FileDescriptor;
+import model.HashRing;
 import model.InetAddressInterface;
 import model.ResponseType;
 
 public class FileListServer {
 	//private InetAddressInterface selectedInterface=null;
-	private InetAddress selectedAddress=null;
-	private int port=-1;
-	private FileDescriptor[] file_descriptors=null;
-	private Hashtable<Integer, File> files=new Hashtable<Integer,File>();
-	private long totalSentBytes=0;
+	private List<Endpoint> endpoints=new ArrayList<Endpoint>();
+	private FileCatalog catalog=new FileCatalog();
+	private MerkleCache merkleCache=new MerkleCache(MERKLE_FOLDER);
+	private ChunkIndex chunkIndex=new ChunkIndex();
+	private DirectoryIndex directoryIndex=new DirectoryIndex(FILES_FOLDER, catalog);
+	private BlockCache blockCache=null;
+	private InflightTransfers inflightTransfers=new InflightTransfers();
+	private HashRing ring=null;
+	private String clusterSelf=null;
+	private ConcurrentHashMap<Integer, MulticastSession> multicastSessions=new ConcurrentHashMap<Integer, MulticastSession>();
+	private Properties properties=new Properties();
+	private ExecutorService readAheadPool=null;
+	private int readAheadBlockSize;
+	private int readAheadDepth;
+	private int maxNegotiatedDataSize;
 
 	public static final String FILES_FOLDER="files";
 	public static final String PROPERTIES_FILE="conf/server.properties";
+	//hash tree sidecars, kept out of FILES_FOLDER so they are not served
+	public static final String MERKLE_FOLDER="cache/merkle";
+	//catalog of the last run, served at startup while the folder is checked
+	public static final String CATALOG_SNAPSHOT="cache/catalog.idx";
+	//directory ids handed out by DirectoryIndex
+	public static final String DIRECTORY_MAP="cache/directories.idx";
 
 	public FileListServer(String[] args) throws SocketException, UnknownHostException{
-		this.loadFileList();
+		//catalog pages are sized by MAX_DATA_SIZE
 		this.readPropertiesFile();
-		this.selectInterface();
-		this.selectPort(args[0]);
+		this.selectEndpoints(args);
+		this.selectCluster();
+		this.loadFileList();
 		this.startListening();
 	}
 
+	/*
+	 * Serves folder without endpoints of its own: the caller creates them and feeds their
+	 * shards, as sim.TransferSimulator does in virtual time. properties stand in for
+	 * PROPERTIES_FILE and snapshot for CATALOG_SNAPSHOT.
+	 */
+	public FileListServer(Properties properties, String folder, String snapshot){
+		this.properties=properties;
+		this.applyProperties();
+		catalog.load(folder, snapshot);
+		blockCache=new BlockCache(getIntProperty("BLOCK_CACHE_MB", 64)*1024L*1024);
+		startReadAheadPool();
+	}
+
 	public void readPropertiesFile(){
-		Properties prop = new Properties();
 		InputStream propFile = null;
-		int maxDataSize=1000;
 		try {
 			propFile = new FileInputStream(PROPERTIES_FILE);
-			prop.load(propFile);
-			String maxDataSizeStr=prop.getProperty("MAX_DATA_SIZE");
-			maxDataSize=Integer.valueOf(maxDataSizeStr).intValue();
+			properties.load(propFile);
 		} catch (IOException ex) {
 			loggerManager.getInstance(this.getClass()).debug(ex.toString());
-		} catch (NumberFormatException ex){
-			loggerManager.getInstance(this.getClass()).debug(ex.toString());
 		} finally {
 			if (propFile != null) {
 				try {
@@ -63,29 +92,60 @@ public class FileListServer {
 					e.printStackTrace();
 				}
 			}
-			ResponseType.MAX_DATA_SIZE=maxDataSize;
+			applyProperties();
 		}
 	}
 
-	private void loadFileList(){
-		File folder = new File(FILES_FOLDER);
-		File[] listOfFiles = folder.listFiles();
-
-		if (listOfFiles!=null){
-			ArrayList<FileDescriptor> fileArray=new ArrayList<FileDescriptor>();
-			int fileNo=1;
-			for(File file:listOfFiles){
-				if (file.isFile()){
-					FileDescriptor newFile=new FileDescriptor(fileNo, file.getName());
-					fileArray.add(newFile);
-					files.put(fileNo, file);
-					fileNo++;
+	private void applyProperties(){
+		ResponseType.MAX_DATA_SIZE=getIntProperty("MAX_DATA_SIZE", 1000);
+		//clients may ask for larger datagrams than the default, up to a 1500 byte MTU unless the links take more
+		maxNegotiatedDataSize=Math.max(ResponseType.MIN_NEGOTIATED_DATA_SIZE, getIntProperty("MAX_NEGOTIATED_DATA_SIZE", ResponseType.MTU_DATA_SIZE));
+	}
+
+	public int getIntProperty(String name, int defaultValue){
+		String value=properties.getProperty(name);
+		if (value==null || value.trim().isEmpty()){
+			return defaultValue;
+		}
+		try {
+			return Integer.valueOf(value.trim()).intValue();
+		} catch (NumberFormatException ex){
+			loggerManager.getInstance(this.getClass()).debug(name+": "+ex.toString());
+			return defaultValue;
+		}
+	}
+
+	public String getProperty(String name){
+		String value=properties.getProperty(name);
+		if (value==null || value.trim().isEmpty()){
+			return null;
+		}
+		return value.trim();
+	}
+
+	//ip:weight pairs separated by commas
+	public Map<String, Integer> getClientWeights(){
+		Map<String, Integer> weights=new HashMap<String, Integer>();
+		String value=properties.getProperty("CLIENT_WEIGHTS");
+		if (value!=null){
+			for(String pair:value.split(",")){
+				int index=pair.lastIndexOf(':');
+				if (index>0){
+					try {
+						weights.put(pair.substring(0, index).trim(), Integer.valueOf(pair.substring(index+1).trim()));
+					} catch (NumberFormatException ex){
+						loggerManager.getInstance(this.getClass()).debug("CLIENT_WEIGHTS: "+ex.toString());
+					}
 				}
 			}
-			this.file_descriptors = fileArray.toArray(new FileDescriptor[fileArray.size()]);
-		} else {
-			loggerManager.getInstance(this.getClass()).debug("No file found");
 		}
+		return weights;
+	}
+
+	private void loadFileList(){
+		//nodes started from the same folder keep their own snapshot of the files they own
+		catalog.load(FILES_FOLDER, ring==null?CATALOG_SNAPSHOT:CATALOG_SNAPSHOT.replace(".idx", "-"+clusterSelf.replace(':', '_')+".idx"));
+		directoryIndex.load(ring==null?DIRECTORY_MAP:DIRECTORY_MAP.replace(".idx", "-"+clusterSelf.replace(':', '_')+".idx"));
 	}
 	
 	/*
@@ -134,52 +194,185 @@ public class FileListServer {
 	}
 	*/
 
-	private void selectInterface() throws UnknownHostException {
-		selectedAddress = InetAddress.getByAddress(new byte[] { 0, 0, 0, 0 });
-		System.out.print(selectedAddress + ":");
+	/*
+	 * Every argument is a port, host:port or a comma separated list of them. A bare port
+	 * listens on all interfaces; all endpoints are served by this one process.
+	 */
+	private void selectEndpoints(String[] args) throws UnknownHostException {
+		InetAddress anyAddress = InetAddress.getByAddress(new byte[] { 0, 0, 0, 0 });
+		for (String arg : args) {
+			for (String value : arg.split(",")) {
+				value = value.trim();
+				if (value.isEmpty()) {
+					continue;
+				}
+				int index = value.lastIndexOf(':');
+				InetAddress address = index > 0 ? InetAddress.getByName(value.substring(0, index)) : anyAddress;
+				int port = Integer.parseInt(value.substring(index + 1));
+				Endpoint endpoint = new Endpoint(this, address, port);
+				endpoints.add(endpoint);
+				System.out.println(endpoint);
+			}
+		}
+	}
+
+	/*
+	 * CLUSTER_NODES lists host:port of every node. Files are spread over them by a
+	 * consistent hash ring with CLUSTER_VNODES virtual nodes per node, each file on
+	 * CLUSTER_REPLICAS nodes; this node is CLUSTER_SELF or the node an endpoint listens on.
+	 */
+	private void selectCluster() throws UnknownHostException{
+		String nodes=getProperty("CLUSTER_NODES");
+		if (nodes==null){
+			return;
+		}
+		List<String> nodeList=new ArrayList<String>();
+		for(String node:nodes.split(",")){
+			if (!node.trim().isEmpty()){
+				nodeList.add(node.trim());
+			}
+		}
+		HashRing clusterRing=new HashRing(nodeList, getIntProperty("CLUSTER_VNODES", 64), getIntProperty("CLUSTER_REPLICAS", 2));
+		String self=getProperty("CLUSTER_SELF");
+		for(String node:nodeList){
+			if (self!=null){
+				break;
+			}
+			int index=node.lastIndexOf(':');
+			InetAddress address=InetAddress.getByName(node.substring(0, index));
+			int port=Integer.parseInt(node.substring(index+1));
+			for(Endpoint endpoint:endpoints){
+				if (endpoint.getPort()==port && (endpoint.getAddress().isAnyLocalAddress() || endpoint.getAddress().equals(address))){
+					self=node;
+				}
+			}
+		}
+		if (self==null || !nodeList.contains(self)){
+			loggerManager.getInstance(this.getClass()).error("None of CLUSTER_NODES is served by this process, cluster mode off");
+			return;
+		}
+		ring=clusterRing;
+		clusterSelf=self;
+		catalog.setOwnership(ring, self);
+		loggerManager.getInstance(this.getClass()).info("Cluster node "+self+" of "+ring.toString());
 	}
 
-	private void selectPort(String port) {
-		this.port = Integer.parseInt(port);
-		System.out.println(port);
+	//null when the server is not part of a cluster
+	public HashRing getRing(){
+		return ring;
 	}
 
 	private void startListening() throws SocketException{
-		if (selectedAddress!=null && port>0){
-			DatagramSocket serverSocket=new DatagramSocket(port, selectedAddress);
-			byte[] receiveData = new byte[ResponseType.MAX_RESPONSE_SIZE()];
-			 while(true){
-				 try{
-					 DatagramPacket receivePacket=new DatagramPacket(receiveData, receiveData.length);
-		             serverSocket.receive(receivePacket);
-		             FileRequestHandler reqHandler=new FileRequestHandler(this,receivePacket, serverSocket);
-		             reqHandler.start();
-				 }catch(IOException ex){
-					 loggerManager.getInstance(this.getClass()).error(ex.toString());
-				 }
-		      }
+		if (!endpoints.isEmpty()){
+			blockCache=new BlockCache(getIntProperty("BLOCK_CACHE_MB", 64)*1024L*1024);
+			startReadAheadPool();
+			for(Endpoint endpoint:endpoints){
+				endpoint.start();
+			}
+			for(Endpoint endpoint:endpoints){
+				try {
+					endpoint.join();
+				} catch (InterruptedException ex) {
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+			}
+		}
+	}
+
+	//disk reads of every transfer share a few threads, handlers only drain blocks that are already read
+	private void startReadAheadPool(){
+		//a block is a whole number of cache blocks, so a read never needs two of them
+		readAheadBlockSize=getIntProperty("READ_AHEAD_BLOCK_SIZE", BlockCache.BLOCK_SIZE);
+		readAheadBlockSize=Math.max(1, readAheadBlockSize/BlockCache.BLOCK_SIZE)*BlockCache.BLOCK_SIZE;
+		readAheadDepth=Math.max(1, getIntProperty("READ_AHEAD_DEPTH", 8));
+		readAheadPool=Executors.newFixedThreadPool(Math.max(1, getIntProperty("READ_AHEAD_THREADS", 4)), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread=new Thread(r, "read-ahead");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	//disk time is reported to the admission control of the endpoint that serves the transfer
+	public ReadAheadReader newReadAheadReader(File file, long start_byte, long end_byte, AdmissionController admission) throws IOException{
+		return new ReadAheadReader(readAheadPool, blockCache, admission, file, start_byte, end_byte, readAheadBlockSize, readAheadDepth);
+	}
+
+	/*
+	 * The running multicast session of the file, or a new one if there is none. Every
+	 * file has its own group port, MULTICAST_PORT+file_id, on MULTICAST_GROUP.
+	 */
+	public synchronized MulticastSession joinMulticast(int file_id, Endpoint endpoint) throws IOException{
+		MulticastSession session=multicastSessions.get(file_id);
+		if (session!=null && session.onJoin()){
+			return session;
 		}
+		File file=getFile(file_id);
+		if (file==null){
+			return null;
+		}
+		String group=getProperty("MULTICAST_GROUP");
+		InetSocketAddress address=new InetSocketAddress(InetAddress.getByName(group!=null?group:"239.255.0.1"), getIntProperty("MULTICAST_PORT", 6000)+file_id);
+		session=new MulticastSession(this, endpoint, file_id, file, address);
+		multicastSessions.put(file_id, session);
+		session.start();
+		loggerManager.getInstance(this.getClass()).info("Multicast session of fileId:"+file_id+" file_name:"+file.getName()+" started on "+address);
+		return session;
+	}
+
+	public MulticastSession getMulticastSession(int file_id){
+		return multicastSessions.get(file_id);
+	}
+
+	public void onMulticastSessionEnd(MulticastSession session){
+		multicastSessions.remove(session.getFile_id(), session);
 	}
 
-	public void increaseTotalSentBytes(long bytes){
-		totalSentBytes+=bytes;
+	public List<Endpoint> getEndpoints(){
+		return endpoints;
 	}
 
-	public void logTotalSentBytes(){
-		loggerManager.getInstance(this.getClass()).debug("totalSentBytes: "+totalSentBytes);
+	public InflightTransfers getInflightTransfers(){
+		return inflightTransfers;
 	}
 
-	public void resetTotalSentBytes(){
-		loggerManager.getInstance(this.getClass()).debug("totalSentBytes: "+totalSentBytes);
-		totalSentBytes=0;
+	public BlockCache getBlockCache(){
+		return blockCache;
 	}
 
 	public FileDescriptor[] getFileDescriptors(){
-		return file_descriptors;
+		return catalog.getFileDescriptors();
 	}
 
 	public File getFile(int file_id){
-		return files.get(file_id);
+		return catalog.getFile(file_id);
+	}
+
+	public FileCatalog getCatalog(){
+		return catalog;
+	}
+
+	public DirectoryIndex getDirectoryIndex(){
+		return directoryIndex;
+	}
+
+	public MerkleCache getMerkleCache(){
+		return merkleCache;
+	}
+
+	public ChunkIndex getChunkIndex(){
+		return chunkIndex;
+	}
+
+	public int getMaxNegotiatedDataSize(){
+		return maxNegotiatedDataSize;
+	}
+
+	//largest datagram a handler queues: file data of the larger data size, tagged with a request id
+	public int getMaxResponseSize(){
+		return ResponseType.HEADER_SIZE+Math.max(ResponseType.MAX_DATA_SIZE, maxNegotiatedDataSize)+ResponseType.REQUEST_ID_SIZE;
 	}
 
 	public static void main(String[] args) throws SocketException, UnknownHostException{
@@ -1,34 +1,57 @@
 package server;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 
+import model.BusyResponseType;
+import model.CatalogQuery;
+import model.ChunkRecipeResponseType;
+import model.ContentChunker;
+import model.DataSizeResponseType;
+import model.DirectoryResponseType;
 import model.FileDataResponseType;
 import model.FileDescriptor;
 import model.FileSizeResponseType;
+import model.HashRing;
+import model.HashesResponseType;
+import model.MulticastSessionResponseType;
+import model.RangeList;
+import model.RoutingTableResponseType;
+import model.StatsResponseType;
+import model.MerkleTree;
 import model.RequestType;
 import model.ResponseType;
 
 public class FileRequestHandler extends Thread{
 	private RequestType request=null;
 	private DatagramPacket receivedPacket=null;
-	private DatagramSocket serverSocket=null;
 	private FileListServer server=null;
+	private ReceiveShard shard=null;
 	
-	public FileRequestHandler(FileListServer server,DatagramPacket receivedPacket, DatagramSocket serverSocket) {
+	public FileRequestHandler(FileListServer server,DatagramPacket receivedPacket, ReceiveShard shard) {
 		this.receivedPacket=receivedPacket;
-		this.request=new RequestType(receivedPacket.getData());
+		this.request=new RequestType(receivedPacket.getData(), receivedPacket.getLength());
         loggerManager.getInstance(this.getClass()).trace("received:"+request.toString());
-		this.serverSocket=serverSocket;
+		this.shard=shard;
 		this.server=server;
 	}
 	
 	@Override
 	public void run() {
+		try{
+			handle();
+		} finally {
+			shard.getEndpoint().getAdmissionController().onHandlerDone();
+		}
+	}
+	
+	private void handle() {
 		switch(request.getRequestType()){
 			case RequestType.REQUEST_TYPES.GET_FILE_LIST:
 				getFileList();
@@ -39,13 +62,119 @@ public class FileRequestHandler extends Thread{
 			case RequestType.REQUEST_TYPES.GET_FILE_DATA:
 				getFileData();
 				break;
+			case RequestType.REQUEST_TYPES.GET_CATALOG:
+				getCatalog();
+				break;
+			case RequestType.REQUEST_TYPES.GET_HASHES:
+				getHashes();
+				break;
+			case RequestType.REQUEST_TYPES.GET_CHUNKS:
+				getChunks();
+				break;
+			case RequestType.REQUEST_TYPES.QUERY_CATALOG:
+				sendBytes(server.getCatalog().query(CatalogQuery.parse(request.getPayload())).toByteArray());
+				break;
+			case RequestType.REQUEST_TYPES.LIST_DIRECTORY:
+				listDirectory();
+				break;
+			case RequestType.REQUEST_TYPES.JOIN_MULTICAST:
+				joinMulticast();
+				break;
+			case RequestType.REQUEST_TYPES.NACK:
+				nack();
+				break;
+			case RequestType.REQUEST_TYPES.GET_ROUTING_TABLE:
+				getRoutingTable();
+				break;
+			case RequestType.REQUEST_TYPES.CANCEL:
+				cancel();
+				break;
+			case RequestType.REQUEST_TYPES.NEGOTIATE_DATA_SIZE:
+				negotiateDataSize();
+				break;
+			case RequestType.REQUEST_TYPES.GET_STATS:
+				getStats();
+				break;
 			default:
 				sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_REQUEST_TYPE);
 				
 		}
-		server.logTotalSentBytes();
+		shard.getEndpoint().logTotalSentBytes();
 	}
 	
+	private void getStats(){
+		Endpoint endpoint=shard.getEndpoint();
+		sendBytes(new StatsResponseType(endpoint.getReceivedRequests(), endpoint.getRejectedRequests(), endpoint.getDroppedRequests(), endpoint.getTotalSentBytes()).toByteArray());
+	}
+
+	//the answer is as large as the data responses of the accepted size, it doubles as a path MTU probe
+	private void negotiateDataSize(){
+		if (request.getStart_byte()<ResponseType.MIN_NEGOTIATED_DATA_SIZE){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_START_OR_END_BYTE);
+			return;
+		}
+		int accepted=(int)Math.min(request.getStart_byte(), server.getMaxNegotiatedDataSize());
+		sendBytes(new DataSizeResponseType(accepted, ResponseType.MAX_DATA_SIZE).toByteArray());
+	}
+
+	//not answered, the client has stopped waiting
+	private void cancel(){
+		int count=server.getInflightTransfers().cancel(client(), request.getRequest_id(), request.getFile_id(), request.getStart_byte(), request.getEnd_byte());
+		loggerManager.getInstance(this.getClass()).debug("Cancelled "+count+" transfers of request_id:"+request.getRequest_id());
+	}
+
+	private void joinMulticast(){
+		MulticastSession session=null;
+		try {
+			session=server.joinMulticast(request.getFile_id(), shard.getEndpoint());
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+		}
+		if (session==null){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+			return;
+		}
+		sendBytes(new MulticastSessionResponseType(session.getFile_id(), session.getGroup(), session.getSize()).toByteArray());
+	}
+
+	//repairs come from the multicast session, only a NACK for an ended session is answered here
+	private void nack(){
+		MulticastSession session=server.getMulticastSession(request.getFile_id());
+		if (session==null){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+			return;
+		}
+		session.onNack(client(), request.getRequest_id(), RangeList.parse(request.getPayload()));
+	}
+
+	//a server outside a cluster answers with no nodes, the client keeps using it alone
+	private void getRoutingTable(){
+		HashRing ring=server.getRing();
+		if (ring==null){
+			ring=new HashRing(new ArrayList<String>(), 1, 1);
+		}
+		sendBytes(new RoutingTableResponseType(ring).toByteArray());
+	}
+
+	private void listDirectory(){
+		String after;
+		try {
+			after=new String(request.getPayload(), "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+		int end=after.indexOf('\0');
+		if (end>=0){
+			after=after.substring(0, end);
+		}
+		DirectoryResponseType response=server.getDirectoryIndex().page((int)request.getStart_byte(), after);
+		if (response==null){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+			return;
+		}
+		sendBytes(response.toByteArray());
+	}
+
 	private void getFileList(){
 		FileDescriptor[] files=server.getFileDescriptors();
 		if (files!=null){
@@ -65,23 +194,14 @@ public class FileRequestHandler extends Thread{
 	
 	private void getFileSize(){
 		int file_id=request.getFile_id();
-		FileDescriptor[] files=server.getFileDescriptors();
-		FileDescriptor foundFile=null;
-		if (files!=null){
-			for(FileDescriptor tmpFile:files){
-				if (tmpFile.getFile_id()==file_id){
-					foundFile=tmpFile;
-					break;
-				}
-			}
-		}
-		if (foundFile==null){
+		//looked up like getFileData does, so both agree on which file an id is
+		File file=server.getFile(file_id);
+		if (file==null){
 			//File not found
 			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
 		}
 		else{
 			//get size
-			File file = new File(FileListServer.FILES_FOLDER+"/"+foundFile.getFile_name());
 			FileSizeResponseType response=new FileSizeResponseType(ResponseType.RESPONSE_TYPES.GET_FILE_SIZE_SUCCESS, file_id, 0, 0, file.length());
 			sendBytes(response.toByteArray());
 		}
@@ -107,42 +227,179 @@ public class FileRequestHandler extends Thread{
 				endByte=file.length();
 			}
 			
-			long tmpStartByte=request.getStart_byte();
-			long tmpEndByte=tmpStartByte-1;
-			int packageDataSize=0;
-			byte[] buf=new byte[ResponseType.MAX_DATA_SIZE];
-			FileDataResponseType dataResponsePackage=new FileDataResponseType(ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS,file_id,0,0,buf);
+			//a resent range that a running transfer of the same request still covers is not sent twice
+			InflightTransfers inflight=server.getInflightTransfers();
+			InflightTransfers.Transfer transfer=inflight.begin(client(), request.getRequest_id(), file_id, request.getStart_byte(), endByte);
+			if (transfer==null){
+				loggerManager.getInstance(this.getClass()).debug("Duplicate of a running transfer dropped: "+request.toString()+" "+inflight.toString());
+				return;
+			}
+			long startByte=transfer.getStart_byte();
+			int dataSize=ResponseType.MAX_DATA_SIZE;
+			if (request.getDataSize()>0){
+				dataSize=Math.max(ResponseType.MIN_NEGOTIATED_DATA_SIZE, Math.min(request.getDataSize(), server.getMaxNegotiatedDataSize()));
+			}
 			
-			RandomAccessFile raf=null;
+			AdmissionController admission=shard.getEndpoint().getAdmissionController();
+			long admittedBytes=endByte-startByte+1;
+			long retryAfter=admission.tryAdmitTransfer(admittedBytes);
+			if (retryAfter>0){
+				inflight.end(transfer);
+				rejectBusy(retryAfter);
+				return;
+			}
+			long handedBytes=0;
+			
+			FileDataResponseType dataResponsePackage=new FileDataResponseType(ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS,file_id,0,0,null);
+			
+			ReadAheadReader reader=null;
 			try {
-				raf=new RandomAccessFile(file, "r");
-				while(tmpEndByte<endByte){
-					tmpEndByte=tmpStartByte+ResponseType.MAX_DATA_SIZE-1;
-					if (tmpEndByte>endByte){
-						tmpEndByte=endByte;
+				reader=server.newReadAheadReader(file, startByte, endByte, admission);
+				ReadAheadReader.Block block;
+				//blocks follow the block cache, datagrams are cut at the transfer's data size and may span two blocks,
+				//so only the last one is shorter
+				long tmpStartByte=startByte;
+				byte[] data=new byte[(int)Math.min(dataSize, endByte-tmpStartByte+1)];
+				int filled=0;
+				while(!transfer.isCancelled() && (block=reader.next())!=null){
+					int offset=0;
+					while(offset<block.getLength() && !transfer.isCancelled()){
+						int count=Math.min(data.length-filled, block.getLength()-offset);
+						System.arraycopy(block.getBuf(), offset, data, filled, count);
+						filled+=count;
+						offset+=count;
+						if (filled==data.length){
+							dataResponsePackage.setStartByte(tmpStartByte);
+							dataResponsePackage.setEndByte(tmpStartByte+filled-1);
+							dataResponsePackage.setData(data);
+							sendBulkBytes(dataResponsePackage.toByteArray());
+							admission.onTransferProgress(filled);
+							handedBytes+=filled;
+							tmpStartByte+=filled;
+							transfer.setNext_byte(tmpStartByte);
+							data=new byte[(int)Math.max(0, Math.min(dataSize, endByte-tmpStartByte+1))];
+							filled=0;
+						}
 					}
-					packageDataSize=(int)(tmpEndByte-tmpStartByte+1);
-					raf.seek(tmpStartByte-1);
-					raf.read(buf, 0, packageDataSize);
-					dataResponsePackage.setStartByte(tmpStartByte);
-					dataResponsePackage.setEndByte(tmpEndByte);
-					dataResponsePackage.setData(buf);
-					sendBytes(dataResponsePackage.toByteArray());
-					tmpStartByte+=packageDataSize;
+					reader.release(block);
 				}
-				loggerManager.getInstance(this.getClass()).info("Transferred fileId:"+file_id+" file_name:"+file.getName()+" size:"+(endByte-request.getStart_byte()+1));
-			} catch (FileNotFoundException ex) {
+				loggerManager.getInstance(this.getClass()).info("Transferred fileId:"+file_id+" file_name:"+file.getName()+" size:"+(endByte-startByte+1));
+			} catch (InterruptedException ex) {
 				loggerManager.getInstance(this.getClass()).error(ex.toString());
 			} catch (IOException ex) {
 				loggerManager.getInstance(this.getClass()).error(ex.toString());
 			}
 			finally{
-				if(raf!=null){
-					try {
-						raf.close();
-					} catch (IOException ex) {
-						loggerManager.getInstance(this.getClass()).error(ex.toString());
-					}
+				admission.onTransferDone(admittedBytes-handedBytes);
+				inflight.end(transfer);
+				if(reader!=null){
+					reader.close();
+				}
+			}
+		}
+	}
+	
+	public void rejectBusy(long retryAfterMillis){
+		sendBytes(new BusyResponseType(retryAfterMillis).toByteArray());
+		loggerManager.getInstance(this.getClass()).warn("Busy, retry after "+retryAfterMillis+" ms sent to client:"+receivedPacket.getAddress().toString()+":"+receivedPacket.getPort()
+				+" "+shard.getEndpoint().getAdmissionController().toString());
+	}
+	
+	private void getCatalog(){
+		FileCatalog catalog=server.getCatalog();
+		//the catalog may be swapped between the check and the send, getPage returns null then
+		byte[] page=request.getStart_byte()<Integer.MAX_VALUE?catalog.getPage((int)request.getStart_byte()):null;
+		if (page==null){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_START_OR_END_BYTE);
+			return;
+		}
+		if (request.getFile_id()!=0){
+			File file=server.getFile(request.getFile_id());
+			if (file==null){
+				sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+				return;
+			}
+			//first chunk goes ahead of the page so it is there before the client sees the request as answered
+			sendFirstChunk(request.getFile_id(), file);
+		}
+		sendBytes(page);
+	}
+	
+	private void getHashes(){
+		int file_id=request.getFile_id();
+		File file=server.getFile(file_id);
+		if (file==null){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+			return;
+		}
+		MerkleTree tree=null;
+		try {
+			tree=server.getMerkleCache().getTree(file_id, file);
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+			return;
+		}
+		long firstLeaf=request.getStart_byte();
+		if (firstLeaf>=tree.getLeafCount() || request.getEnd_byte()<firstLeaf){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_START_OR_END_BYTE);
+			return;
+		}
+		//as many leaves of the range as fit, the client asks again for the rest
+		long lastLeaf=Math.min(Math.min(request.getEnd_byte(), tree.getLeafCount()-1),
+				firstLeaf+HashesResponseType.leavesPerResponse(ResponseType.MAX_DATA_SIZE)-1);
+		byte[][] leaves=new byte[(int)(lastLeaf-firstLeaf+1)][];
+		for(int i=0;i<leaves.length;i++){
+			leaves[i]=tree.getLeaf((int)firstLeaf+i);
+		}
+		sendBytes(new HashesResponseType(file_id, (int)firstLeaf, tree.getLeafCount(), tree.getRoot(), leaves).toByteArray());
+	}
+	
+	private void getChunks(){
+		int file_id=request.getFile_id();
+		File file=server.getFile(file_id);
+		if (file==null){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+			return;
+		}
+		ContentChunker.Chunk[] chunks=null;
+		try {
+			chunks=server.getChunkIndex().getChunks(file_id, file);
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_FILE_ID);
+			return;
+		}
+		long firstChunk=request.getStart_byte();
+		if (firstChunk>=chunks.length || request.getEnd_byte()<firstChunk){
+			sendErrorData(ResponseType.RESPONSE_TYPES.INVALID_START_OR_END_BYTE);
+			return;
+		}
+		long lastChunk=Math.min(Math.min(request.getEnd_byte(), chunks.length-1),
+				firstChunk+ChunkRecipeResponseType.chunksPerResponse(ResponseType.MAX_DATA_SIZE)-1);
+		ContentChunker.Chunk[] page=Arrays.copyOfRange(chunks, (int)firstChunk, (int)lastChunk+1);
+		sendBytes(new ChunkRecipeResponseType(file_id, (int)firstChunk, chunks.length, page).toByteArray());
+	}
+	
+	private void sendFirstChunk(int file_id, File file){
+		long endByte=Math.min(file.length(), ResponseType.MAX_DATA_SIZE);
+		if (endByte<1){
+			return;
+		}
+		byte[] buf=new byte[(int)endByte];
+		RandomAccessFile raf=null;
+		try {
+			raf=new RandomAccessFile(file, "r");
+			raf.readFully(buf);
+			sendBytes(new FileDataResponseType(ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS, file_id, 1, endByte, buf).toByteArray());
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+		} finally {
+			if(raf!=null){
+				try {
+					raf.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
 				}
 			}
 		}
@@ -154,13 +411,24 @@ public class FileRequestHandler extends Thread{
 		loggerManager.getInstance(this.getClass()).warn("Response_type:"+responseType+" Error Reponse sent to client:"+receivedPacket.getAddress().toString()+":"+receivedPacket.getPort());
 	}
 	
-	private void sendBytes(byte[] data){
-		DatagramPacket out=new DatagramPacket(data, data.length,receivedPacket.getAddress(), receivedPacket.getPort());
-		try {
-			serverSocket.send(out);
-			server.increaseTotalSentBytes(data.length);
-		} catch (IOException e) {
-			loggerManager.getInstance(this.getClass()).trace(e.toString());
+	private byte[] tag(byte[] data){
+		if (request.getRequest_id()!=0){
+			return ResponseType.appendRequestId(data, request.getRequest_id());
 		}
+		return data;
+	}
+	
+	//control responses take the egress scheduler's priority lane
+	private void sendBytes(byte[] data){
+		shard.getEgressScheduler().sendControl(tag(data), client());
+	}
+	
+	//file data is shared fairly between clients and blocks while this client's queue is full
+	private void sendBulkBytes(byte[] data) throws InterruptedException{
+		shard.getEgressScheduler().sendBulk(tag(data), client());
+	}
+	
+	private InetSocketAddress client(){
+		return new InetSocketAddress(receivedPacket.getAddress(), receivedPacket.getPort());
 	}
 }
@@ -0,0 +1,115 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * GET_FILE_DATA transfers that are being sent, by client, request id and file. A client
+ * that times out resends the ranges it misses under the same request id; the part of
+ * such a range that a running transfer has not sent yet is left to that transfer, so a
+ * retry storm does not start one more full transfer per retry. A CANCEL stops the
+ * running transfers of a request whose data the client got elsewhere.
+ */
+public class InflightTransfers {
+	private Map<String, List<Transfer>> transfers=new HashMap<String, List<Transfer>>();
+	private long dropped=0;
+	private long trimmed=0;
+	private long cancelled=0;
+
+	public class Transfer {
+		private String key;
+		private long start_byte;
+		private long end_byte;
+		//first byte not handed to the egress scheduler yet
+		private volatile long next_byte;
+		private volatile boolean cancelled=false;
+
+		private Transfer(String key, long start_byte, long end_byte) {
+			this.key=key;
+			this.start_byte=start_byte;
+			this.end_byte=end_byte;
+			this.next_byte=start_byte;
+		}
+
+		public long getStart_byte() {
+			return start_byte;
+		}
+
+		public void setNext_byte(long next_byte) {
+			this.next_byte=next_byte;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	/*
+	 * Registers [start_byte, end_byte] for sending and returns it with the start moved past
+	 * what running transfers of the same request will still send, or null if they cover
+	 * all of it.
+	 */
+	public synchronized Transfer begin(InetSocketAddress client, int request_id, int file_id, long start_byte, long end_byte){
+		String key=client.toString()+":"+request_id+":"+file_id;
+		List<Transfer> running=transfers.get(key);
+		if (running==null){
+			running=new ArrayList<Transfer>();
+			transfers.put(key, running);
+		}
+		long start=start_byte;
+		boolean moved=true;
+		while(moved && start<=end_byte){
+			moved=false;
+			for(Transfer transfer:running){
+				if (transfer.next_byte<=start && start<=transfer.end_byte){
+					start=transfer.end_byte+1;
+					moved=true;
+				}
+			}
+		}
+		if (start>end_byte){
+			dropped++;
+			return null;
+		}
+		if (start!=start_byte){
+			trimmed++;
+		}
+		Transfer transfer=new Transfer(key, start, end_byte);
+		running.add(transfer);
+		return transfer;
+	}
+
+	//marks the request's transfers that overlap [start_byte, end_byte], returns how many
+	public synchronized int cancel(InetSocketAddress client, int request_id, int file_id, long start_byte, long end_byte){
+		List<Transfer> running=transfers.get(client.toString()+":"+request_id+":"+file_id);
+		int count=0;
+		if (running!=null){
+			for(Transfer transfer:running){
+				if (transfer.start_byte<=end_byte && start_byte<=transfer.end_byte){
+					transfer.cancelled=true;
+					count++;
+				}
+			}
+		}
+		cancelled+=count;
+		return count;
+	}
+
+	public synchronized void end(Transfer transfer){
+		List<Transfer> running=transfers.get(transfer.key);
+		if (running!=null){
+			running.remove(transfer);
+			if (running.isEmpty()){
+				transfers.remove(transfer.key);
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "inflight:"+transfers.size()+" dropped:"+dropped+" trimmed:"+trimmed+" cancelled:"+cancelled;
+	}
+}
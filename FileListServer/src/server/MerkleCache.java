@@ -0,0 +1,213 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import model.MerkleTree;
+
+/*
+ * Hash trees of served files, built on first use with fork-join over the blocks and kept
+ * in memory and in a sidecar file under the cache folder, at the file's own path so
+ * files of the same name in different directories do not share one. A tree is only
+ * reused while the file's size and mtime are the ones it was built from.
+ */
+public class MerkleCache {
+	//blocks hashed by one task without splitting further
+	private static final int LEAVES_PER_TASK=16;
+
+	private File folder=null;
+	private ConcurrentHashMap<Integer, Entry> trees=new ConcurrentHashMap<Integer, Entry>();
+	private ConcurrentHashMap<Integer, Object> locks=new ConcurrentHashMap<Integer, Object>();
+
+	private static class Entry{
+		private long size;
+		private long mtime;
+		private MerkleTree tree;
+
+		Entry(long size, long mtime, MerkleTree tree){
+			this.size=size;
+			this.mtime=mtime;
+			this.tree=tree;
+		}
+
+		boolean matches(File file){
+			return size==file.length() && mtime==file.lastModified();
+		}
+	}
+
+	public MerkleCache(String folderName){
+		this.folder=new File(folderName);
+	}
+
+	public MerkleTree getTree(int file_id, File file) throws IOException{
+		Entry entry=trees.get(file_id);
+		if (entry!=null && entry.matches(file)){
+			return entry.tree;
+		}
+		locks.putIfAbsent(file_id, new Object());
+		//one build per file, other files are not held up
+		synchronized(locks.get(file_id)){
+			entry=trees.get(file_id);
+			if (entry==null || !entry.matches(file)){
+				entry=readSidecar(file);
+				if (entry==null){
+					entry=build(file);
+					writeSidecar(file, entry);
+				}
+				trees.put(file_id, entry);
+			}
+			return entry.tree;
+		}
+	}
+
+	private Entry build(File file) throws IOException{
+		long size=file.length();
+		long mtime=file.lastModified();
+		byte[][] leaves=new byte[MerkleTree.leafCount(size)][];
+		long buildStart=System.nanoTime();
+		RandomAccessFile raf=new RandomAccessFile(file, "r");
+		try {
+			ForkJoinPool.commonPool().invoke(new LeafTask(raf.getChannel(), size, leaves, 0, leaves.length));
+		} catch (UncheckedIOException ex) {
+			//the pool may wrap the task's exception again, the read error is somewhere in the chain
+			Throwable cause=ex;
+			while(cause!=null && !(cause instanceof IOException)){
+				cause=cause.getCause();
+			}
+			throw cause!=null?(IOException)cause:new IOException(ex);
+		} finally {
+			raf.close();
+		}
+		loggerManager.getInstance(this.getClass()).debug("Hash tree of "+file.getName()+" built in "+(System.nanoTime()-buildStart)/1000000+" ms, leaves:"+leaves.length);
+		return new Entry(size, mtime, new MerkleTree(leaves));
+	}
+
+	private static class LeafTask extends RecursiveAction{
+		private static final long serialVersionUID=1L;
+
+		private FileChannel channel;
+		private long size;
+		private byte[][] leaves;
+		private int from;
+		private int to;
+
+		LeafTask(FileChannel channel, long size, byte[][] leaves, int from, int to){
+			this.channel=channel;
+			this.size=size;
+			this.leaves=leaves;
+			this.from=from;
+			this.to=to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to-from>LEAVES_PER_TASK){
+				int middle=(from+to)>>>1;
+				invokeAll(new LeafTask(channel, size, leaves, from, middle), new LeafTask(channel, size, leaves, middle, to));
+				return;
+			}
+			byte[] buf=new byte[MerkleTree.BLOCK_SIZE];
+			for(int block=from;block<to;block++){
+				long position=MerkleTree.blockStart(block)-1;
+				int length=(int)Math.max(0, MerkleTree.blockEnd(block, size)-position);
+				ByteBuffer target=ByteBuffer.wrap(buf, 0, length);
+				try {
+					while(target.hasRemaining()){
+						if (channel.read(target, position+target.position())<0){
+							break;
+						}
+					}
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+				leaves[block]=MerkleTree.hashBlock(buf, 0, length);
+			}
+		}
+	}
+
+	private File sidecar(File file){
+		return new File(folder, file.getPath()+".merkle");
+	}
+
+	//size 8 bytes|mtime 8 bytes|block size 4 bytes|leaf count 4 bytes|leaf hashes
+	private Entry readSidecar(File file){
+		File sidecar=sidecar(file);
+		if (!sidecar.isFile()){
+			return null;
+		}
+		DataInputStream in=null;
+		try {
+			in=new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+			long size=in.readLong();
+			long mtime=in.readLong();
+			int blockSize=in.readInt();
+			int leafCount=in.readInt();
+			if (size!=file.length() || mtime!=file.lastModified() || blockSize!=MerkleTree.BLOCK_SIZE || leafCount!=MerkleTree.leafCount(size)){
+				return null;
+			}
+			byte[][] leaves=new byte[leafCount][MerkleTree.HASH_SIZE];
+			for(byte[] leaf:leaves){
+				in.readFully(leaf);
+			}
+			return new Entry(size, mtime, new MerkleTree(leaves));
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).warn(sidecar.getPath()+": "+ex.toString());
+			return null;
+		} finally {
+			if (in!=null){
+				try {
+					in.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+			}
+		}
+	}
+
+	//written next to the final name and renamed, a crash never leaves a half written sidecar
+	private void writeSidecar(File file, Entry entry){
+		File sidecar=sidecar(file);
+		File tmp=new File(sidecar.getPath()+".tmp");
+		sidecar.getParentFile().mkdirs();
+		DataOutputStream out=null;
+		try {
+			out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeLong(entry.size);
+			out.writeLong(entry.mtime);
+			out.writeInt(MerkleTree.BLOCK_SIZE);
+			out.writeInt(entry.tree.getLeafCount());
+			for(int i=0;i<entry.tree.getLeafCount();i++){
+				out.write(entry.tree.getLeaf(i));
+			}
+			out.close();
+			out=null;
+			sidecar.delete();
+			if (!tmp.renameTo(sidecar)){
+				loggerManager.getInstance(this.getClass()).warn("Could not write "+sidecar.getPath());
+			}
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).warn(sidecar.getPath()+": "+ex.toString());
+		} finally {
+			if (out!=null){
+				try {
+					out.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package server;
+
+/*
+ * Sending rate of a multicast session. With many receivers the slowest one decides, so
+ * the rate is cut whenever a NACK reports new losses and grows slowly while none do;
+ * at most one cut per interval, the losses of one burst arrive in several NACKs.
+ */
+public class MulticastRatePolicy {
+	private static final long INTERVAL_NANOS=200L*1000000;
+
+	private double rate;
+	private double minRate;
+	private double maxRate;
+	private long lastChange;
+	private boolean lossInInterval=false;
+	//earliest time the next datagram may leave
+	private long nextSend;
+
+	//rates in bytes per second
+	public MulticastRatePolicy(double initialRate, double minRate, double maxRate){
+		this.rate=initialRate;
+		this.minRate=minRate;
+		this.maxRate=maxRate;
+		this.lastChange=System.nanoTime();
+		this.nextSend=lastChange;
+	}
+
+	public synchronized void onLoss(){
+		lossInInterval=true;
+	}
+
+	//waits until length bytes may be sent at the current rate
+	public void pace(int length) throws InterruptedException{
+		long wait;
+		synchronized(this){
+			long now=System.nanoTime();
+			adjust(now);
+			//no credit is saved up while idle
+			nextSend=Math.max(nextSend, now);
+			wait=nextSend-now;
+			nextSend+=(long)(length*1e9/rate);
+		}
+		if (wait>0){
+			Thread.sleep(wait/1000000, (int)(wait%1000000));
+		}
+	}
+
+	private void adjust(long now){
+		if (now-lastChange<INTERVAL_NANOS){
+			return;
+		}
+		if (lossInInterval){
+			rate=Math.max(minRate, rate*0.75);
+		}
+		else{
+			rate=Math.min(maxRate, rate*1.05);
+		}
+		lossInInterval=false;
+		lastChange=now;
+	}
+
+	public synchronized double getRate(){
+		return rate;
+	}
+}
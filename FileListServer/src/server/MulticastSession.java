@@ -0,0 +1,282 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import model.FileDataResponseType;
+import model.ResponseType;
+
+/*
+ * Streams one file once to a multicast group for every receiver that joined, paced by
+ * MulticastRatePolicy. Receivers NACK the ranges they miss; NACKs are gathered for a
+ * short window and each missing datagram is sent again once: to the group if at least
+ * repairThreshold receivers asked for it, otherwise by unicast to each of them, tagged
+ * with the id of their NACK. The session ends when nobody joined or NACKed for a while.
+ */
+public class MulticastSession extends Thread {
+	private static final long REPAIR_WINDOW_MILLIS=50;
+
+	private FileListServer server=null;
+	private Endpoint endpoint=null;
+	private int file_id;
+	private File file=null;
+	private long size;
+	private InetSocketAddress group=null;
+	private DatagramChannel channel=null;
+	private MulticastRatePolicy policy=null;
+	private int repairThreshold;
+	private long joinWaitMillis;
+	private long lingerMillis;
+	private LinkedBlockingQueue<Nack> nacks=new LinkedBlockingQueue<Nack>();
+	private boolean passRequested=true;
+	private boolean finished=false;
+	private volatile long lastActivity=System.currentTimeMillis();
+	//first byte the running pass has not sent yet, repairs beyond it are left to the pass
+	private volatile long streamCursor=Long.MAX_VALUE;
+	private long sentDatagrams=0;
+	private long multicastRepairs=0;
+	private long unicastRepairs=0;
+
+	private static class Nack {
+		private InetSocketAddress client;
+		private int request_id;
+		private List<long[]> ranges;
+
+		private Nack(InetSocketAddress client, int request_id, List<long[]> ranges) {
+			this.client=client;
+			this.request_id=request_id;
+			this.ranges=ranges;
+		}
+	}
+
+	public MulticastSession(FileListServer server, Endpoint endpoint, int file_id, File file, InetSocketAddress group) throws IOException{
+		super("multicast-"+file_id);
+		this.server=server;
+		this.endpoint=endpoint;
+		this.file_id=file_id;
+		this.file=file;
+		this.size=file.length();
+		this.group=group;
+		double rate=server.getIntProperty("MULTICAST_RATE_KBIT", 8000)*1000/8.0;
+		this.policy=new MulticastRatePolicy(rate, Math.min(rate, 64*1000/8.0), Math.max(rate, server.getIntProperty("MULTICAST_MAX_RATE_KBIT", 100000)*1000/8.0));
+		this.repairThreshold=Math.max(1, server.getIntProperty("MULTICAST_REPAIR_THRESHOLD", 2));
+		this.joinWaitMillis=server.getIntProperty("MULTICAST_JOIN_WAIT_MS", 500);
+		this.lingerMillis=server.getIntProperty("MULTICAST_LINGER_MS", 3000);
+		this.channel=DatagramChannel.open(group.getAddress() instanceof Inet6Address?StandardProtocolFamily.INET6:StandardProtocolFamily.INET);
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, server.getIntProperty("MULTICAST_TTL", 1));
+		//receivers on this host get the session too
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+		String interfaceName=server.getProperty("MULTICAST_INTERFACE");
+		if (interfaceName!=null){
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, NetworkInterface.getByName(interfaceName));
+		}
+		this.setDaemon(true);
+	}
+
+	public int getFile_id(){
+		return file_id;
+	}
+
+	public InetSocketAddress getGroup(){
+		return group;
+	}
+
+	public long getSize(){
+		return size;
+	}
+
+	//false once the session ended, a new one has to be started then
+	public synchronized boolean onJoin(){
+		if (finished){
+			return false;
+		}
+		//whoever joins after a pass started gets the part it missed by repairs
+		if (streamCursor==Long.MAX_VALUE){
+			passRequested=true;
+		}
+		lastActivity=System.currentTimeMillis();
+		return true;
+	}
+
+	public void onNack(InetSocketAddress client, int request_id, List<long[]> ranges){
+		lastActivity=System.currentTimeMillis();
+		nacks.add(new Nack(client, request_id, ranges));
+	}
+
+	@Override
+	public void run() {
+		RandomAccessFile raf=null;
+		try {
+			raf=new RandomAccessFile(file, "r");
+			//receivers that join within the wait share the first pass
+			Thread.sleep(joinWaitMillis);
+			while(true){
+				boolean pass;
+				synchronized(this){
+					pass=passRequested;
+					passRequested=false;
+					if (!pass && nacks.isEmpty() && System.currentTimeMillis()-lastActivity>lingerMillis){
+						finished=true;
+						break;
+					}
+				}
+				if (pass){
+					stream(raf);
+				}
+				Nack nack=nacks.poll(REPAIR_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+				if (nack!=null){
+					nacks.add(nack);
+					Thread.sleep(REPAIR_WINDOW_MILLIS);
+					repair(raf);
+				}
+			}
+		} catch (InterruptedException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+		} finally {
+			synchronized(this){
+				finished=true;
+			}
+			server.onMulticastSessionEnd(this);
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				loggerManager.getInstance(this.getClass()).error(ex.toString());
+			}
+			if (raf!=null){
+				try {
+					raf.close();
+				} catch (IOException ex) {
+					loggerManager.getInstance(this.getClass()).error(ex.toString());
+				}
+			}
+			loggerManager.getInstance(this.getClass()).info("Multicast session of fileId:"+file_id+" ended, "+toString());
+		}
+	}
+
+	private void stream(RandomAccessFile raf) throws IOException, InterruptedException{
+		streamCursor=1;
+		long lastRepair=System.currentTimeMillis();
+		ReadAheadReader reader=server.newReadAheadReader(file, 1, size, endpoint.getAdmissionController());
+		try {
+			ReadAheadReader.Block block;
+			//datagrams of MAX_DATA_SIZE may span two blocks, only the last one is shorter
+			byte[] data=new byte[ResponseType.MAX_DATA_SIZE];
+			int filled=0;
+			while((block=reader.next())!=null){
+				int offset=0;
+				while(offset<block.getLength()){
+					int count=Math.min(data.length-filled, block.getLength()-offset);
+					System.arraycopy(block.getBuf(), offset, data, filled, count);
+					filled+=count;
+					offset+=count;
+					if (filled==data.length || streamCursor+filled>size){
+						send(streamCursor, filled, data, 0, group, 0);
+						streamCursor+=filled;
+						filled=0;
+						//repairs of what was already sent are interleaved with the pass
+						if (System.currentTimeMillis()-lastRepair>=REPAIR_WINDOW_MILLIS){
+							repair(raf);
+							lastRepair=System.currentTimeMillis();
+						}
+					}
+				}
+				reader.release(block);
+			}
+		} finally {
+			reader.close();
+			streamCursor=Long.MAX_VALUE;
+			//receivers get the linger time after the pass to ask for what they missed
+			lastActivity=System.currentTimeMillis();
+		}
+		loggerManager.getInstance(this.getClass()).info("Multicast pass of fileId:"+file_id+" size:"+size+" sent to "+group+", "+toString());
+	}
+
+	private void repair(RandomAccessFile raf) throws IOException, InterruptedException{
+		List<Nack> window=new ArrayList<Nack>();
+		nacks.drainTo(window);
+		if (window.isEmpty()){
+			return;
+		}
+		//receivers that miss each datagram of the file, datagram i starts at i*MAX_DATA_SIZE+1
+		TreeMap<Long, List<Nack>> missing=new TreeMap<Long, List<Nack>>();
+		long cursor=streamCursor;
+		for(Nack nack:window){
+			for(long[] range:nack.ranges){
+				long last=(Math.min(range[1], size)-1)/ResponseType.MAX_DATA_SIZE;
+				for(long i=(range[0]-1)/ResponseType.MAX_DATA_SIZE;i<=last && i*ResponseType.MAX_DATA_SIZE+1<cursor;i++){
+					List<Nack> requesters=missing.get(i);
+					if (requesters==null){
+						requesters=new ArrayList<Nack>();
+						missing.put(i, requesters);
+					}
+					requesters.add(nack);
+				}
+			}
+		}
+		if (missing.isEmpty()){
+			return;
+		}
+		policy.onLoss();
+		byte[] buf=new byte[ResponseType.MAX_DATA_SIZE];
+		for(Map.Entry<Long, List<Nack>> entry:missing.entrySet()){
+			long start_byte=entry.getKey()*ResponseType.MAX_DATA_SIZE+1;
+			int length=(int)Math.min(ResponseType.MAX_DATA_SIZE, size-start_byte+1);
+			length=server.getBlockCache().read(file, raf.getChannel(), start_byte-1, buf, 0, length);
+			if (length<=0){
+				continue;
+			}
+			Set<InetSocketAddress> clients=new HashSet<InetSocketAddress>();
+			for(Nack nack:entry.getValue()){
+				clients.add(nack.client);
+			}
+			if (clients.size()>=repairThreshold){
+				send(start_byte, length, buf, 0, group, 0);
+				multicastRepairs++;
+			}
+			else{
+				for(Nack nack:entry.getValue()){
+					if (clients.remove(nack.client)){
+						send(start_byte, length, buf, 0, nack.client, nack.request_id);
+						unicastRepairs++;
+					}
+				}
+			}
+		}
+	}
+
+	private void send(long start_byte, int length, byte[] buf, int offset, InetSocketAddress target, int request_id) throws IOException, InterruptedException{
+		byte[] data=new byte[length];
+		System.arraycopy(buf, offset, data, 0, length);
+		byte[] sendData=new FileDataResponseType(ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS, file_id, start_byte, start_byte+length-1, data).toByteArray();
+		if (request_id!=0){
+			sendData=ResponseType.appendRequestId(sendData, request_id);
+		}
+		policy.pace(sendData.length);
+		channel.send(ByteBuffer.wrap(sendData), target);
+		endpoint.increaseTotalSentBytes(sendData.length);
+		sentDatagrams++;
+	}
+
+	@Override
+	public String toString() {
+		return "datagrams:"+sentDatagrams+" multicast_repairs:"+multicastRepairs+" unicast_repairs:"+unicastRepairs+" rate_kbit:"+(long)(policy.getRate()*8/1000);
+	}
+}
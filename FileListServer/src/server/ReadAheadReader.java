@@ -0,0 +1,135 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/*
+ * Reads [start_byte, end_byte] of a file ahead of the sender. A ring of depth block
+ * buffers is filled from the block cache on the shared I/O pool; next() hands out
+ * blocks in file order and release() gives the buffer back for the next block, so at
+ * most depth blocks per transfer are held by the transfer itself. Blocks are aligned in
+ * the file to blockSize, a multiple of the cache's block size, so only the first and
+ * the last block of a range are shorter.
+ */
+public class ReadAheadReader {
+	private ExecutorService ioPool=null;
+	private AdmissionController admission=null;
+	private BlockCache cache=null;
+	private File file=null;
+	private RandomAccessFile raf=null;
+	private FileChannel channel=null;
+	private long start_byte;
+	private long end_byte;
+	private int blockSize;
+	//file offset of the aligned block the range starts in
+	private long base;
+	private Block[] ring=null;
+	//index of the next block next() returns and of the next block to be scheduled
+	private long nextBlock=0;
+	private long scheduledBlocks=0;
+	private long blockCount;
+
+	public class Block{
+		private byte[] buf;
+		private long start_byte;
+		private int length;
+		private Future<Integer> pending;
+
+		Block(int blockSize){
+			this.buf=new byte[blockSize];
+		}
+
+		public byte[] getBuf() {
+			return buf;
+		}
+
+		public long getStart_byte() {
+			return start_byte;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+
+	public ReadAheadReader(ExecutorService ioPool, BlockCache cache, AdmissionController admission, File file, long start_byte, long end_byte, int blockSize, int depth) throws IOException{
+		this.ioPool=ioPool;
+		this.admission=admission;
+		this.cache=cache;
+		this.file=file;
+		this.raf=new RandomAccessFile(file, "r");
+		this.channel=raf.getChannel();
+		this.start_byte=start_byte;
+		this.end_byte=end_byte;
+		this.blockSize=blockSize;
+		this.base=(start_byte-1)/blockSize*blockSize;
+		this.blockCount=(end_byte-1-base)/blockSize+1;
+		this.ring=new Block[(int)Math.min(depth, blockCount)];
+		for(int i=0;i<ring.length;i++){
+			ring[i]=new Block(blockSize);
+			schedule(ring[i]);
+		}
+	}
+
+	private void schedule(final Block block){
+		if (scheduledBlocks>=blockCount){
+			block.pending=null;
+			return;
+		}
+		long blockStart=base+scheduledBlocks*blockSize;
+		block.start_byte=Math.max(start_byte, blockStart+1);
+		block.length=(int)(Math.min(end_byte, blockStart+blockSize)-block.start_byte+1);
+		scheduledBlocks++;
+		block.pending=ioPool.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws IOException {
+				long readStart=System.nanoTime();
+				int read=cache.read(file, channel, block.start_byte-1, block.buf, 0, block.length);
+				//the buffer still holds an earlier block, past the end of a file that got shorter
+				//the block is sent as zeros so the datagrams keep their offsets
+				Arrays.fill(block.buf, read, block.length, (byte)0);
+				admission.onDiskRead(read, System.nanoTime()-readStart);
+				return read;
+			}
+		});
+	}
+
+	//null once every block was returned
+	public Block next() throws IOException, InterruptedException{
+		if (nextBlock>=blockCount){
+			return null;
+		}
+		Block block=ring[(int)(nextBlock%ring.length)];
+		nextBlock++;
+		try {
+			block.pending.get();
+		} catch (ExecutionException ex) {
+			throw new IOException(ex.getCause());
+		}
+		return block;
+	}
+
+	public void release(Block block){
+		schedule(block);
+	}
+
+	public void close(){
+		for(Block block:ring){
+			if (block.pending!=null){
+				block.pending.cancel(false);
+			}
+		}
+		try {
+			raf.close();
+		} catch (IOException ex) {
+			loggerManager.getInstance(this.getClass()).error(ex.toString());
+		}
+	}
+}
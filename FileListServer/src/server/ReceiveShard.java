@@ -0,0 +1,104 @@
+package server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+import model.ResponseType;
+
+/*
+ * One socket bound to the endpoint's port with its own receive loop and egress scheduler.
+ * With SO_REUSEPORT the kernel hashes each client flow to one socket, so a client's
+ * requests, handlers and response queue all stay on the same shard.
+ */
+public class ReceiveShard extends Thread {
+	private FileListServer server=null;
+	private Endpoint endpoint=null;
+	private int index;
+	private DatagramSocket socket=null;
+	private EgressScheduler egressScheduler=null;
+	private volatile long receivedRequests=0;
+	private volatile long rejectedRequests=0;
+	private volatile long droppedRequests=0;
+
+	public ReceiveShard(FileListServer server, Endpoint endpoint, int index, DatagramSocket socket, EgressScheduler egressScheduler){
+		super("receive-"+endpoint.getPort()+"-"+index);
+		this.server=server;
+		this.endpoint=endpoint;
+		this.index=index;
+		this.socket=socket;
+		this.egressScheduler=egressScheduler;
+	}
+
+	@Override
+	public void run() {
+		byte[] receiveData = new byte[ResponseType.MAX_RESPONSE_SIZE()];
+		while(true){
+			try{
+				DatagramPacket receivePacket=new DatagramPacket(receiveData, receiveData.length);
+				socket.receive(receivePacket);
+				FileRequestHandler reqHandler=accept(receivePacket);
+				if (reqHandler!=null){
+					reqHandler.start();
+				}
+			}catch(IOException ex){
+				loggerManager.getInstance(this.getClass()).error(ex.toString());
+			}catch(RuntimeException ex){
+				//a malformed datagram must not end the receive loop
+				droppedRequests++;
+				loggerManager.getInstance(this.getClass()).warn(ex.toString());
+			}
+		}
+	}
+
+	/*
+	 * Handler for a received datagram, not started yet; null when the datagram was dropped
+	 * or answered BUSY. sim.TransferSimulator calls run() itself at the virtual time the
+	 * datagram arrives.
+	 */
+	public FileRequestHandler accept(DatagramPacket receivePacket){
+		receivedRequests++;
+		if (receivePacket.getLength()<ResponseType.HEADER_SIZE){
+			//requests share the response header layout; too short for it, nothing to answer
+			droppedRequests++;
+			loggerManager.getInstance(this.getClass()).debug("Dropped "+receivePacket.getLength()+" byte datagram from "+receivePacket.getSocketAddress());
+			return null;
+		}
+		FileRequestHandler reqHandler=new FileRequestHandler(server, receivePacket, this);
+		if (endpoint.getAdmissionController().tryAdmitHandler()){
+			return reqHandler;
+		}
+		//answered from the receive loop, no thread is started
+		rejectedRequests++;
+		reqHandler.rejectBusy(AdmissionController.MIN_RETRY_AFTER_MILLIS);
+		return null;
+	}
+
+	public Endpoint getEndpoint(){
+		return endpoint;
+	}
+
+	public int getIndex(){
+		return index;
+	}
+
+	public DatagramSocket getSocket(){
+		return socket;
+	}
+
+	public EgressScheduler getEgressScheduler(){
+		return egressScheduler;
+	}
+
+	public long getReceivedRequests(){
+		return receivedRequests;
+	}
+
+	public long getRejectedRequests(){
+		return rejectedRequests;
+	}
+
+	public long getDroppedRequests(){
+		return droppedRequests;
+	}
+}
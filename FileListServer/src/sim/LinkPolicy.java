@@ -0,0 +1,144 @@
+package sim;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Timeline of a tc policy file as applied by tc/tc_policy.sh: loss, delay and rate
+ * lines change the link immediately, wait lines advance time and the whole file is
+ * replayed in a loop.
+ */
+public class LinkPolicy {
+	//tc_policy.sh creates the htb class with "rate 1024Mbps"
+	public static final double INITIAL_RATE=parseRate("1024Mbps");
+
+	private List<Phase> phases=new ArrayList<Phase>();
+	private long cycleMicros=0;
+
+	public static class Phase{
+		private long startMicros;
+		private double loss;
+		private long delayMicros;
+		private double rate;
+
+		Phase(long startMicros, double loss, long delayMicros, double rate){
+			this.startMicros=startMicros;
+			this.loss=loss;
+			this.delayMicros=delayMicros;
+			this.rate=rate;
+		}
+
+		public double getLoss() {
+			return loss;
+		}
+
+		public long getDelayMicros() {
+			return delayMicros;
+		}
+
+		//bytes per second
+		public double getRate() {
+			return rate;
+		}
+	}
+
+	public LinkPolicy(List<String> lines){
+		double loss=0;
+		long delay=0;
+		double rate=INITIAL_RATE;
+		long time=0;
+		for(String line:lines){
+			String[] keys=line.trim().split("\\s+");
+			if (keys.length<2 || keys[0].startsWith("#")){
+				continue;
+			}
+			if (keys[0].equals("loss")){
+				loss=Double.parseDouble(keys[1].replace("%", ""))/100;
+			}
+			else if (keys[0].equals("delay")){
+				delay=parseTime(keys[1]);
+			}
+			else if (keys[0].equals("rate")){
+				rate=parseRate(keys[1]);
+			}
+			else if (keys[0].equals("wait")){
+				long wait=Long.parseLong(keys[1])*1000000L;
+				if (wait>0){
+					phases.add(new Phase(time, loss, delay, rate));
+					time+=wait;
+				}
+			}
+		}
+		if (phases.isEmpty()){
+			phases.add(new Phase(0, loss, delay, rate));
+		}
+		cycleMicros=time;
+	}
+
+	public static LinkPolicy load(String fileName) throws IOException{
+		List<String> lines=new ArrayList<String>();
+		BufferedReader reader=new BufferedReader(new FileReader(fileName));
+		try{
+			String line;
+			while((line=reader.readLine())!=null){
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return new LinkPolicy(lines);
+	}
+
+	public static LinkPolicy unshaped(){
+		return new LinkPolicy(new ArrayList<String>());
+	}
+
+	public Phase at(long timeMicros){
+		if (cycleMicros==0){
+			return phases.get(phases.size()-1);
+		}
+		long offset=timeMicros%cycleMicros;
+		Phase found=phases.get(0);
+		for(Phase phase:phases){
+			if (phase.startMicros>offset){
+				break;
+			}
+			found=phase;
+		}
+		return found;
+	}
+
+	public long getCycleMicros(){
+		return cycleMicros;
+	}
+
+	//tc reads "bps" suffixes as bytes per second and "bit" suffixes as bits per second
+	public static double parseRate(String value){
+		String lower=value.trim().toLowerCase();
+		String[] units=new String[]{"gbit","mbit","kbit","bit","gbps","mbps","kbps","bps"};
+		double[] multipliers=new double[]{1e9/8, 1e6/8, 1e3/8, 1.0/8, 1e9, 1e6, 1e3, 1};
+		for(int i=0;i<units.length;i++){
+			if (lower.endsWith(units[i])){
+				return Double.parseDouble(lower.substring(0, lower.length()-units[i].length()))*multipliers[i];
+			}
+		}
+		return Double.parseDouble(lower)/8;
+	}
+
+	public static long parseTime(String value){
+		String lower=value.trim().toLowerCase();
+		if (lower.endsWith("us")){
+			return (long)Double.parseDouble(lower.substring(0, lower.length()-2));
+		}
+		if (lower.endsWith("ms")){
+			return (long)(Double.parseDouble(lower.substring(0, lower.length()-2))*1000);
+		}
+		if (lower.endsWith("s")){
+			return (long)(Double.parseDouble(lower.substring(0, lower.length()-1))*1000000);
+		}
+		return (long)Double.parseDouble(lower);
+	}
+}
@@ -0,0 +1,72 @@
+package sim;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+import server.EgressScheduler;
+import server.Endpoint;
+import server.FileListServer;
+import server.FileRequestHandler;
+import server.ReceiveShard;
+
+/*
+ * Server side of a run: a real Endpoint whose receive shard is fed from the uplink and
+ * whose egress scheduler is drained onto the downlink, in place of the socket and the
+ * receive and sender threads. A handler runs to completion at the instant its request
+ * arrives; the scheduler hands the link one datagram every pacingMicros, or everything
+ * it holds at once without pacing.
+ */
+public class SimulatedEndpoint implements SimulatedLink.Receiver {
+	private Simulator simulator=null;
+	private SimulatedLink downlink=null;
+	private Endpoint endpoint=null;
+	private ReceiveShard shard=null;
+	private long pacingMicros;
+	private boolean pacing=false;
+
+	public SimulatedEndpoint(Simulator simulator, SimulatedLink downlink, FileListServer server, InetSocketAddress address, long pacingMicros){
+		this.simulator=simulator;
+		this.downlink=downlink;
+		this.pacingMicros=pacingMicros;
+		this.endpoint=new Endpoint(server, address.getAddress(), address.getPort());
+		this.shard=endpoint.createShards(new DatagramSocket[1])[0];
+	}
+
+	@Override
+	public void receive(DatagramPacket request) {
+		FileRequestHandler handler=shard.accept(request);
+		if (handler!=null){
+			//on this thread instead of start(), the handler takes no virtual time
+			handler.run();
+		}
+		drain();
+	}
+
+	private void drain(){
+		if (pacing){
+			return;
+		}
+		EgressScheduler scheduler=shard.getEgressScheduler();
+		DatagramPacket packet;
+		while((packet=scheduler.poll())!=null){
+			scheduler.onSent(packet, simulator.now()*1000);
+			downlink.send(packet);
+			if (pacingMicros>0){
+				pacing=true;
+				simulator.schedule(pacingMicros, new Runnable() {
+					@Override
+					public void run() {
+						pacing=false;
+						drain();
+					}
+				});
+				return;
+			}
+		}
+	}
+
+	public Endpoint getEndpoint() {
+		return endpoint;
+	}
+}
@@ -0,0 +1,102 @@
+package sim;
+
+import java.net.DatagramPacket;
+import java.util.Random;
+
+/*
+ * One direction of a tc shaped path: netem drops on enqueue and holds packets for the
+ * configured delay, htb then releases them at the class rate. netem keeps at most
+ * QUEUE_LIMIT packets, anything beyond is tail dropped.
+ */
+public class SimulatedLink {
+	public static final int QUEUE_LIMIT=1000;
+	//IPv4 and UDP headers counted against the shaped rate
+	public static final int IP_UDP_OVERHEAD=28;
+
+	public interface Receiver{
+		void receive(DatagramPacket datagram);
+	}
+
+	private Simulator simulator=null;
+	private LinkPolicy policy=null;
+	private Random random=null;
+	private Receiver receiver=null;
+	private long policyOffsetMicros=0;
+	private double reorderProbability=0;
+	private long reorderDelayMicros=0;
+
+	private double busyUntil=0;
+	private int queued=0;
+
+	private long sentDatagrams=0;
+	private long lostDatagrams=0;
+	private long droppedDatagrams=0;
+	private long reorderedDatagrams=0;
+
+	public SimulatedLink(Simulator simulator, LinkPolicy policy, Random random, long policyOffsetMicros){
+		this.simulator=simulator;
+		this.policy=policy;
+		this.random=random;
+		this.policyOffsetMicros=policyOffsetMicros;
+	}
+
+	public void setReceiver(Receiver receiver){
+		this.receiver=receiver;
+	}
+
+	public void setReordering(double probability, long extraDelayMicros){
+		this.reorderProbability=probability;
+		this.reorderDelayMicros=extraDelayMicros;
+	}
+
+	public void send(final DatagramPacket datagram){
+		long now=simulator.now();
+		LinkPolicy.Phase phase=policy.at(now+policyOffsetMicros);
+		sentDatagrams++;
+		if (phase.getLoss()>0 && random.nextDouble()<phase.getLoss()){
+			lostDatagrams++;
+			return;
+		}
+		if (queued>=QUEUE_LIMIT){
+			droppedDatagrams++;
+			return;
+		}
+		double ready=now+phase.getDelayMicros();
+		double departure=Math.max(ready, busyUntil)+(IP_UDP_OVERHEAD+datagram.getLength())*1e6/phase.getRate();
+		busyUntil=departure;
+		long arrival=(long)Math.ceil(departure);
+		if (reorderProbability>0 && random.nextDouble()<reorderProbability){
+			reorderedDatagrams++;
+			arrival+=reorderDelayMicros;
+		}
+		queued++;
+		simulator.schedule((long)Math.ceil(departure)-now, new Runnable() {
+			@Override
+			public void run() {
+				queued--;
+			}
+		});
+		simulator.schedule(arrival-now, new Runnable() {
+			@Override
+			public void run() {
+				receiver.receive(datagram);
+			}
+		});
+	}
+
+	public long getSentDatagrams() {
+		return sentDatagrams;
+	}
+
+	public long getLostDatagrams() {
+		return lostDatagrams;
+	}
+
+	public long getDroppedDatagrams() {
+		return droppedDatagrams;
+	}
+
+	public long getReorderedDatagrams() {
+		return reorderedDatagrams;
+	}
+}
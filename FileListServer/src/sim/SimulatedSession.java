@@ -0,0 +1,267 @@
+package sim;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import model.BusyResponseType;
+import model.FileDataResponseFlyweight;
+import model.FileDescriptor;
+import model.FileListResponseType;
+import model.FileSizeResponseType;
+import model.RangeSet;
+import model.RequestType;
+import model.ResponseType;
+import model.RetryPolicy;
+import model.RttEstimator;
+
+/*
+ * Client side of a run, speaking the wire protocol to a SimulatedEndpoint: GET_FILE_LIST,
+ * GET_FILE_SIZE of the first file, then the file in ranges of window datagrams of
+ * chunkSize bytes, one range at a time. Requests are tagged with a request id and
+ * answers matched by it like in ClientSession, which also decides the rest the same way:
+ * received data goes into a RangeSet and only its missing ranges are asked for again,
+ * RTT samples come from requests sent once, and whenever the RTO runs out a RetryPolicy
+ * tells whether to wait, resend, back off after BUSY or give up.
+ */
+public class SimulatedSession implements SimulatedLink.Receiver {
+	private Simulator simulator=null;
+	private SimulatedLink uplink=null;
+	private InetSocketAddress address=null;
+	private int chunkSize;
+	private int window;
+	private RttEstimator rtt=new RttEstimator();
+	private FileDataResponseFlyweight response=new FileDataResponseFlyweight();
+	private HashMap<Integer, Request> pending=new HashMap<Integer, Request>();
+	private int requestIds=0;
+
+	private int file_id;
+	private long fileSize;
+	private long rangeEnd=0;
+	private boolean done=false;
+	private boolean failed=false;
+
+	private long completionMicros=-1;
+	private long requests=0;
+	private long retransmitRequests=0;
+	private long receivedBytes=0;
+	private long duplicateBytes=0;
+
+	private class Request{
+		private int request_id;
+		private int requestType;
+		private int file_id;
+		private long start_byte;
+		private long end_byte;
+		private byte[] payload=null;
+		private RangeSet received=new RangeSet();
+		private RetryPolicy retry=new RetryPolicy(0);
+		private long sentTime;
+		private int sends=0;
+		private boolean answered=false;
+		private long progress=0;
+		private long busyMillis=0;
+		private int busyResponses=0;
+		private boolean done=false;
+		private byte[] response=null;
+
+		Request(int requestType, int file_id, long start_byte, long end_byte, byte[] payload){
+			this.request_id=++requestIds;
+			this.requestType=requestType;
+			this.file_id=file_id;
+			this.start_byte=start_byte;
+			this.end_byte=end_byte;
+			this.payload=payload;
+		}
+	}
+
+	public SimulatedSession(Simulator simulator, SimulatedLink uplink, InetSocketAddress address, int chunkSize, int window){
+		this.simulator=simulator;
+		this.uplink=uplink;
+		this.address=address;
+		this.chunkSize=chunkSize;
+		this.window=window;
+	}
+
+	public void start(){
+		submit(new Request(RequestType.REQUEST_TYPES.GET_FILE_LIST, 0, 0, 0, null));
+	}
+
+	private void submit(Request request){
+		pending.put(request.request_id, request);
+		send(request, request.start_byte, request.end_byte);
+		armTimer(request, rtt.getRtoNanos()/1000);
+	}
+
+	private void send(Request request, long start, long end){
+		byte[] data=new RequestType(request.requestType, request.file_id, start, end, request.request_id, request.payload).toByteArray();
+		//carries the client's address like a received datagram does, the endpoint answers it
+		DatagramPacket datagram=new DatagramPacket(data, data.length, address);
+		request.sentTime=simulator.now();
+		request.sends++;
+		requests++;
+		uplink.send(datagram);
+	}
+
+	//like ClientSession.resend: only what is still missing of a data request
+	private void resend(Request request){
+		if (request.requestType==RequestType.REQUEST_TYPES.GET_FILE_DATA){
+			for(long[] range:request.received.missing(request.start_byte, request.end_byte)){
+				retransmitRequests++;
+				send(request, range[0], range[1]);
+			}
+		}
+		else{
+			retransmitRequests++;
+			send(request, request.start_byte, request.end_byte);
+		}
+	}
+
+	private void armTimer(final Request request, long delayMicros){
+		simulator.schedule(delayMicros, new Runnable() {
+			@Override
+			public void run() {
+				onTimer(request);
+			}
+		});
+	}
+
+	//ClientSession's retransmitter in virtual time
+	private void onTimer(final Request request){
+		if (request.done || failed){
+			return;
+		}
+		long busyMillis=request.busyMillis;
+		request.busyMillis=0;
+		switch(request.retry.onTimeout(request.progress, busyMillis, request.busyResponses)){
+			case RetryPolicy.GIVE_UP:
+			case RetryPolicy.GIVE_UP_BUSY:
+				failed=true;
+				return;
+			case RetryPolicy.BACK_OFF:
+				simulator.schedule(busyMillis*1000, new Runnable() {
+					@Override
+					public void run() {
+						if (!request.done && !failed){
+							request.retry.onResent(request.progress);
+							resend(request);
+							armTimer(request, rtt.getRtoNanos()/1000);
+						}
+					}
+				});
+				return;
+			case RetryPolicy.RESEND:
+				resend(request);
+				break;
+			default:
+				//data still arrives
+		}
+		armTimer(request, rtt.getRtoNanos()/1000);
+	}
+
+	@Override
+	public void receive(DatagramPacket datagram) {
+		byte[] data=datagram.getData();
+		int length=datagram.getLength();
+		if (length<ResponseType.HEADER_SIZE+ResponseType.REQUEST_ID_SIZE){
+			return;
+		}
+		//late answers of finished requests find no request and are dropped
+		Request request=pending.get(ResponseType.readRequestId(data, length));
+		if (request==null){
+			return;
+		}
+		response.wrap(data, length-ResponseType.REQUEST_ID_SIZE);
+		if (!request.answered && request.sends==1){
+			rtt.onSample((simulator.now()-request.sentTime)*1000);
+		}
+		request.answered=true;
+		if (response.getResponseType()==ResponseType.RESPONSE_TYPES.BUSY){
+			request.busyMillis=Math.max(1, new BusyResponseType(Arrays.copyOf(data, response.getLength())).getRetryAfterMillis());
+			request.busyResponses++;
+			return;
+		}
+		if (response.getResponseType()>=ResponseType.RESPONSE_TYPES.INVALID_REQUEST_TYPE){
+			//ClientSession.await throws, the download ends
+			failed=true;
+			return;
+		}
+		if (response.getResponseType()!=ResponseType.RESPONSE_TYPES.GET_FILE_DATA_SUCCESS){
+			request.response=Arrays.copyOf(data, response.getLength());
+			complete(request);
+			return;
+		}
+		if (!response.isComplete()){
+			return;
+		}
+		if (request.received.contains(response.getStart_byte(), response.getEnd_byte())){
+			duplicateBytes+=response.getDataLength();
+		}
+		else{
+			request.received.add(response.getStart_byte(), response.getEnd_byte());
+			receivedBytes+=response.getDataLength();
+		}
+		request.progress++;
+		if (request.received.contains(request.start_byte, request.end_byte)){
+			complete(request);
+		}
+	}
+
+	private void complete(Request request){
+		request.done=true;
+		pending.remove(request.request_id);
+		switch(request.requestType){
+			case RequestType.REQUEST_TYPES.GET_FILE_LIST:
+				FileDescriptor[] files=new FileListResponseType(request.response).getFileDescriptors();
+				if (files.length==0){
+					failed=true;
+					return;
+				}
+				file_id=files[0].getFile_id();
+				submit(new Request(RequestType.REQUEST_TYPES.GET_FILE_SIZE, file_id, 0, 0, null));
+				break;
+			case RequestType.REQUEST_TYPES.GET_FILE_SIZE:
+				fileSize=new FileSizeResponseType(request.response).getFileSize();
+				nextRange();
+				break;
+			default:
+				nextRange();
+		}
+	}
+
+	private void nextRange(){
+		if (rangeEnd>=fileSize){
+			done=true;
+			completionMicros=simulator.now();
+			return;
+		}
+		long rangeStart=rangeEnd+1;
+		rangeEnd=Math.min(rangeStart+(long)window*chunkSize-1, fileSize);
+		submit(new Request(RequestType.REQUEST_TYPES.GET_FILE_DATA, file_id, rangeStart, rangeEnd, RequestType.encodeDataSize(chunkSize)));
+	}
+
+	public boolean isDone(){
+		return done;
+	}
+
+	public long getCompletionMicros() {
+		return completionMicros;
+	}
+
+	public long getRequests() {
+		return requests;
+	}
+
+	public long getRetransmitRequests() {
+		return retransmitRequests;
+	}
+
+	public long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	public long getDuplicateBytes() {
+		return duplicateBytes;
+	}
+}
@@ -0,0 +1,55 @@
+package sim;
+
+import java.util.PriorityQueue;
+
+public class Simulator {
+	private PriorityQueue<Event> events=new PriorityQueue<Event>();
+	//virtual time in microseconds
+	private long now=0;
+	private long sequence=0;
+
+	private static class Event implements Comparable<Event>{
+		private long time;
+		private long sequence;
+		private Runnable action;
+
+		Event(long time, long sequence, Runnable action){
+			this.time=time;
+			this.sequence=sequence;
+			this.action=action;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			if (time!=other.time){
+				return time<other.time?-1:1;
+			}
+			//events scheduled for the same instant run in scheduling order, which keeps runs reproducible
+			return sequence<other.sequence?-1:(sequence==other.sequence?0:1);
+		}
+	}
+
+	public long now(){
+		return now;
+	}
+
+	public void schedule(long delayMicros, Runnable action){
+		events.add(new Event(now+Math.max(0, delayMicros), sequence++, action));
+	}
+
+	public void run(long untilMicros){
+		while(!events.isEmpty()){
+			Event event=events.peek();
+			if (event.time>untilMicros){
+				break;
+			}
+			events.poll();
+			now=event.time;
+			event.action.run();
+		}
+	}
+
+	public void stop(){
+		events.clear();
+	}
+}
@@ -0,0 +1,191 @@
+package sim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import server.FileListServer;
+import server.loggerManager;
+
+/*
+ * Runs transfers over a simulated tc path in virtual time: the server side is
+ * FileListServer's own shard, handler and egress scheduler code behind a simulated
+ * socket, the client side a SimulatedSession making ClientSession's decisions. The
+ * served file is a sparse file of size bytes in a temporary folder. Every argument is
+ * key=value, chunk, window and pacing take comma separated lists and the whole grid is
+ * run once per seed:
+ *   java -classpath "target/classes:target/lib/*" sim.TransferSimulator policy=tc/policy1 size=20000000 chunk=500,1000 window=64,256 seeds=100
+ * One CSV line is printed per run.
+ */
+public class TransferSimulator {
+	private static final InetSocketAddress SERVER_ADDRESS=new InetSocketAddress(address(10, 0, 0, 1), 5000);
+	private static final InetSocketAddress CLIENT_ADDRESS=new InetSocketAddress(address(10, 0, 0, 2), 40000);
+
+	private FileListServer server=null;
+	private LinkPolicy policy=null;
+	private long offsetMicros;
+	private long horizonMicros;
+	private double reorder;
+	private long reorderDelayMicros;
+
+	public TransferSimulator(FileListServer server, LinkPolicy policy, long offsetMicros, long horizonMicros){
+		this.server=server;
+		this.policy=policy;
+		this.offsetMicros=offsetMicros;
+		this.horizonMicros=horizonMicros;
+	}
+
+	private static InetAddress address(int a, int b, int c, int d){
+		try {
+			return InetAddress.getByAddress(new byte[]{(byte)a, (byte)b, (byte)c, (byte)d});
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/*
+	 * A server with the settings of PROPERTIES_FILE, if there is one, serving a single
+	 * file of fileSize bytes. Data sizes up to maxChunkSize are accepted and the egress
+	 * queue is unbounded: the simulated socket takes datagrams as fast as they are queued,
+	 * a handler must never wait for it.
+	 */
+	public static FileListServer newServer(long fileSize, int maxChunkSize) throws IOException{
+		Properties properties=new Properties();
+		File propertiesFile=new File(FileListServer.PROPERTIES_FILE);
+		if (propertiesFile.isFile()){
+			InputStream in=new FileInputStream(propertiesFile);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		properties.setProperty("MAX_NEGOTIATED_DATA_SIZE", String.valueOf(maxChunkSize));
+		properties.setProperty("EGRESS_QUEUE_LIMIT", String.valueOf(Integer.MAX_VALUE));
+		File folder=Files.createTempDirectory("transfer-simulator").toFile();
+		folder.deleteOnExit();
+		File files=new File(folder, "files");
+		files.mkdir();
+		files.deleteOnExit();
+		File file=new File(files, "test1");
+		file.deleteOnExit();
+		RandomAccessFile raf=new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(fileSize);
+		} finally {
+			raf.close();
+		}
+		File snapshot=new File(folder, "catalog.idx");
+		snapshot.deleteOnExit();
+		return new FileListServer(properties, files.getPath(), snapshot.getPath());
+	}
+
+	public void setReordering(double probability, long extraDelayMicros){
+		this.reorder=probability;
+		this.reorderDelayMicros=extraDelayMicros;
+	}
+
+	public String run(long seed, int chunkSize, int window, long pacingMicros){
+		Simulator simulator=new Simulator();
+		Random random=new Random(seed);
+		//tc_policy.sh only shapes traffic leaving the server port
+		SimulatedLink uplink=new SimulatedLink(simulator, LinkPolicy.unshaped(), random, 0);
+		SimulatedLink downlink=new SimulatedLink(simulator, policy, random, offsetMicros);
+		downlink.setReordering(reorder, reorderDelayMicros);
+		SimulatedEndpoint endpoint=new SimulatedEndpoint(simulator, downlink, server, SERVER_ADDRESS, pacingMicros);
+		SimulatedSession client=new SimulatedSession(simulator, uplink, CLIENT_ADDRESS, chunkSize, window);
+		uplink.setReceiver(endpoint);
+		downlink.setReceiver(client);
+
+		client.start();
+		simulator.run(horizonMicros);
+		simulator.stop();
+
+		long completion=client.isDone()?client.getCompletionMicros():-1;
+		double goodput=completion>0?client.getReceivedBytes()*8.0/completion*1000:0;
+		return seed+","+chunkSize+","+window+","+pacingMicros+","+(completion<0?-1:completion/1000)
+				+","+String.format(Locale.ROOT, "%.1f", goodput)
+				+","+downlink.getSentDatagrams()+","+downlink.getLostDatagrams()+","+downlink.getDroppedDatagrams()
+				+","+downlink.getReorderedDatagrams()+","+client.getRequests()+","+client.getRetransmitRequests()
+				+","+client.getDuplicateBytes()+","+endpoint.getEndpoint().getTotalSentBytes();
+	}
+
+	private static int[] parseInts(String value){
+		String[] parts=value.split(",");
+		int[] result=new int[parts.length];
+		for(int i=0;i<parts.length;i++){
+			result[i]=Integer.parseInt(parts[i].trim());
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options=new HashMap<String, String>();
+		options.put("policy", "tc/policy1");
+		options.put("size", "10000000");
+		options.put("chunk", "1000");
+		options.put("window", "64");
+		options.put("pacing", "0");
+		options.put("seed", "1");
+		options.put("seeds", "1");
+		options.put("offset", "0");
+		options.put("horizon", "3600");
+		options.put("reorder", "0");
+		options.put("reorder_delay", "5");
+		for(String arg:args){
+			int index=arg.indexOf('=');
+			if (index<0){
+				throw new IllegalArgumentException("key=value expected: "+arg);
+			}
+			options.put(arg.substring(0, index), arg.substring(index+1));
+		}
+
+		int[] chunks=parseInts(options.get("chunk"));
+		int maxChunk=0;
+		for(int chunk:chunks){
+			maxChunk=Math.max(maxChunk, chunk);
+		}
+		//every handler would log its transfer, the CSV on stdout would drown in it
+		loggerManager.getInstance(TransferSimulator.class);
+		Configurator.setLevel("server", Level.WARN);
+		TransferSimulator simulator=new TransferSimulator(newServer(Long.parseLong(options.get("size")), maxChunk),
+				LinkPolicy.load(options.get("policy")),
+				Long.parseLong(options.get("offset"))*1000000L,
+				Long.parseLong(options.get("horizon"))*1000000L);
+		simulator.setReordering(Double.parseDouble(options.get("reorder").replace("%", ""))/100,
+				Long.parseLong(options.get("reorder_delay"))*1000L);
+
+		int[] windows=parseInts(options.get("window"));
+		int[] pacings=parseInts(options.get("pacing"));
+		long firstSeed=Long.parseLong(options.get("seed"));
+		int seeds=Integer.parseInt(options.get("seeds"));
+
+		System.out.println("seed,chunk,window,pacing_us,completion_ms,goodput_kbit,datagrams,lost,dropped,reordered,requests,retransmit_requests,duplicate_bytes,server_bytes");
+		long startTime=System.currentTimeMillis();
+		int runs=0;
+		for(int chunk:chunks){
+			for(int window:windows){
+				for(int pacing:pacings){
+					for(long seed=firstSeed;seed<firstSeed+seeds;seed++){
+						System.out.println(simulator.run(seed, chunk, window, pacing));
+						runs++;
+					}
+				}
+			}
+		}
+		System.err.println(runs+" runs in "+(System.currentTimeMillis()-startTime)+" ms");
+	}
+}